@@ -0,0 +1,169 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.Days;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
+
+/** In-memory collaborators for the benchmarks, so they measure the initiator only. */
+final class BenchmarkSupport {
+
+    private BenchmarkSupport() {
+    }
+
+    /** The properties required by IngestMediaFilesInitiator. */
+    static Properties getProperties() {
+        Properties properties = new Properties();
+        properties.setProperty("yousee.recordings.days.to.keep", "28");
+        properties.setProperty("expected.duration.of.file.ingest.process", "12");
+        properties.setProperty("work.flow.state.name.done", "Done");
+        properties.setProperty("work.flow.state.name.stoppped", "Stopped");
+        properties.setProperty("work.flow.state.name.restarted", "Restarted");
+        return properties;
+    }
+
+    /**
+     * Generates a schedule of the kind recorded in production. Each channel is either recorded around the
+     * clock, recorded from morning to midnight, recorded in the evenings on weekdays and into the night at
+     * weekends, or has a few weekly programmes recorded. One in five channels changes its schedule during
+     * the period.
+     *
+     * @param channelCount number of channels
+     * @param fromDate first day of the period
+     * @param toDate last day of the period
+     * @param seed seed of the random schedule
+     */
+    static List<ChannelArchiveRequest> createSchedule(int channelCount, DateTime fromDate, DateTime toDate, long seed) {
+        Random random = new Random(seed);
+        WeekdayCoverage[] weekdays = {WeekdayCoverage.MONDAY, WeekdayCoverage.TUESDAY, WeekdayCoverage.WEDNESDAY,
+                WeekdayCoverage.THURSDAY, WeekdayCoverage.FRIDAY, WeekdayCoverage.SATURDAY, WeekdayCoverage.SUNDAY};
+        Date validFrom = fromDate.minusYears(1).toDate();
+        Date validTo = toDate.plusYears(1).toDate();
+        List<ChannelArchiveRequest> caRequests = new ArrayList<ChannelArchiveRequest>();
+        for (int channel = 0; channel < channelCount; channel++) {
+            String sbChannelId = "channel" + channel;
+            Date currentTo = validTo;
+            if (random.nextInt(5) == 0) {
+                DateTime change = fromDate.plusDays(random.nextInt(Days.daysBetween(fromDate, toDate).getDays() + 1));
+                currentTo = change.minusDays(1).toDate();
+                caRequests.add(createRequest(caRequests.size(), sbChannelId, WeekdayCoverage.DAILY, 0, 0, change.toDate(), validTo));
+            }
+            switch (random.nextInt(4)) {
+            case 0:
+                caRequests.add(createRequest(caRequests.size(), sbChannelId, WeekdayCoverage.DAILY, 0, 0, validFrom, currentTo));
+                break;
+            case 1:
+                caRequests.add(createRequest(caRequests.size(), sbChannelId, WeekdayCoverage.DAILY, 6, 0, validFrom, currentTo));
+                break;
+            case 2:
+                caRequests.add(createRequest(caRequests.size(), sbChannelId, WeekdayCoverage.MONDAY_TO_FRIDAY, 17, 23, validFrom, currentTo));
+                caRequests.add(createRequest(caRequests.size(), sbChannelId, WeekdayCoverage.SATURDAY_AND_SUNDAY, 8, 2, validFrom, currentTo));
+                break;
+            default:
+                for (int programme = 0; programme < 3; programme++) {
+                    int fromHour = 12 + random.nextInt(10);
+                    caRequests.add(createRequest(caRequests.size(), sbChannelId, weekdays[random.nextInt(weekdays.length)],
+                            fromHour, fromHour + 1 + random.nextInt(2), validFrom, currentTo));
+                }
+            }
+        }
+        return caRequests;
+    }
+
+    private static ChannelArchiveRequest createRequest(long id, String sbChannelId, WeekdayCoverage weekdayCoverage, int fromHour, int toHour, Date fromDate, Date toDate) {
+        ChannelArchiveRequest caRequest = new ChannelArchiveRequest();
+        caRequest.setId(id);
+        caRequest.setsBChannelId(sbChannelId);
+        caRequest.setWeekdayCoverage(weekdayCoverage);
+        caRequest.setFromTime(new Time(fromHour, 0, 0));
+        caRequest.setToTime(new Time(toHour, 0, 0));
+        caRequest.setFromDate(fromDate);
+        caRequest.setToDate(toDate);
+        return caRequest;
+    }
+
+    /** Maps every SB channel to a YouSee channel of the same name in upper case. */
+    static YouSeeChannelMappingServiceIF createChannelMappingService() {
+        return new YouSeeChannelMappingServiceIF() {
+            private final Map<String, YouSeeChannelMapping> mappings = new HashMap<String, YouSeeChannelMapping>();
+
+            @Override
+            public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sbChannelId, Date date) {
+                YouSeeChannelMapping mapping = mappings.get(sbChannelId);
+                if (mapping == null) {
+                    mapping = new YouSeeChannelMapping();
+                    mapping.setSbChannelId(sbChannelId);
+                    mapping.setYouSeeChannelId(sbChannelId.toUpperCase());
+                    mapping.setDisplayName(sbChannelId.toUpperCase());
+                    mapping.setFromDate(new Date(0));
+                    mappings.put(sbChannelId, mapping);
+                }
+                return mapping;
+            }
+
+            @Override
+            public YouSeeChannelMapping getUniqueMappingFromYouSeeChannelId(String youSeeChannelId, Date date) {
+                return getUniqueMappingFromSbChannelId(youSeeChannelId.toLowerCase(), date);
+            }
+
+            @Override
+            public List<YouSeeChannelMapping> getAllMappings() throws ServiceException {
+                throw new ServiceException("Not supported");
+            }
+
+            @Override
+            public void create(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+                throw new ServiceException("Not supported");
+            }
+
+            @Override
+            public void update(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+                throw new ServiceException("Not supported");
+            }
+
+            @Override
+            public void delete(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+                throw new ServiceException("Not supported");
+            }
+        };
+    }
+
+    /** Knows no states and ignores added states. */
+    static WorkFlowStateMonitorFacade createWorkFlowStateMonitorFacade() {
+        return new WorkFlowStateMonitorFacade() {
+            @Override
+            public State getLastWorkFlowStateForEntity(String sbFileId) {
+                return null;
+            }
+
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                Map<String, State> states = new HashMap<String, State>();
+                for (String sbFileId : sbFileIds) {
+                    states.put(sbFileId, null);
+                }
+                return states;
+            }
+
+            @Override
+            public void addState(String stateName, String message) {
+            }
+        };
+    }
+}
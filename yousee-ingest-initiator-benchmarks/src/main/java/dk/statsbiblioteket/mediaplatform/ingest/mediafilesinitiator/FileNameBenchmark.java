@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Building the filenames of one file, done for every file planned. The start time changes between calls,
+ * so no formatting can be reused.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FileNameBenchmark {
+
+    private IngestMediaFilesInitiator initiator;
+    private DateTime[] startDates;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        initiator = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null, null, null, null);
+        startDates = new DateTime[24 * 28];
+        DateTime firstStartDate = new DateTime(2013, 3, 15, 0, 0, 0, 0);
+        for (int i = 0; i < startDates.length; i++) {
+            startDates[i] = firstStartDate.plusHours(i);
+        }
+    }
+
+    @Benchmark
+    public String getYouSeeFilename() {
+        DateTime startDate = nextStartDate();
+        return initiator.getYouSeeFilename(startDate, startDate.plusHours(1), "DR1");
+    }
+
+    @Benchmark
+    public String getSBFileID() {
+        DateTime startDate = nextStartDate();
+        return initiator.getSBFileID("dr1", startDate, startDate.plusHours(1));
+    }
+
+    private DateTime nextStartDate() {
+        next = (next + 1) % startDates.length;
+        return startDates[next];
+    }
+}
@@ -0,0 +1,87 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Memory used planning the files of 50 channels recorded around the clock, comparing a sorted list of
+ * MediaFileIngestOutputParameters built from a HashSet with the compact FilePlan. Each file is added twice,
+ * as files of requests passing midnight are. Run with -prof gc and compare gc.alloc.rate.norm; the plan
+ * returned by each benchmark is what stays on the heap until the files are written.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilePlanMemoryBenchmark {
+
+    private static final int CHANNEL_COUNT = 50;
+
+    @Param({"28", "180"})
+    private int days;
+
+    private IngestMediaFilesInitiator initiator;
+    private DateTime fromDate;
+
+    @Setup
+    public void setUp() {
+        initiator = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null, null, null, null);
+        fromDate = new DateTime(2012, 1, 1, 0, 0, 0, 0);
+    }
+
+    @Benchmark
+    public List<MediaFileIngestOutputParameters> objectSet() {
+        Set<MediaFileIngestOutputParameters> files = new HashSet<MediaFileIngestOutputParameters>();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+                String channelIDSB = "channel" + channel;
+                String channelIDYouSee = channelIDSB.toUpperCase();
+                for (int hour = 0; hour < days * 24; hour++) {
+                    DateTime startDate = fromDate.plusHours(hour);
+                    DateTime endDate = startDate.plusHours(1);
+                    files.add(new MediaFileIngestOutputParameters(
+                            initiator.getSBFileID(channelIDSB, startDate, endDate),
+                            initiator.getYouSeeFilename(startDate, endDate, channelIDYouSee),
+                            channelIDSB, channelIDYouSee, startDate, endDate));
+                }
+            }
+        }
+        List<MediaFileIngestOutputParameters> fileList = new ArrayList<MediaFileIngestOutputParameters>(files);
+        Collections.sort(fileList);
+        return fileList;
+    }
+
+    @Benchmark
+    public List<MediaFileIngestOutputParameters> filePlan() {
+        FilePlan files = new FilePlan(initiator);
+        for (int pass = 0; pass < 2; pass++) {
+            for (int channel = 0; channel < CHANNEL_COUNT; channel++) {
+                String channelIDSB = "channel" + channel;
+                String channelIDYouSee = channelIDSB.toUpperCase();
+                for (int hour = 0; hour < days * 24; hour++) {
+                    files.add(channelIDSB, channelIDYouSee, fromDate.plusHours(hour));
+                }
+            }
+        }
+        return files.toList();
+    }
+}
@@ -0,0 +1,77 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+
+/**
+ * Filtering the files of a generated production-like schedule against the in-process work flow state
+ * monitor stub, where every lookup takes latencyMillis. The files of all but the last two days are Done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class FilterOutFilesAlreadyIngestedBenchmark {
+
+    @Param({"200"})
+    private int channels;
+
+    @Param({"28"})
+    private int days;
+
+    @Param({"0", "2"})
+    private long latencyMillis;
+
+    @Param({"1", "8"})
+    private int parallelism;
+
+    private IngestMediaFilesInitiator initiator;
+    private List<MediaFileIngestOutputParameters> files;
+    private DateTime dateOfIngest;
+
+    @Setup
+    public void setUp() {
+        dateOfIngest = new DateTime(2013, 12, 31, 3, 0, 0, 0);
+        DateTime fromDate = dateOfIngest.minusDays(days - 1);
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        IngestMediaFilesInitiator planner = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null,
+                BenchmarkSupport.createChannelMappingService(), workFlowStateMonitorFacade, null);
+        files = new ArrayList<MediaFileIngestOutputParameters>(planner.inferFilesToIngest(
+                BenchmarkSupport.createSchedule(channels, fromDate, dateOfIngest, 42), fromDate, dateOfIngest));
+        DateTime doneBefore = dateOfIngest.minusDays(2);
+        for (MediaFileIngestOutputParameters file : files) {
+            if (file.getStartDate().isBefore(doneBefore)) {
+                workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), file.getFileNameSB(), "Done");
+            }
+        }
+        workFlowStateMonitorFacade.setLookupLatency(latencyMillis);
+        Properties properties = BenchmarkSupport.getProperties();
+        properties.setProperty("workflow.state.monitor.parallelism", String.valueOf(parallelism));
+        initiator = new IngestMediaFilesInitiator(properties, null, null, workFlowStateMonitorFacade, null);
+    }
+
+    @Benchmark
+    public int filterOutFilesAlreadyIngested() {
+        return initiator.filterOutFilesAlreadyIngested(dateOfIngest, files).size();
+    }
+}
@@ -0,0 +1,71 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+
+/**
+ * Inferring the files to ingest from a generated production-like schedule, see
+ * {@link BenchmarkSupport#createSchedule(int, DateTime, DateTime, long)}, and checking whether each request
+ * is active on each day of the period.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class InferFilesToIngestBenchmark {
+
+    @Param({"200"})
+    private int channels;
+
+    @Param({"28", "365"})
+    private int days;
+
+    private IngestMediaFilesInitiator initiator;
+    private List<ChannelArchiveRequest> caRequests;
+    private DateTime fromDate;
+    private DateTime toDate;
+
+    @Setup
+    public void setUp() {
+        initiator = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null,
+                BenchmarkSupport.createChannelMappingService(), BenchmarkSupport.createWorkFlowStateMonitorFacade(), null);
+        toDate = new DateTime(2013, 12, 31, 3, 0, 0, 0);
+        fromDate = toDate.minusDays(days - 1);
+        caRequests = BenchmarkSupport.createSchedule(channels, fromDate, toDate, 42);
+    }
+
+    @Benchmark
+    public int inferFilesToIngest() {
+        return initiator.inferFilesToIngest(caRequests, fromDate, toDate).size();
+    }
+
+    @Benchmark
+    public int isChannelArchiveRequestActive() {
+        int activeCount = 0;
+        for (DateTime dayToCheck = fromDate; !dayToCheck.isAfter(toDate); dayToCheck = dayToCheck.plusDays(1)) {
+            for (ChannelArchiveRequest caRequest : caRequests) {
+                if (initiator.isChannelArchiveRequestActive(caRequest, dayToCheck)) {
+                    activeCount++;
+                }
+            }
+        }
+        return activeCount;
+    }
+}
@@ -0,0 +1,76 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to write the downloads document for a number of files. Run with -prof gc to see the allocation per
+ * document, which should grow linearly with the number of files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputResultBenchmark {
+
+    @Param({"1000", "100000"})
+    private int fileCount;
+
+    private IngestMediaFilesInitiator initiator;
+    private List<MediaFileIngestOutputParameters> outputList;
+
+    @Setup
+    public void setUp() {
+        initiator = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null, null, null, null);
+        outputList = new ArrayList<MediaFileIngestOutputParameters>(fileCount);
+        DateTime firstStartDate = new DateTime(2012, 1, 1, 0, 0, 0, 0);
+        for (int i = 0; i < fileCount; i++) {
+            DateTime startDate = firstStartDate.plusHours(i);
+            DateTime endDate = startDate.plusHours(1);
+            outputList.add(new MediaFileIngestOutputParameters(
+                    initiator.getSBFileID("dr1", startDate, endDate),
+                    initiator.getYouSeeFilename(startDate, endDate, "DR1"),
+                    "dr1", "DR1", startDate, endDate));
+        }
+    }
+
+    @Benchmark
+    public long outputResult() {
+        CountingOutputStream outputStream = new CountingOutputStream();
+        initiator.outputResult(outputList, outputStream);
+        return outputStream.count;
+    }
+
+    /** Discards the output, so the benchmark measures producing it. */
+    private static class CountingOutputStream extends OutputStream {
+
+        private long count = 0;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
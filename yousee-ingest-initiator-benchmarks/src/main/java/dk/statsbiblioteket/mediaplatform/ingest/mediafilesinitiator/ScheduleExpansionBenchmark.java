@@ -0,0 +1,90 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+/**
+ * Expansion of channel archive requests into files over a window, comparing the schedule index with checking
+ * every request on every day. The requests are mostly short lived and cover a few weekdays, so most
+ * request and day pairs produce no files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ScheduleExpansionBenchmark {
+
+    @Param({"500"})
+    private int requestCount;
+
+    @Param({"365"})
+    private int days;
+
+    private IngestMediaFilesInitiator initiator;
+    private List<ChannelArchiveRequest> caRequests;
+    private DateTime fromDate;
+    private DateTime toDate;
+
+    @Setup
+    public void setUp() {
+        initiator = new IngestMediaFilesInitiator(BenchmarkSupport.getProperties(), null,
+                BenchmarkSupport.createChannelMappingService(), BenchmarkSupport.createWorkFlowStateMonitorFacade(), null);
+        toDate = new DateTime(2013, 12, 31, 0, 0, 0, 0);
+        fromDate = toDate.minusDays(days - 1);
+        Random random = new Random(42);
+        WeekdayCoverage[] weekdayCoverages = WeekdayCoverage.values();
+        caRequests = new ArrayList<ChannelArchiveRequest>();
+        for (int i = 0; i < requestCount; i++) {
+            ChannelArchiveRequest caRequest = new ChannelArchiveRequest();
+            caRequest.setId((long) i);
+            caRequest.setsBChannelId("channel" + i % 50);
+            caRequest.setWeekdayCoverage(weekdayCoverages[random.nextInt(weekdayCoverages.length)]);
+            int fromHour = random.nextInt(24);
+            caRequest.setFromTime(new Time(fromHour, 0, 0));
+            caRequest.setToTime(new Time((fromHour + 1 + random.nextInt(3)) % 24, 0, 0));
+            DateTime requestFromDate = fromDate.plusDays(random.nextInt(days));
+            caRequest.setFromDate(requestFromDate.toDate());
+            caRequest.setToDate(requestFromDate.plusDays(random.nextInt(30)).toDate());
+            caRequests.add(caRequest);
+        }
+    }
+
+    @Benchmark
+    public int scheduleIndex() {
+        return initiator.inferFilesToIngest(caRequests, fromDate, toDate).size();
+    }
+
+    @Benchmark
+    public int everyRequestEveryDay() {
+        Set<MediaFileIngestOutputParameters> files = new HashSet<MediaFileIngestOutputParameters>();
+        for (DateTime dayToCheck = fromDate; !dayToCheck.isAfter(toDate); dayToCheck = dayToCheck.plusDays(1)) {
+            for (ChannelArchiveRequest caRequest : caRequests) {
+                files.addAll(initiator.inferFilesToIngest(caRequest, dayToCheck));
+            }
+        }
+        return files.size();
+    }
+}
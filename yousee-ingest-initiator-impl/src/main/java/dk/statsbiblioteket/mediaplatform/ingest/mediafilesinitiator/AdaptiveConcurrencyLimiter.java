@@ -0,0 +1,160 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the number of concurrent requests looking up states in the work flow state monitor, so the initiator does
+ * not overload the monitor shared with the other workflow components. {@link WorkFlowStateMonitorWebServiceFacade}
+ * wraps each request, of one entity or a bulk of entities, in {@link #acquire()} and
+ * {@link #release(long, int, boolean)}. Requests beyond the limit wait for a request to finish.
+ *
+ * The limit is adjusted from the latency per entity of each lookup (additive increase, multiplicative decrease). The
+ * lowest latency seen within the last {@value #IDLE_LATENCY_WINDOW} lookups or so is taken as the latency of an idle
+ * monitor, so the limiter follows a monitor getting slower for other reasons than load. A lookup slower than
+ * workflow.state.monitor.limiter.latency.tolerance times that, or failing, multiplies the limit by
+ * workflow.state.monitor.limiter.backoff.ratio. Other lookups raise the limit by about one for each limit's worth of
+ * lookups. The limit is kept from workflow.state.monitor.limiter.min.limit to workflow.state.monitor.limiter.max.limit.
+ *
+ * States are added without waiting for the limit.
+ */
+final class AdaptiveConcurrencyLimiter {
+
+    static final String LIMITER_MAX_LIMIT_KEY = "workflow.state.monitor.limiter.max.limit";
+    private static final String LIMITER_MIN_LIMIT_KEY = "workflow.state.monitor.limiter.min.limit";
+    private static final String LIMITER_LATENCY_TOLERANCE_KEY = "workflow.state.monitor.limiter.latency.tolerance";
+    private static final String LIMITER_BACKOFF_RATIO_KEY = "workflow.state.monitor.limiter.backoff.ratio";
+    /** Number of lookups after which the idle latency is replaced by the lowest latency of those lookups */
+    static final int IDLE_LATENCY_WINDOW = 1000;
+    private static final Logger log = Logger.getLogger(AdaptiveConcurrencyLimiter.class);
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double latencyTolerance;
+    private final double backoffRatio;
+    private final AtomicLong queueNanos = new AtomicLong();
+    private final AtomicLong backoffs = new AtomicLong();
+    /** Guards the fields below, and is notified when a lookup finishes or the limit is raised */
+    private final Object lock = new Object();
+    private double limit;
+    private int inFlight;
+    private double idleNanosPerEntity = Double.MAX_VALUE;
+    private double windowNanosPerEntity = Double.MAX_VALUE;
+    private int windowLookups;
+    /** Time of the last decrease. Lookups started before it do not decrease the limit again. */
+    private long lastBackoffNanos = System.nanoTime();
+
+    AdaptiveConcurrencyLimiter(Properties properties) {
+        this.minLimit = Integer.parseInt(properties.getProperty(LIMITER_MIN_LIMIT_KEY, "1"));
+        this.maxLimit = Integer.parseInt(properties.getProperty(LIMITER_MAX_LIMIT_KEY, "0"));
+        this.latencyTolerance = Double.parseDouble(properties.getProperty(LIMITER_LATENCY_TOLERANCE_KEY, "2.0"));
+        this.backoffRatio = Double.parseDouble(properties.getProperty(LIMITER_BACKOFF_RATIO_KEY, "0.9"));
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new RuntimeException("Properties " + LIMITER_MIN_LIMIT_KEY + " and " + LIMITER_MAX_LIMIT_KEY
+                    + " must be positive, and max at least min, were " + minLimit + " and " + maxLimit);
+        }
+        if (latencyTolerance <= 1 || backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new RuntimeException("Property " + LIMITER_LATENCY_TOLERANCE_KEY + " must be above 1, and "
+                    + LIMITER_BACKOFF_RATIO_KEY + " between 0 and 1");
+        }
+        this.limit = minLimit;
+    }
+
+    /** @return true if workflow.state.monitor.limiter.max.limit is set, and lookups should be limited */
+    static boolean isEnabled(Properties properties) {
+        return Integer.parseInt(properties.getProperty(LIMITER_MAX_LIMIT_KEY, "0")) > 0;
+    }
+
+    /** @return the highest number of concurrent lookups allowed */
+    int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /** @return the number of concurrent lookups allowed now */
+    int getLimit() {
+        synchronized (lock) {
+            return (int) limit;
+        }
+    }
+
+    /** @return the time lookups have waited for the limit, in nanoseconds, summed over all lookups */
+    long getQueueNanos() {
+        return queueNanos.get();
+    }
+
+    /** @return the number of times the limit has been decreased */
+    long getBackoffs() {
+        return backoffs.get();
+    }
+
+    /**
+     * Waits until a lookup is allowed. Must be followed by {@link #release(long, int, boolean)} when the lookup is done.
+     *
+     * @return the time the lookup starts
+     */
+    long acquire() {
+        long queued = System.nanoTime();
+        synchronized (lock) {
+            try {
+                while (inFlight >= (int) limit) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting to look up work flow states", e);
+            }
+            inFlight++;
+        }
+        long start = System.nanoTime();
+        queueNanos.addAndGet(start - queued);
+        return start;
+    }
+
+    /**
+     * Ends a lookup, adjusting the limit from its latency.
+     *
+     * @param start the time the lookup started, as returned by {@link #acquire()}
+     * @param entityCount the number of entities looked up
+     * @param failed true if the lookup failed
+     */
+    void release(long start, int entityCount, boolean failed) {
+        long now = System.nanoTime();
+        double nanosPerEntity = (double) (now - start) / Math.max(1, entityCount);
+        synchronized (lock) {
+            boolean saturated = inFlight >= (int) limit;
+            inFlight--;
+            if (!failed) {
+                idleNanosPerEntity = Math.min(idleNanosPerEntity, nanosPerEntity);
+                windowNanosPerEntity = Math.min(windowNanosPerEntity, nanosPerEntity);
+                if (++windowLookups == IDLE_LATENCY_WINDOW) {
+                    idleNanosPerEntity = windowNanosPerEntity;
+                    windowNanosPerEntity = Double.MAX_VALUE;
+                    windowLookups = 0;
+                }
+            }
+            if (failed || nanosPerEntity > idleNanosPerEntity * latencyTolerance) {
+                if (start - lastBackoffNanos > 0) {
+                    double previousLimit = limit;
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastBackoffNanos = now;
+                    backoffs.incrementAndGet();
+                    log.debug("Decreased work flow state lookup limit from " + previousLimit + " to " + limit
+                            + (failed ? " after failed lookup" : " at " + (long) nanosPerEntity + " ns per entity"));
+                }
+            } else if (saturated) {
+                // Only raised while the limit is used, so an idle period does not raise it without a check
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+            lock.notifyAll();
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return "limit " + limit + " of " + minLimit + " to " + maxLimit + ", " + inFlight + " in flight";
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
+
+/**
+ * Work flow state monitor facade adding states in the background, so a slow or unavailable monitor does not
+ * stall the initiator. Lookups are passed on to the wrapped facade as they are.
+ *
+ * States are sent in the order they are added, one at a time by a single thread. A state added while a state
+ * with the same name waits to be sent is merged into it, its message appended. A state the monitor does not
+ * accept is retried after workflow.state.monitor.report.retry.initial.delay milliseconds, doubled on each failure
+ * up to workflow.state.monitor.report.retry.max.delay. At most workflow.state.monitor.report.queue.size states
+ * wait, beyond that the oldest is dropped.
+ *
+ * {@link #close()} waits up to workflow.state.monitor.report.flush.timeout milliseconds for the states to be sent.
+ * States still not sent are kept in workflow.state.monitor.report.spool.file.path, if set, and sent by the next
+ * reporter using the file. Shards get the shard appended to the name of the file, as they report to their own
+ * components.
+ */
+public class AsyncStateReporter implements WorkFlowStateMonitorFacade {
+
+    private static final String REPORT_QUEUE_SIZE_KEY = "workflow.state.monitor.report.queue.size";
+    private static final String REPORT_RETRY_INITIAL_DELAY_KEY = "workflow.state.monitor.report.retry.initial.delay";
+    private static final String REPORT_RETRY_MAX_DELAY_KEY = "workflow.state.monitor.report.retry.max.delay";
+    private static final String REPORT_FLUSH_TIMEOUT_KEY = "workflow.state.monitor.report.flush.timeout";
+    private static final String REPORT_SPOOL_FILE_PATH_KEY = "workflow.state.monitor.report.spool.file.path";
+    private static final Logger log = Logger.getLogger(AsyncStateReporter.class);
+
+    private final WorkFlowStateMonitorFacade workFlowStateMonitorFacade;
+    private final int queueSize;
+    private final long retryInitialDelay;
+    private final long retryMaxDelay;
+    private final long flushTimeout;
+    private final File spoolFile;
+    /** States not yet sent, oldest first. Guarded by itself. */
+    private final LinkedList<PendingState> pendingStates = new LinkedList<PendingState>();
+    private final Thread senderThread;
+    private boolean closed;
+
+    public AsyncStateReporter(Properties properties, WorkFlowStateMonitorFacade workFlowStateMonitorFacade) {
+        this.workFlowStateMonitorFacade = workFlowStateMonitorFacade;
+        this.queueSize = Integer.parseInt(properties.getProperty(REPORT_QUEUE_SIZE_KEY, "100"));
+        this.retryInitialDelay = Long.parseLong(properties.getProperty(REPORT_RETRY_INITIAL_DELAY_KEY, "1000"));
+        this.retryMaxDelay = Long.parseLong(properties.getProperty(REPORT_RETRY_MAX_DELAY_KEY, "60000"));
+        this.flushTimeout = Long.parseLong(properties.getProperty(REPORT_FLUSH_TIMEOUT_KEY, "10000"));
+        String spoolFilePath = properties.getProperty(REPORT_SPOOL_FILE_PATH_KEY);
+        this.spoolFile = spoolFilePath == null ? null : new File(ChannelShard.fromProperties(properties).getFilePath(spoolFilePath));
+        if (spoolFile != null && spoolFile.exists()) {
+            loadSpool();
+        }
+        this.senderThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                sendStates();
+            }
+        }, "work-flow-state-reporter");
+        this.senderThread.setDaemon(true);
+        this.senderThread.start();
+    }
+
+    /** @return the facade the states are added to */
+    WorkFlowStateMonitorFacade getWorkFlowStateMonitorFacade() {
+        return workFlowStateMonitorFacade;
+    }
+
+    /** @return false if workflow.state.monitor.report.queue.size is 0, and states should be added while the initiator waits */
+    public static boolean isEnabled(Properties properties) {
+        return Integer.parseInt(properties.getProperty(REPORT_QUEUE_SIZE_KEY, "100")) > 0;
+    }
+
+    @Override
+    public State getLastWorkFlowStateForEntity(String sbFileId) {
+        return workFlowStateMonitorFacade.getLastWorkFlowStateForEntity(sbFileId);
+    }
+
+    @Override
+    public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+        return workFlowStateMonitorFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+    }
+
+    /** Queues the state to be sent. Once the reporter is closed, the state is sent right away. */
+    @Override
+    public void addState(String stateName, String message) {
+        synchronized (pendingStates) {
+            if (!closed) {
+                queue(stateName, message);
+                return;
+            }
+        }
+        try {
+            workFlowStateMonitorFacade.addState(stateName, message);
+        } catch (RuntimeException e) {
+            log.error("Unable to add state " + stateName + ": " + message, e);
+        }
+    }
+
+    /**
+     * Waits for the queued states to be sent.
+     *
+     * @return true if all states were sent within the timeout
+     */
+    public boolean flush(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pendingStates) {
+            long remaining = timeoutMillis;
+            while (!pendingStates.isEmpty() && remaining > 0) {
+                pendingStates.wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            return pendingStates.isEmpty();
+        }
+    }
+
+    /**
+     * Waits up to workflow.state.monitor.report.flush.timeout milliseconds for the queued states to be sent, and
+     * stops sending. States not sent are kept in the spool file, if any. States added afterwards are sent right away.
+     */
+    public void close() {
+        boolean flushed;
+        try {
+            flushed = flush(flushTimeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flushed = false;
+        }
+        synchronized (pendingStates) {
+            closed = true;
+            pendingStates.notifyAll();
+            if (spoolFile != null) {
+                saveSpool();
+            } else if (!flushed) {
+                log.error("Unable to add " + pendingStates.size() + " states: " + pendingStates);
+            }
+        }
+    }
+
+    private void queue(String stateName, String message) {
+        PendingState last = pendingStates.isEmpty() ? null : pendingStates.getLast();
+        if (last != null && !last.sending && last.stateName.equals(stateName)) {
+            last.message.append('\n').append(message);
+            return;
+        }
+        // The state being sent is not dropped
+        int oldest = !pendingStates.isEmpty() && pendingStates.getFirst().sending ? 1 : 0;
+        if (pendingStates.size() >= queueSize && pendingStates.size() > oldest) {
+            log.warn("Too many states waiting to be added, dropped " + pendingStates.remove(oldest));
+        }
+        pendingStates.add(new PendingState(stateName, message));
+        pendingStates.notifyAll();
+    }
+
+    private void sendStates() {
+        long retryDelay = retryInitialDelay;
+        while (true) {
+            PendingState state;
+            synchronized (pendingStates) {
+                while (pendingStates.isEmpty() && !closed) {
+                    waitUntil(Long.MAX_VALUE);
+                }
+                if (closed) {
+                    return;
+                }
+                state = pendingStates.getFirst();
+                state.sending = true;
+            }
+            try {
+                workFlowStateMonitorFacade.addState(state.stateName, state.message.toString());
+                synchronized (pendingStates) {
+                    pendingStates.remove(state);
+                    pendingStates.notifyAll();
+                }
+                retryDelay = retryInitialDelay;
+            } catch (RuntimeException e) {
+                log.warn("Unable to add state " + state + ", retrying in " + retryDelay + " ms: " + e);
+                synchronized (pendingStates) {
+                    state.sending = false;
+                    if (spoolFile != null) {
+                        saveSpool();
+                    }
+                    waitUntil(System.currentTimeMillis() + retryDelay);
+                }
+                retryDelay = Math.min(retryDelay * 2, retryMaxDelay);
+            }
+        }
+    }
+
+    /** Waits until the given time, until the reporter is closed or, if no states are pending, until a state is added. */
+    private void waitUntil(long time) {
+        try {
+            long remaining = time - System.currentTimeMillis();
+            boolean wasEmpty = pendingStates.isEmpty();
+            while (remaining > 0 && !closed && pendingStates.isEmpty() == wasEmpty) {
+                pendingStates.wait(time == Long.MAX_VALUE ? 0 : remaining);
+                remaining = time - System.currentTimeMillis();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+    }
+
+    /** Replaces the spool file with the states not yet sent, or deletes it if all are sent. */
+    private void saveSpool() {
+        if (pendingStates.isEmpty()) {
+            spoolFile.delete();
+            return;
+        }
+        final Properties spool = new Properties();
+        spool.setProperty("states", Integer.toString(pendingStates.size()));
+        int index = 0;
+        for (PendingState state : pendingStates) {
+            spool.setProperty("state." + index + ".name", state.stateName);
+            spool.setProperty("state." + index + ".message", state.message.toString());
+            spool.setProperty("state." + index + ".date", new DateTime(state.added).toString());
+            index++;
+        }
+        try {
+            FileReplacer.replace(spoolFile, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    spool.store(out, "States not yet added to the work flow state monitor");
+                }
+            });
+        } catch (IOException e) {
+            log.error("Unable to write state spool " + spoolFile.getAbsolutePath() + ", states not added: " + pendingStates, e);
+        }
+    }
+
+    private void loadSpool() {
+        Properties spool = new Properties();
+        try {
+            InputStream in = new FileInputStream(spoolFile);
+            try {
+                spool.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            log.error("Unable to read state spool " + spoolFile.getAbsolutePath() + ", states not added", e);
+            return;
+        }
+        int count = Integer.parseInt(spool.getProperty("states", "0"));
+        for (int index = 0; index < count; index++) {
+            String stateName = spool.getProperty("state." + index + ".name");
+            String message = spool.getProperty("state." + index + ".message");
+            String date = spool.getProperty("state." + index + ".date");
+            pendingStates.add(new PendingState(stateName, message + "\n(Reported " + date + ")"));
+        }
+        log.info("Read " + count + " states not yet added from " + spoolFile.getAbsolutePath());
+    }
+
+    private static class PendingState {
+
+        private final String stateName;
+        private final StringBuilder message;
+        private final long added = System.currentTimeMillis();
+        /** Set while the sender thread sends the state, when no more messages may be merged into it */
+        private boolean sending;
+
+        PendingState(String stateName, String message) {
+            this.stateName = stateName;
+            this.message = new StringBuilder(message);
+        }
+
+        @Override
+        public String toString() {
+            return stateName + ": " + message;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Channel mapping service answering lookups from memory. All mappings are loaded from the wrapped service
+ * on the first lookup, and indexed per channel by the periods in which they are valid.
+ *
+ * A mapping is valid from its from date to its to date, both included. As with the wrapped service, a
+ * ServiceException is thrown if not exactly one mapping is valid for the channel at the given date.
+ *
+ * Changes made through this service reload the mappings. Changes made elsewhere are seen after {@link #reload()}.
+ */
+public class CachingYouSeeChannelMappingService implements YouSeeChannelMappingServiceIF {
+
+    private static final Logger log = Logger.getLogger(CachingYouSeeChannelMappingService.class);
+
+    private final YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+    private Map<String, MappingIndex> sbChannelIndexes;
+    private Map<String, MappingIndex> youSeeChannelIndexes;
+
+    public CachingYouSeeChannelMappingService(YouSeeChannelMappingServiceIF youSeeChannelMappingService) {
+        this.youSeeChannelMappingService = youSeeChannelMappingService;
+    }
+
+    /** Makes the next lookup load the mappings again. */
+    public synchronized void reload() {
+        sbChannelIndexes = null;
+        youSeeChannelIndexes = null;
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sbChannelId, Date date) throws ServiceException {
+        return getUniqueMapping(getSbChannelIndexes().get(sbChannelId), "SB channel id " + sbChannelId, date);
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromYouSeeChannelId(String youSeeChannelId, Date date) throws ServiceException {
+        return getUniqueMapping(getYouSeeChannelIndexes().get(youSeeChannelId), "YouSee channel id " + youSeeChannelId, date);
+    }
+
+    @Override
+    public List<YouSeeChannelMapping> getAllMappings() throws ServiceException {
+        return youSeeChannelMappingService.getAllMappings();
+    }
+
+    @Override
+    public void create(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.create(youSeeChannelMapping);
+        reload();
+    }
+
+    @Override
+    public void update(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.update(youSeeChannelMapping);
+        reload();
+    }
+
+    @Override
+    public void delete(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.delete(youSeeChannelMapping);
+        reload();
+    }
+
+    private static YouSeeChannelMapping getUniqueMapping(MappingIndex index, String channel, Date date) throws ServiceException {
+        List<YouSeeChannelMapping> mappings;
+        if (index == null) {
+            mappings = Collections.emptyList();
+        } else {
+            mappings = index.getMappings(date.getTime());
+        }
+        if (mappings.size() != 1) {
+            throw new ServiceException("Expected exactly one mapping for " + channel + " at " + date + ", found "
+                    + mappings.size() + ": " + mappings);
+        }
+        return mappings.get(0);
+    }
+
+    private synchronized Map<String, MappingIndex> getSbChannelIndexes() throws ServiceException {
+        if (sbChannelIndexes == null) {
+            loadMappings();
+        }
+        return sbChannelIndexes;
+    }
+
+    private synchronized Map<String, MappingIndex> getYouSeeChannelIndexes() throws ServiceException {
+        if (youSeeChannelIndexes == null) {
+            loadMappings();
+        }
+        return youSeeChannelIndexes;
+    }
+
+    private void loadMappings() throws ServiceException {
+        List<YouSeeChannelMapping> mappings = youSeeChannelMappingService.getAllMappings();
+        Map<String, List<YouSeeChannelMapping>> sbChannelMappings = new HashMap<String, List<YouSeeChannelMapping>>();
+        Map<String, List<YouSeeChannelMapping>> youSeeChannelMappings = new HashMap<String, List<YouSeeChannelMapping>>();
+        for (YouSeeChannelMapping mapping : mappings) {
+            addMapping(sbChannelMappings, mapping.getSbChannelId(), mapping);
+            addMapping(youSeeChannelMappings, mapping.getYouSeeChannelId(), mapping);
+        }
+        youSeeChannelIndexes = createIndexes(youSeeChannelMappings);
+        sbChannelIndexes = createIndexes(sbChannelMappings);
+        log.debug("Loaded " + mappings.size() + " channel mappings for " + sbChannelIndexes.size() + " SB channels");
+    }
+
+    private static void addMapping(Map<String, List<YouSeeChannelMapping>> channelMappings, String channelId, YouSeeChannelMapping mapping) {
+        List<YouSeeChannelMapping> mappings = channelMappings.get(channelId);
+        if (mappings == null) {
+            mappings = new ArrayList<YouSeeChannelMapping>();
+            channelMappings.put(channelId, mappings);
+        }
+        mappings.add(mapping);
+    }
+
+    private static Map<String, MappingIndex> createIndexes(Map<String, List<YouSeeChannelMapping>> channelMappings) {
+        Map<String, MappingIndex> indexes = new HashMap<String, MappingIndex>();
+        for (Map.Entry<String, List<YouSeeChannelMapping>> entry : channelMappings.entrySet()) {
+            indexes.put(entry.getKey(), new MappingIndex(entry.getValue()));
+        }
+        return indexes;
+    }
+
+    /**
+     * The mappings of one channel. The time line is cut into periods at every from date and right after every
+     * to date, so the same mappings are valid throughout each period. A lookup is a binary search for the period.
+     */
+    private static class MappingIndex {
+
+        /** Start of each period in milliseconds */
+        private final long[] periodStarts;
+        private final List<List<YouSeeChannelMapping>> periodMappings;
+
+        MappingIndex(List<YouSeeChannelMapping> mappings) {
+            TreeSet<Long> starts = new TreeSet<Long>();
+            for (YouSeeChannelMapping mapping : mappings) {
+                starts.add(getFrom(mapping));
+                if (getTo(mapping) != Long.MAX_VALUE) {
+                    starts.add(getTo(mapping) + 1);
+                }
+            }
+            periodStarts = new long[starts.size()];
+            periodMappings = new ArrayList<List<YouSeeChannelMapping>>(starts.size());
+            int period = 0;
+            for (Long start : starts) {
+                periodStarts[period++] = start;
+                List<YouSeeChannelMapping> validMappings = new ArrayList<YouSeeChannelMapping>();
+                for (YouSeeChannelMapping mapping : mappings) {
+                    if (getFrom(mapping) <= start && start <= getTo(mapping)) {
+                        validMappings.add(mapping);
+                    }
+                }
+                periodMappings.add(validMappings);
+            }
+        }
+
+        List<YouSeeChannelMapping> getMappings(long time) {
+            int position = Arrays.binarySearch(periodStarts, time);
+            int period = position >= 0 ? position : -position - 2;
+            if (period < 0) {
+                return Collections.emptyList();
+            }
+            return periodMappings.get(period);
+        }
+
+        private static long getFrom(YouSeeChannelMapping mapping) {
+            return mapping.getFromDate() == null ? Long.MIN_VALUE : mapping.getFromDate().getTime();
+        }
+
+        private static long getTo(YouSeeChannelMapping mapping) {
+            return mapping.getToDate() == null ? Long.MAX_VALUE : mapping.getToDate().getTime();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Properties;
+
+/**
+ * The share of the channels handled by one of several initiators splitting the work between them, set by
+ * ingest.shard.index and ingest.shard.count. Without them, a single initiator handles all channels.
+ *
+ * A channel belongs to the shard with the highest hash of the channel and the shard (rendezvous hashing), so
+ * changing the number of shards only moves the channels of the shards added or removed. All requests of a channel
+ * belong to the same shard, and as files are per channel, the shards write disjoint sets of downloads.
+ */
+final class ChannelShard {
+
+    static final String SHARD_INDEX_KEY = "ingest.shard.index";
+    static final String SHARD_COUNT_KEY = "ingest.shard.count";
+
+    private final int index;
+    private final int count;
+
+    ChannelShard(int index, int count) {
+        if (count < 1 || index < 0 || index >= count) {
+            throw new RuntimeException("Shard index must be from 0 to shard count - 1, was " + index + " of " + count);
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    static ChannelShard fromProperties(Properties properties) {
+        return new ChannelShard(Integer.parseInt(properties.getProperty(SHARD_INDEX_KEY, "0")),
+                Integer.parseInt(properties.getProperty(SHARD_COUNT_KEY, "1")));
+    }
+
+    boolean isSharded() {
+        return count > 1;
+    }
+
+    boolean owns(String sbChannelId) {
+        return getShard(sbChannelId, count) == index;
+    }
+
+    /**
+     * @return the path of a file of this shard, eg. the run checkpoint, so shards sharing a property file do not
+     * share files
+     */
+    String getFilePath(String path) {
+        return isSharded() ? path + ".shard-" + index + "-of-" + count : path;
+    }
+
+    /** @return the shard, from 0 to count - 1, of the channel */
+    static int getShard(String sbChannelId, int count) {
+        long channelHash = 0xcbf29ce484222325L;
+        for (int i = 0; i < sbChannelId.length(); i++) {
+            channelHash = (channelHash ^ sbChannelId.charAt(i)) * 0x100000001b3L;
+        }
+        int shard = 0;
+        long highestWeight = Long.MIN_VALUE;
+        for (int candidate = 0; candidate < count; candidate++) {
+            long weight = mix(channelHash + candidate * 0x9e3779b97f4a7c15L);
+            if (weight > highestWeight) {
+                highestWeight = weight;
+                shard = candidate;
+            }
+        }
+        return shard;
+    }
+
+    /** The finalizer of MurmurHash3, spreading every bit of the input over the output. */
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xff51afd7ed558ccdL;
+        value = (value ^ (value >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + " of " + count;
+    }
+}
@@ -0,0 +1,123 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.joda.time.DateTime;
+
+/**
+ * Orders the downloads of a run by how soon they must be downloaded, used when output.order is deadline. A file
+ * expires at YouSee yousee.recordings.days.to.keep days after it starts, and its slack is the time left before that,
+ * less output.deadline.margin.hours for downloading it. The margin defaults to expected.duration.of.file.ingest.process.
+ *
+ * Files are ordered by least slack first, so files about to expire go first, but files with no slack left go last,
+ * as they would most likely expire while being downloaded and only hold back files that can still be saved. Files of
+ * channels given in output.priority.channel.hours, eg. dr1:24,tv2:12, are ordered as if they had that many hours less
+ * slack. Files of equal slack are ordered by fewer retries first, so a file failing again and again does not hold
+ * back the others.
+ *
+ * The work flow state monitor only gives the last state of a file, so the retries of a file are counted as one if
+ * its ingest has been initiated before, and zero otherwise.
+ */
+final class DownloadPriority implements Comparator<MediaFileIngestOutputParameters> {
+
+    static final String OUTPUT_ORDER_KEY = "output.order";
+    static final String OUTPUT_ORDER_START = "start";
+    static final String OUTPUT_ORDER_DEADLINE = "deadline";
+    private static final String OUTPUT_DEADLINE_MARGIN_HOURS_KEY = "output.deadline.margin.hours";
+    private static final String OUTPUT_PRIORITY_CHANNEL_HOURS_KEY = "output.priority.channel.hours";
+    private static final String EXPECTED_DURATION_OF_FILE_INGEST_PROCESS_KEY = "expected.duration.of.file.ingest.process";
+    private static final long MILLIS_PER_HOUR = 60 * 60 * 1000L;
+
+    private final int daysYouSeeKeepsRecordings;
+    private final long marginMillis;
+    private final Map<String, Long> channelPriorityMillis = new HashMap<String, Long>();
+    private final long nowMillis;
+    private final Set<String> retriedFiles = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    /**
+     * @param daysYouSeeKeepsRecordings days after their start that files expire
+     * @param now the time the downloads are ordered at
+     */
+    DownloadPriority(Properties properties, int daysYouSeeKeepsRecordings, DateTime now) {
+        this.daysYouSeeKeepsRecordings = daysYouSeeKeepsRecordings;
+        this.marginMillis = MILLIS_PER_HOUR * Integer.parseInt(properties.getProperty(OUTPUT_DEADLINE_MARGIN_HOURS_KEY,
+                properties.getProperty(EXPECTED_DURATION_OF_FILE_INGEST_PROCESS_KEY, "0")));
+        String channelHours = properties.getProperty(OUTPUT_PRIORITY_CHANNEL_HOURS_KEY, "").trim();
+        if (!channelHours.isEmpty()) {
+            for (String channelHour : channelHours.split(",")) {
+                String[] channelAndHours = channelHour.trim().split(":");
+                if (channelAndHours.length != 2) {
+                    throw new RuntimeException("Property " + OUTPUT_PRIORITY_CHANNEL_HOURS_KEY
+                            + " must be given as <channel>:<hours>,..., was: " + channelHours);
+                }
+                channelPriorityMillis.put(channelAndHours[0].trim(), MILLIS_PER_HOUR * Integer.parseInt(channelAndHours[1].trim()));
+            }
+        }
+        this.nowMillis = now.getMillis();
+    }
+
+    /** @return true if output.order is deadline, and the downloads should be ordered by their priority */
+    static boolean isEnabled(Properties properties) {
+        String outputOrder = properties.getProperty(OUTPUT_ORDER_KEY, OUTPUT_ORDER_START);
+        if (!outputOrder.equals(OUTPUT_ORDER_START) && !outputOrder.equals(OUTPUT_ORDER_DEADLINE)) {
+            throw new RuntimeException("Property " + OUTPUT_ORDER_KEY + " must be " + OUTPUT_ORDER_START + " or "
+                    + OUTPUT_ORDER_DEADLINE + ", was: " + outputOrder);
+        }
+        return outputOrder.equals(OUTPUT_ORDER_DEADLINE);
+    }
+
+    /** Records that ingest of the file has been initiated before. May be called by several threads at a time. */
+    void addRetried(String fileNameSB) {
+        retriedFiles.add(fileNameSB);
+    }
+
+    int getRetries(MediaFileIngestOutputParameters fileIngest) {
+        return retriedFiles.contains(fileIngest.getFileNameSB()) ? 1 : 0;
+    }
+
+    /** @return the time left to download the file before it expires, in milliseconds, negative if there is none */
+    long getSlackMillis(MediaFileIngestOutputParameters fileIngest) {
+        long expiryMillis = fileIngest.getStartDate().plusDays(daysYouSeeKeepsRecordings).getMillis();
+        return expiryMillis - marginMillis - nowMillis;
+    }
+
+    @Override
+    public int compare(MediaFileIngestOutputParameters file1, MediaFileIngestOutputParameters file2) {
+        long slack1 = getSlackMillis(file1);
+        long slack2 = getSlackMillis(file2);
+        boolean saveable1 = slack1 >= 0;
+        boolean saveable2 = slack2 >= 0;
+        if (saveable1 != saveable2) {
+            return saveable1 ? -1 : 1;
+        }
+        if (!saveable1) {
+            // Of the files likely to expire, the files with the most time left have the best chance
+            return compareThen(slack2, slack1, file1, file2);
+        }
+        return compareThen(slack1 - getChannelPriorityMillis(file1), slack2 - getChannelPriorityMillis(file2), file1, file2);
+    }
+
+    private int compareThen(long value1, long value2, MediaFileIngestOutputParameters file1, MediaFileIngestOutputParameters file2) {
+        if (value1 != value2) {
+            return value1 < value2 ? -1 : 1;
+        }
+        int retries1 = getRetries(file1);
+        int retries2 = getRetries(file2);
+        if (retries1 != retries2) {
+            return retries1 < retries2 ? -1 : 1;
+        }
+        int order = file1.compareTo(file2);
+        return order != 0 ? order : file1.getFileNameSB().compareTo(file2.getFileNameSB());
+    }
+
+    private long getChannelPriorityMillis(MediaFileIngestOutputParameters fileIngest) {
+        Long priorityMillis = channelPriorityMillis.get(fileIngest.getChannelIDSB());
+        return priorityMillis == null ? 0 : priorityMillis;
+    }
+}
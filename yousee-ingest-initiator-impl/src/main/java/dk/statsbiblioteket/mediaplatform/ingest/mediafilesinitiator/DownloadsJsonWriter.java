@@ -0,0 +1,140 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+
+/**
+ * Writes the downloads document read by the ingest workflow, one download at a time, to a UTF-8 stream.
+ *
+ * Layout of the document:
+ * <pre>
+ *  {
+ *      "downloads":[
+ *          {
+ *             "fileID" : "...",
+ *             ...
+ *          },
+ *          ...
+ *      ]
+ *  }
+ * </pre>
+ */
+public class DownloadsJsonWriter {
+
+    private static final DateTimeFormatter outputDataDateFormatter = ISODateTimeFormat.basicDateTimeNoMillis();
+
+    private final Writer writer;
+    private boolean started = false;
+    private boolean firstEntry = true;
+    private int downloadCount = 0;
+
+    public DownloadsJsonWriter(OutputStream outputStream) {
+        try {
+            this.writer = new BufferedWriter(new OutputStreamWriter(outputStream, "UTF-8"));
+        } catch (IOException e) {
+            throw new RuntimeException("UTF-8 not supported", e);
+        }
+    }
+
+    /** Writes one download. The start of the document is written before the first download. */
+    public void write(MediaFileIngestOutputParameters mediaFileIngestParameters) throws IOException {
+        start();
+        writer.write(firstEntry ? "\n" : ",\n");
+        firstEntry = false;
+        writer.write("         {\n");
+        writeField("fileID", mediaFileIngestParameters.getFileNameSB(), true);
+        writeField("youSeeFilename", mediaFileIngestParameters.getFileNameYouSee(), true);
+        writeField("startTime", outputDataDateFormatter.print(mediaFileIngestParameters.getStartDate()), true);
+        writeField("endTime", outputDataDateFormatter.print(mediaFileIngestParameters.getEndDate()), true);
+        writeField("youseeChannelID", mediaFileIngestParameters.getChannelIDYouSee(), true);
+        writeField("sbChannelID", mediaFileIngestParameters.getChannelIDSB(), false);
+        writer.write("         }");
+        downloadCount++;
+    }
+
+    /** Passes the downloads written so far on to the stream. */
+    public void flush() throws IOException {
+        writer.flush();
+    }
+
+    /** Writes the end of the document and closes the stream. */
+    public void close() throws IOException {
+        start();
+        writer.write("\n"
+                + "     ]\n"
+                + " }\n");
+        writer.close();
+    }
+
+    /**
+     * Passes the downloads written so far on to the stream and closes it, without writing the end of the document,
+     * so a reader can tell the document is incomplete.
+     */
+    public void closeIncomplete() throws IOException {
+        writer.close();
+    }
+
+    public int getDownloadCount() {
+        return downloadCount;
+    }
+
+    private void start() throws IOException {
+        if (!started) {
+            writer.write(" {\n"
+                    + "     \"downloads\":[");
+            started = true;
+        }
+    }
+
+    private void writeField(String name, String value, boolean more) throws IOException {
+        writer.write("            \"");
+        writer.write(name);
+        writer.write("\" : \"");
+        writeEscaped(value);
+        writer.write(more ? "\",\n" : "\"\n");
+    }
+
+    private void writeEscaped(String value) throws IOException {
+        if (value == null) {
+            writer.write("null");
+            return;
+        }
+        // Unescaped runs are written in one call, as every call to the writer takes a lock
+        int length = value.length();
+        int runStart = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\') {
+                continue;
+            }
+            writer.write(value, runStart, i - runStart);
+            runStart = i + 1;
+            switch (c) {
+            case '"':
+                writer.write("\\\"");
+                break;
+            case '\\':
+                writer.write("\\\\");
+                break;
+            case '\n':
+                writer.write("\\n");
+                break;
+            case '\r':
+                writer.write("\\r");
+                break;
+            case '\t':
+                writer.write("\\t");
+                break;
+            default:
+                writer.write(String.format("\\u%04x", (int) c));
+            }
+        }
+        writer.write(value, runStart, length - runStart);
+    }
+}
@@ -0,0 +1,176 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.chrono.ISOChronology;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Builds the YouSee filename and the SB file id of a file, see
+ * {@link IngestMediaFilesInitiator#getYouSeeFilename(DateTime, DateTime, String)} and
+ * {@link IngestMediaFilesInitiator#getSBFileID(String, DateTime, DateTime)}.
+ *
+ * The names are written into a reusable char buffer, with the channel parts written once per channel and
+ * the dates written field by field, so only the resulting string is allocated. Dates outside the years
+ * 1 to 9999, or not in the ISO chronology, are printed with the Joda formatters as before.
+ *
+ * An encoder is not thread safe.
+ */
+class FileNameEncoder {
+
+    private static final DateTimeFormatter youseeFilenameDateFormatter = DateTimeFormat.forPattern("yyyyMMdd_HHmmss").withZoneUTC();
+    private static final DateTimeFormatter sbFilenameDateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd-HH.mm.ss");
+    private static final long MIN_MILLIS = new DateTime(1, 1, 2, 0, 0, 0, 0, ISOChronology.getInstanceUTC()).getMillis();
+    private static final long MAX_MILLIS = new DateTime(9999, 12, 31, 0, 0, 0, 0, ISOChronology.getInstanceUTC()).getMillis();
+
+    private final Map<String, char[]> youSeePrefixes = new HashMap<String, char[]>();
+    private final Map<String, char[]> sbPrefixes = new HashMap<String, char[]>();
+    private char[] buffer = new char[128];
+    private int length;
+
+    /** @return "&lt;YouSee_channel_id&gt;_&lt;start_date&gt;_&lt;end_date&gt;.mux", with the dates in UTC */
+    String getYouSeeFilename(DateTime startDate, DateTime endDate, String youseeChannelID) {
+        if (!isEncodable(startDate) || !isEncodable(endDate)) {
+            return youseeChannelID + "_" + youseeFilenameDateFormatter.print(startDate) + "_"
+                    + youseeFilenameDateFormatter.print(endDate) + ".mux";
+        }
+        length = 0;
+        append(getPrefix(youSeePrefixes, youseeChannelID, "_"));
+        appendYouSeeDate(startDate.getMillis());
+        append('_');
+        appendYouSeeDate(endDate.getMillis());
+        append(".mux");
+        return new String(buffer, 0, length);
+    }
+
+    /**
+     * @return "&lt;channel_id&gt;_teracom.&lt;start_seconds&gt;-&lt;start_date&gt;_&lt;end_seconds&gt;-&lt;end_date&gt;_teracom.ts",
+     * with the dates in the time zones of the given dates
+     */
+    String getSBFileID(String sbChannelID, DateTime startDate, DateTime endDate) {
+        if (!isEncodable(startDate) || !isEncodable(endDate)) {
+            return sbChannelID + "_teracom." + startDate.getMillis() / 1000 + "-" + sbFilenameDateFormatter.print(startDate)
+                    + "_" + endDate.getMillis() / 1000 + "-" + sbFilenameDateFormatter.print(endDate) + "_teracom.ts";
+        }
+        length = 0;
+        append(getPrefix(sbPrefixes, sbChannelID, "_teracom."));
+        appendSBDate(startDate);
+        append('_');
+        appendSBDate(endDate);
+        append("_teracom.ts");
+        return new String(buffer, 0, length);
+    }
+
+    private static boolean isEncodable(DateTime date) {
+        return date.getMillis() > MIN_MILLIS && date.getMillis() < MAX_MILLIS
+                && date.getChronology() == ISOChronology.getInstance(date.getZone());
+    }
+
+    private static char[] getPrefix(Map<String, char[]> prefixes, String channelID, String separator) {
+        char[] prefix = prefixes.get(channelID);
+        if (prefix == null) {
+            prefix = (channelID + separator).toCharArray();
+            prefixes.put(channelID, prefix);
+        }
+        return prefix;
+    }
+
+    /** Appends yyyyMMdd_HHmmss in UTC. */
+    private void appendYouSeeDate(long millis) {
+        appendDate(millis, "", "_", "");
+    }
+
+    /** Appends &lt;seconds since 1970&gt;-yyyy-MM-dd-HH.mm.ss in the time zone of the date. */
+    private void appendSBDate(DateTime date) {
+        long millis = date.getMillis();
+        appendNumber(millis / 1000);
+        append('-');
+        appendDate(millis + date.getZone().getOffset(millis), "-", "-", ".");
+    }
+
+    private void appendDate(long localMillis, String dateSeparator, String dateTimeSeparator, String timeSeparator) {
+        long days = floorDiv(localMillis, DateTimeConstants.MILLIS_PER_DAY);
+        int millisOfDay = (int) (localMillis - days * DateTimeConstants.MILLIS_PER_DAY);
+        // Civil date of a day since 1970-01-01, from http://howardhinnant.github.io/date_algorithms.html
+        long shiftedDays = days + 719468;
+        long era = floorDiv(shiftedDays, 146097);
+        int dayOfEra = (int) (shiftedDays - era * 146097);
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int shiftedMonth = (5 * dayOfYear + 2) / 153;
+        int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+        int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+        int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        appendDigits(year, 4);
+        append(dateSeparator);
+        appendDigits(month, 2);
+        append(dateSeparator);
+        appendDigits(day, 2);
+        append(dateTimeSeparator);
+        appendDigits(millisOfDay / DateTimeConstants.MILLIS_PER_HOUR, 2);
+        append(timeSeparator);
+        appendDigits(millisOfDay / DateTimeConstants.MILLIS_PER_MINUTE % 60, 2);
+        append(timeSeparator);
+        appendDigits(millisOfDay / DateTimeConstants.MILLIS_PER_SECOND % 60, 2);
+    }
+
+    private static long floorDiv(long dividend, long divisor) {
+        long quotient = dividend / divisor;
+        return quotient * divisor > dividend ? quotient - 1 : quotient;
+    }
+
+    private void appendDigits(int value, int width) {
+        ensureCapacity(width);
+        for (int i = length + width - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += width;
+    }
+
+    private void appendNumber(long value) {
+        if (value < 0) {
+            append('-');
+            value = -value;
+        }
+        int width = 1;
+        for (long rest = value / 10; rest > 0; rest /= 10) {
+            width++;
+        }
+        ensureCapacity(width);
+        for (int i = length + width - 1; i >= length; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        length += width;
+    }
+
+    private void append(char c) {
+        ensureCapacity(1);
+        buffer[length++] = c;
+    }
+
+    private void append(String s) {
+        ensureCapacity(s.length());
+        s.getChars(0, s.length(), buffer, length);
+        length += s.length();
+    }
+
+    private void append(char[] chars) {
+        ensureCapacity(chars.length);
+        System.arraycopy(chars, 0, buffer, length, chars.length);
+        length += chars.length;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            char[] newBuffer = new char[Math.max(buffer.length * 2, length + extra)];
+            System.arraycopy(buffer, 0, newBuffer, 0, length);
+            buffer = newBuffer;
+        }
+    }
+}
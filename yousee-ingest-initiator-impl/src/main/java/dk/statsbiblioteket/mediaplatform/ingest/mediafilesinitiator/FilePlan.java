@@ -0,0 +1,149 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+import org.joda.time.DateTime;
+
+/**
+ * Compact set of the files planned for ingest.
+ *
+ * Each file is kept as a single long: the start of the file in minutes since the epoch in the high bits,
+ * and the index of its pair of SB and YouSee channel ids in the low bits. Sorting the longs therefore
+ * sorts the files by start time. The {@link MediaFileIngestOutputParameters} of a file, including its
+ * filenames, are only built when the file is read from {@link #toList()}.
+ */
+class FilePlan {
+
+    private static final int CHANNEL_BITS = 20;
+    private static final long CHANNEL_MASK = (1L << CHANNEL_BITS) - 1;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+    private final IngestMediaFilesInitiator initiator;
+    private final Channels channels;
+    private final LongHashSet files = new LongHashSet();
+
+    /** Creates an empty plan, building the filenames of its files with the given initiator. */
+    FilePlan(IngestMediaFilesInitiator initiator) {
+        this.initiator = initiator;
+        this.channels = new Channels();
+    }
+
+    /** Creates an empty plan sharing the channels of another plan, so the keys of the two plans are comparable. */
+    FilePlan(FilePlan other) {
+        this.initiator = other.initiator;
+        this.channels = other.channels;
+    }
+
+    /** Adds the one hour file of the channels starting at the given time, unless it is already planned. */
+    void add(String channelIDSB, String channelIDYouSee, DateTime startDate) {
+        add(channelIDSB, channelIDYouSee, startDate.getMillis());
+    }
+
+    /** Adds the one hour file of the channels starting at the given instant, unless it is already planned. */
+    void add(String channelIDSB, String channelIDYouSee, long startMillis) {
+        if (startMillis % MILLIS_PER_MINUTE != 0) {
+            throw new RuntimeException("Files must start on a whole minute: " + new DateTime(startMillis));
+        }
+        files.add(((startMillis / MILLIS_PER_MINUTE) << CHANNEL_BITS) | channels.getIndex(channelIDSB, channelIDYouSee));
+    }
+
+    boolean contains(long file) {
+        return files.contains(file);
+    }
+
+    int size() {
+        return files.size();
+    }
+
+    /** @return the files sorted by start time */
+    long[] getSortedFiles() {
+        return files.toSortedArray();
+    }
+
+    /** @return the files sorted by start time, built as they are read */
+    List<MediaFileIngestOutputParameters> toList() {
+        return toList(getSortedFiles(), 0, size());
+    }
+
+    /** @return files from a sorted array of the files of this plan, built as they are read */
+    List<MediaFileIngestOutputParameters> toList(long[] sortedFiles, int from, int to) {
+        return new FileList(sortedFiles, from, to);
+    }
+
+    MediaFileIngestOutputParameters getOutputParameters(long file) {
+        int channelIndex = (int) (file & CHANNEL_MASK);
+        String channelIDSB = channels.channelIDsSB.get(channelIndex);
+        String channelIDYouSee = channels.channelIDsYouSee.get(channelIndex);
+        DateTime startDate = new DateTime((file >> CHANNEL_BITS) * MILLIS_PER_MINUTE);
+        DateTime endDate = startDate.plusHours(1);
+        return new MediaFileIngestOutputParameters(
+                initiator.getSBFileID(channelIDSB, startDate, endDate),
+                initiator.getYouSeeFilename(startDate, endDate, channelIDYouSee),
+                channelIDSB, channelIDYouSee, startDate, endDate);
+    }
+
+    /** The pairs of SB and YouSee channel ids of the planned files, each given an index. */
+    private static class Channels {
+
+        private final Map<String, Integer> indexes = new HashMap<String, Integer>();
+        private final List<String> channelIDsSB = new ArrayList<String>();
+        private final List<String> channelIDsYouSee = new ArrayList<String>();
+        private int lastIndex = -1;
+
+        int getIndex(String channelIDSB, String channelIDYouSee) {
+            // Files are mostly added one channel at a time
+            if (lastIndex >= 0 && equals(channelIDsSB.get(lastIndex), channelIDSB)
+                    && equals(channelIDsYouSee.get(lastIndex), channelIDYouSee)) {
+                return lastIndex;
+            }
+            String key = channelIDSB + "\n" + channelIDYouSee;
+            Integer index = indexes.get(key);
+            if (index == null) {
+                if (channelIDsSB.size() > CHANNEL_MASK) {
+                    throw new RuntimeException("Too many channels in the plan: " + channelIDsSB.size());
+                }
+                index = channelIDsSB.size();
+                indexes.put(key, index);
+                channelIDsSB.add(channelIDSB);
+                channelIDsYouSee.add(channelIDYouSee);
+            }
+            lastIndex = index;
+            return index;
+        }
+
+        private static boolean equals(String a, String b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+
+    private class FileList extends AbstractList<MediaFileIngestOutputParameters> implements RandomAccess {
+
+        private final long[] sortedFiles;
+        private final int from;
+        private final int to;
+
+        FileList(long[] sortedFiles, int from, int to) {
+            this.sortedFiles = sortedFiles;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        public MediaFileIngestOutputParameters get(int index) {
+            if (index < 0 || index >= to - from) {
+                throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size());
+            }
+            return getOutputParameters(sortedFiles[from + index]);
+        }
+
+        @Override
+        public int size() {
+            return to - from;
+        }
+    }
+}
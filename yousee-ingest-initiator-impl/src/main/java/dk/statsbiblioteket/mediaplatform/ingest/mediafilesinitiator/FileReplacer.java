@@ -0,0 +1,57 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Replaces a file by writing the new content to a temporary file next to it, the name of the file with .tmp appended,
+ * and renaming that to the file. A write that fails leaves the old file as it was.
+ *
+ * Where rename replaces an existing file, as on Linux, the file is replaced in one step, so a reader sees either the old
+ * or the new content. Where it does not, as on Windows, the old file is deleted before the rename, so for a moment there
+ * is no file at all, and if the rename then fails, the new content is only in the temporary file. Readers must handle
+ * a missing file.
+ */
+final class FileReplacer {
+
+    /** The new content of a file */
+    interface Content {
+
+        /** Writes the content to the stream, which is closed by the caller */
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private FileReplacer() {
+    }
+
+    /**
+     * @throws IOException if the content could not be written, or the file not replaced. The temporary file is deleted
+     * if writing fails, also with a runtime exception.
+     */
+    static void replace(File file, Content content) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                content.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tempFile.delete();
+            throw new IOException("Unable to write " + tempFile.getAbsolutePath() + ": " + e, e);
+        } catch (RuntimeException e) {
+            tempFile.delete();
+            throw e;
+        }
+        if (!tempFile.renameTo(file)) {
+            // Windows does not replace existing files on rename
+            file.delete();
+            if (!tempFile.renameTo(file)) {
+                throw new IOException("Unable to replace " + file.getAbsolutePath() + " with " + tempFile.getAbsolutePath());
+            }
+        }
+    }
+}
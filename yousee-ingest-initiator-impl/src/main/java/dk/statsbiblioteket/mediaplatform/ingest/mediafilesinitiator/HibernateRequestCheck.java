@@ -0,0 +1,157 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+
+/**
+ * Checks the valid requests loaded without Hibernate, by a {@link JdbcChannelArchiveRequestService} or a
+ * {@link SnapshotChannelArchiveRequestService}, against the valid requests of the Hibernate service, field by field
+ * including whether they are enabled and why not. Those requests are validated by calling the validator of the
+ * requester directly, see {@link JdbcChannelArchiveRequestService#validate(List)}, which must agree with the validation
+ * done by the Hibernate service.
+ *
+ * The requests are checked until they have once been the same, after which the Hibernate service is not used. If they
+ * differ, the difference is logged as an error, and the requests of the Hibernate service are used from then on. If
+ * the Hibernate service fails, the requests are used unchecked and checked on the next call.
+ */
+class HibernateRequestCheck {
+
+    static final String JDBC_LOADER_CHECK_KEY = "jdbc.loader.check.hibernate";
+    private static final Logger log = Logger.getLogger(HibernateRequestCheck.class);
+
+    private final ChannelArchiveRequestServiceIF hibernateService;
+    private volatile boolean checked;
+    private volatile boolean differs;
+
+    HibernateRequestCheck(ChannelArchiveRequestServiceIF hibernateService) {
+        this.hibernateService = hibernateService;
+    }
+
+    /**
+     * @return true if jdbc.loader.check.hibernate is true, the default, and the requests loaded without Hibernate
+     * should be checked, which is not possible when planning offline
+     */
+    static boolean isEnabled(Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty(JDBC_LOADER_CHECK_KEY, "true")) && !PlanSnapshotStore.isOffline(properties);
+    }
+
+    /**
+     * @param caRequests the valid requests of the period, loaded without Hibernate
+     * @return the requests given, or the requests of the Hibernate service if they have differed
+     */
+    List<ChannelArchiveRequest> check(List<ChannelArchiveRequest> caRequests, Date fromDate, Date toDate) throws ServiceException {
+        if (differs) {
+            return hibernateService.getValidRequests(fromDate, toDate);
+        }
+        if (checked) {
+            return caRequests;
+        }
+        List<ChannelArchiveRequest> hibernateRequests;
+        try {
+            hibernateRequests = hibernateService.getValidRequests(fromDate, toDate);
+        } catch (Exception e) {
+            log.warn("Unable to check the requests from " + fromDate + " to " + toDate + " against Hibernate, checked next time: " + e);
+            return caRequests;
+        }
+        String difference = getDifference(hibernateRequests, caRequests);
+        if (difference != null) {
+            log.error("The requests from " + fromDate + " to " + toDate + " loaded without Hibernate differ from the requests"
+                    + " of Hibernate, which are used from now on: " + difference);
+            differs = true;
+            return hibernateRequests;
+        }
+        log.info("Checked " + caRequests.size() + " requests against Hibernate");
+        checked = true;
+        return caRequests;
+    }
+
+    boolean differs() {
+        return differs;
+    }
+
+    /** @return the first difference between the requests, in any order, or null if they are the same */
+    static String getDifference(List<ChannelArchiveRequest> expected, List<ChannelArchiveRequest> actual) {
+        if (expected.size() != actual.size()) {
+            return "expected " + expected.size() + " requests, was " + actual.size();
+        }
+        List<ChannelArchiveRequest> sortedExpected = sortById(expected);
+        List<ChannelArchiveRequest> sortedActual = sortById(actual);
+        for (int i = 0; i < sortedExpected.size(); i++) {
+            ChannelArchiveRequest expectedRequest = sortedExpected.get(i);
+            ChannelArchiveRequest actualRequest = sortedActual.get(i);
+            String field = getDifferentField(expectedRequest, actualRequest);
+            if (field != null) {
+                return "request " + expectedRequest.getId() + " differs in " + field + ", expected " + expectedRequest
+                        + " enabled " + expectedRequest.isEnabled() + " cause " + expectedRequest.getCause() + ", was "
+                        + actualRequest + " enabled " + actualRequest.isEnabled() + " cause " + actualRequest.getCause();
+            }
+        }
+        return null;
+    }
+
+    private static String getDifferentField(ChannelArchiveRequest expected, ChannelArchiveRequest actual) {
+        if (!equal(expected.getId(), actual.getId())) {
+            return "id";
+        }
+        if (!equal(expected.getsBChannelId(), actual.getsBChannelId())) {
+            return "sBChannelId";
+        }
+        if (expected.getWeekdayCoverage() != actual.getWeekdayCoverage()) {
+            return "weekdayCoverage";
+        }
+        if (!equalMillis(expected.getFromTime(), actual.getFromTime())) {
+            return "fromTime";
+        }
+        if (!equalMillis(expected.getToTime(), actual.getToTime())) {
+            return "toTime";
+        }
+        if (!equalMillis(expected.getFromDate(), actual.getFromDate())) {
+            return "fromDate";
+        }
+        if (!equalMillis(expected.getToDate(), actual.getToDate())) {
+            return "toDate";
+        }
+        if (expected.isEnabled() != actual.isEnabled()) {
+            return "enabled";
+        }
+        if (!equal(expected.getCause(), actual.getCause())) {
+            return "cause";
+        }
+        return null;
+    }
+
+    private static boolean equal(Object expected, Object actual) {
+        return expected == null ? actual == null : expected.equals(actual);
+    }
+
+    /** Dates are compared by their time only, as Hibernate may give a Timestamp where JDBC gives a Date */
+    private static boolean equalMillis(Date expected, Date actual) {
+        return expected == null ? actual == null : actual != null && expected.getTime() == actual.getTime();
+    }
+
+    private static List<ChannelArchiveRequest> sortById(List<ChannelArchiveRequest> caRequests) {
+        List<ChannelArchiveRequest> sorted = new ArrayList<ChannelArchiveRequest>(caRequests);
+        Collections.sort(sorted, new Comparator<ChannelArchiveRequest>() {
+            @Override
+            public int compare(ChannelArchiveRequest caRequest1, ChannelArchiveRequest caRequest2) {
+                Long id1 = caRequest1.getId();
+                Long id2 = caRequest2.getId();
+                if (id1 == null || id2 == null) {
+                    return id1 == null ? (id2 == null ? 0 : -1) : 1;
+                }
+                return id1.compareTo(id2);
+            }
+        });
+        return sorted;
+    }
+}
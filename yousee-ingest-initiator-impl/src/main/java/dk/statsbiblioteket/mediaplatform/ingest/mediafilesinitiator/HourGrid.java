@@ -0,0 +1,108 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+
+/**
+ * Table of the instants of the local whole hours of the days in a planning window, shared by all requests
+ * expanded in the window.
+ *
+ * A local hour skipped by a DST transition starts at the following local hour, and a local hour occurring
+ * twice starts at its first occurrence, so the hours of a request are found by array lookups. On the few
+ * days near a DST transition, the end of a request is found as it was before the table, from local times.
+ */
+class HourGrid {
+
+    private static final int HOURS_PER_DAY = 24;
+    private static final long MILLIS_PER_MINUTE = DateTimeConstants.MILLIS_PER_MINUTE;
+    private static final long MILLIS_PER_DAY = DateTimeConstants.MILLIS_PER_DAY;
+
+    private final DateTimeZone zone;
+    private final LocalDate firstDay;
+    private final long firstEpochDay;
+    private final int dayCount;
+    /** Start of each local hour, indexed by day * 24 + hour */
+    private final long[] hourStarts;
+    /** Days where a DST transition takes place on the day, or the day before or after */
+    private final boolean[] nearTransition;
+
+    /**
+     * @param zone time zone of the local hours
+     * @param firstDay first day of the window
+     * @param dayCount number of days in the window. Requests passing midnight use the day after their day.
+     */
+    HourGrid(DateTimeZone zone, LocalDate firstDay, int dayCount) {
+        this.zone = zone;
+        this.firstDay = firstDay;
+        this.firstEpochDay = firstDay.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() / MILLIS_PER_DAY;
+        this.dayCount = dayCount;
+        this.hourStarts = new long[dayCount * HOURS_PER_DAY];
+        this.nearTransition = new boolean[dayCount];
+        for (int day = 0; day < dayCount; day++) {
+            LocalDate date = firstDay.plusDays(day);
+            for (int hour = 0; hour < HOURS_PER_DAY; hour++) {
+                LocalDateTime local = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), hour, 0);
+                if (zone.isLocalDateTimeGap(local)) {
+                    local = local.plusHours(1);
+                }
+                hourStarts[day * HOURS_PER_DAY + hour] = local.toDateTime(zone).getMillis();
+            }
+            long dayStart = hourStarts[day * HOURS_PER_DAY];
+            long nextTransition = zone.nextTransition(dayStart - 2 * MILLIS_PER_DAY);
+            // Zones without further transitions return the instant given
+            nearTransition[day] = nextTransition != dayStart - 2 * MILLIS_PER_DAY
+                    && nextTransition < dayStart + 3 * MILLIS_PER_DAY;
+        }
+    }
+
+    /** @return the index in the window of the local day of the given date */
+    int getDayIndex(DateTime day) {
+        long millis = day.getMillis();
+        long localMillis = millis + day.getZone().getOffset(millis);
+        long epochDay = localMillis >= 0 ? localMillis / MILLIS_PER_DAY : (localMillis + 1) / MILLIS_PER_DAY - 1;
+        long dayIndex = epochDay - firstEpochDay;
+        if (dayIndex < 0 || dayIndex >= dayCount) {
+            throw new RuntimeException("Day " + day + " is outside the hour grid of " + dayCount + " days from " + firstDay);
+        }
+        return (int) dayIndex;
+    }
+
+    /** @return the start of the first file of a request from fromHour on the day */
+    long getStart(int dayIndex, int fromHour) {
+        return hourStarts[dayIndex * HOURS_PER_DAY + fromHour];
+    }
+
+    /**
+     * @return the end of the last file of a request from fromHour to toHour:toMinute on the day. If the end is
+     * not after the start, the request passes midnight and ends on the day after.
+     */
+    long getEnd(int dayIndex, int fromHour, int toHour, int toMinute) {
+        if (nearTransition[dayIndex]) {
+            return getEndFromLocalTime(dayIndex, fromHour, toHour, toMinute);
+        }
+        long start = getStart(dayIndex, fromHour);
+        long end = hourStarts[dayIndex * HOURS_PER_DAY + toHour] + toMinute * MILLIS_PER_MINUTE;
+        if (end <= start) {
+            end = hourStarts[(dayIndex + 1) * HOURS_PER_DAY + toHour] + toMinute * MILLIS_PER_MINUTE;
+        }
+        return end;
+    }
+
+    private long getEndFromLocalTime(int dayIndex, int fromHour, int toHour, int toMinute) {
+        LocalDate date = firstDay.plusDays(dayIndex);
+        LocalDateTime finalDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(),
+                toHour, toMinute);
+        if (zone.isLocalDateTimeGap(finalDateLocal)) {
+            finalDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(),
+                    toHour + 1, toMinute);
+        }
+        DateTime finalDate = finalDateLocal.toDateTime(zone);
+        if (finalDate.getMillis() <= getStart(dayIndex, fromHour)) {
+            finalDate = finalDate.plusDays(1);
+        }
+        return finalDate.getMillis();
+    }
+}
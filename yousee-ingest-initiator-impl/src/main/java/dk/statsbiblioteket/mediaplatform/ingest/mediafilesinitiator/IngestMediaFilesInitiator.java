@@ -1,27 +1,39 @@
 package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ChannelArchivingRequesterValidator;
 import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ValidationFailure;
 import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ValidatorIF;
 import org.apache.log4j.Logger;
 import org.joda.time.DateTime;
-import org.joda.time.DateTimeConstants;
 import org.joda.time.DateTimeZone;
-import org.joda.time.LocalDateTime;
-import org.joda.time.LocalTime;
-import org.joda.time.format.DateTimeFormat;
-import org.joda.time.format.DateTimeFormatter;
-import org.joda.time.format.ISODateTimeFormat;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
 
 import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
 import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
@@ -47,10 +59,29 @@ public class IngestMediaFilesInitiator {
     private static final String WORK_FLOW_STATE_NAME_DONE_KEY = "work.flow.state.name.done";
     private static final String WORK_FLOW_STATE_NAME_STOPPED_KEY = "work.flow.state.name.stoppped";
     private static final String WORK_FLOW_STATE_NAME_RESTARTED_KEY = "work.flow.state.name.restarted";
+    private static final String WORKFLOW_STATE_MONITOR_PARALLELISM_KEY = "workflow.state.monitor.parallelism";
+    private static final String WORKFLOW_STATE_CACHE_FILE_PATH_KEY = "workflow.state.cache.file.path";
+    private static final String OUTPUT_MODE_KEY = "output.mode";
+    private static final String INGEST_CHECKPOINT_FILE_PATH_KEY = "ingest.checkpoint.file.path";
+    private static final String INGEST_FULL_SWEEP_INTERVAL_DAYS_KEY = "ingest.full.sweep.interval.days";
+    private static final String INGEST_DELTA_OVERLAP_DAYS_KEY = "ingest.delta.overlap.days";
+    private static final String METRICS_SUMMARY_FILE_PATH_KEY = "metrics.summary.file.path";
+    private static final String METRICS_PROMETHEUS_FILE_PATH_KEY = "metrics.prometheus.file.path";
+    private static final String OUTPUT_MODE_SORTED = "sorted";
+    private static final String OUTPUT_MODE_PIPELINED = "pipelined";
+    private static final int PARALLEL_FILTER_CHUNK_SIZE = 100;
+    /** Number of chunks of the pipelined ingest per filter worker that may be inferred but not yet written */
+    private static final int PIPELINE_CHUNKS_PER_WORKER = 4;
+    /** Marks the end of the chunks passed between the stages of the pipelined ingest */
+    private static final PipelineChunk END_OF_CHUNKS = new PipelineChunk(-1, Collections.<MediaFileIngestOutputParameters>emptyList());
     private static final Logger log = Logger.getLogger(IngestMediaFilesInitiator.class);;
-    private static final DateTimeFormatter youseeFilenameDateFormatter = DateTimeFormat.forPattern("yyyyMMdd_HHmmss").withZoneUTC();
-    private static final DateTimeFormatter outputDataDateFormatter = ISODateTimeFormat.basicDateTimeNoMillis();
-    private static final DateTimeFormatter sbFilenameDateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd-HH.mm.ss");
+    /** Encoders of filenames, one per thread as files are built both while filtering and while writing */
+    private static final ThreadLocal<FileNameEncoder> fileNameEncoders = new ThreadLocal<FileNameEncoder>() {
+        @Override
+        protected FileNameEncoder initialValue() {
+            return new FileNameEncoder();
+        }
+    };
 
     private final ChannelArchiveRequestServiceIF channelArchiveRequestService;
     private final YouSeeChannelMappingServiceIF youSeeChannelMappingService;
@@ -61,11 +92,31 @@ public class IngestMediaFilesInitiator {
     private final String workFlowStateNameDone;
     private final String workFlowStateNameStopped;
     private final String workFlowStateNameRestarted;
+    private final int stateLookupParallelism;
+    private final TerminalStateCache terminalStateCache;
+    private final boolean pipelined;
+    private final RunCheckpoint runCheckpoint;
+    private final int fullSweepIntervalDays;
+    private final int deltaOverlapDays;
+    private final ChannelShard channelShard;
+    /** The facade calling the monitor, whose counters are recorded in the metrics of each run, or null if not used */
+    private final WorkFlowStateMonitorWebServiceFacade webServiceFacade;
+    private final File metricsSummaryFile;
+    private final File metricsPrometheusFile;
+    /** The properties to order the downloads of each run by, if output.order is deadline, otherwise null */
+    private final Properties downloadPriorityProperties;
+    /** The order of the downloads of the current run, or null if they are ordered by start time */
+    private volatile DownloadPriority downloadPriority;
+    /** True if the work flow states of some files of the current run could not be looked up */
+    private volatile boolean stateLookupFailed;
+    /** The metrics of the current run, or of the last run when no run is in progress */
+    private volatile RunMetrics runMetrics = new RunMetrics();
 
     public IngestMediaFilesInitiator(Properties properties, ChannelArchiveRequestServiceIF channelArchiveRequestDAO, YouSeeChannelMappingServiceIF youSeeChannelMappingService, WorkFlowStateMonitorFacade workFlowStateMonitorFacade, OutputStream outputStream) {
         this.channelArchiveRequestService = channelArchiveRequestDAO;
         this.youSeeChannelMappingService = youSeeChannelMappingService;
         this.workFlowStateMonitorFacade = workFlowStateMonitorFacade;
+        this.webServiceFacade = getWebServiceFacade(workFlowStateMonitorFacade);
         this.outputStream = outputStream;
         this.daysYouSeeKeepsRecordings = Integer.parseInt(properties.getProperty(YOUSEE_RECORDINGS_DAYS_TO_KEEP_KEY));
         this.expectedDurationOfFileIngestProcess = Integer.parseInt(properties.getProperty(EXPECTED_DURATION_OF_FILE_INGEST_PROCESS_KEY));
@@ -77,6 +128,41 @@ public class IngestMediaFilesInitiator {
                 this.workFlowStateNameRestarted == null) {
             throw new RuntimeException("A property is missing: State name");
         }
+        this.stateLookupParallelism = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_PARALLELISM_KEY, "1"));
+        this.channelShard = ChannelShard.fromProperties(properties);
+        String terminalStateCacheFilePath = properties.getProperty(WORKFLOW_STATE_CACHE_FILE_PATH_KEY);
+        if (terminalStateCacheFilePath != null) {
+            this.terminalStateCache = new TerminalStateCache(new File(channelShard.getFilePath(terminalStateCacheFilePath)));
+        } else {
+            this.terminalStateCache = null;
+        }
+        String outputMode = properties.getProperty(OUTPUT_MODE_KEY, OUTPUT_MODE_SORTED);
+        if (!outputMode.equals(OUTPUT_MODE_SORTED) && !outputMode.equals(OUTPUT_MODE_PIPELINED)) {
+            throw new RuntimeException("Property " + OUTPUT_MODE_KEY + " must be " + OUTPUT_MODE_SORTED + " or "
+                    + OUTPUT_MODE_PIPELINED + ", was: " + outputMode);
+        }
+        this.pipelined = outputMode.equals(OUTPUT_MODE_PIPELINED);
+        if (DownloadPriority.isEnabled(properties)) {
+            if (pipelined) {
+                throw new RuntimeException("Property " + DownloadPriority.OUTPUT_ORDER_KEY + " " + DownloadPriority.OUTPUT_ORDER_DEADLINE
+                        + " requires " + OUTPUT_MODE_KEY + " " + OUTPUT_MODE_SORTED);
+            }
+            this.downloadPriorityProperties = properties;
+        } else {
+            this.downloadPriorityProperties = null;
+        }
+        String runCheckpointFilePath = properties.getProperty(INGEST_CHECKPOINT_FILE_PATH_KEY);
+        if (runCheckpointFilePath != null) {
+            this.runCheckpoint = new RunCheckpoint(new File(channelShard.getFilePath(runCheckpointFilePath)));
+        } else {
+            this.runCheckpoint = null;
+        }
+        this.fullSweepIntervalDays = Integer.parseInt(properties.getProperty(INGEST_FULL_SWEEP_INTERVAL_DAYS_KEY, "7"));
+        this.deltaOverlapDays = Integer.parseInt(properties.getProperty(INGEST_DELTA_OVERLAP_DAYS_KEY, "1"));
+        String metricsSummaryFilePath = properties.getProperty(METRICS_SUMMARY_FILE_PATH_KEY);
+        this.metricsSummaryFile = metricsSummaryFilePath == null ? null : new File(channelShard.getFilePath(metricsSummaryFilePath));
+        String metricsPrometheusFilePath = properties.getProperty(METRICS_PROMETHEUS_FILE_PATH_KEY);
+        this.metricsPrometheusFile = metricsPrometheusFilePath == null ? null : new File(channelShard.getFilePath(metricsPrometheusFilePath));
     }
 
     /**
@@ -91,59 +177,259 @@ public class IngestMediaFilesInitiator {
      *   <li>Output ingest job for hver fil der ønskes ingested til stdout</li>
      * </ol>
      * 
+     * If ingest.checkpoint.file.path is set, only the days since the last run, and the whole period of requests
+     * created or changed since the last run, are examined. The whole period is examined every
+     * ingest.full.sweep.interval.days days. A run where the work flow states of some files could not be looked up
+     * is not recorded, so the next run examines the files left out again.
+     * 
+     * When the run is done, the counters and timers of its stages are logged as one line of JSON, and written to
+     * metrics.summary.file.path and, in the Prometheus text format, to metrics.prometheus.file.path if set.
+     * 
+     * The downloads are written by start time, or if output.order is deadline, by their priority, see
+     * {@link DownloadPriority}.
      * 
      * @param dateOfIngest date and time when the process was started
      */
     public void initiateIngest(DateTime dateOfIngest) {
+        initiateIngest(dateOfIngest, outputStream);
+    }
+
+    /**
+     * Initiates ingest as {@link #initiateIngest(DateTime)}, writing the downloads to the given stream instead of the
+     * stream of the initiator. The stream is closed when the downloads are written.
+     *
+     * @param dateOfIngest date and time when the process was started
+     * @param outputStream where the downloads are written
+     */
+    public void initiateIngest(DateTime dateOfIngest, OutputStream outputStream) {
+        initiateIngest(dateOfIngest, dateOfIngest, outputStream);
+    }
+
+    /**
+     * Initiates ingest for each date from the first to the last date of ingest, both included, in one run. The
+     * periods of the dates are examined as one period, so each file is inferred and has its state looked up once,
+     * and is written once. The downloads are the downloads of the dates combined, sorted as for a single date.
+     *
+     * @param firstDateOfIngest first date to initiate ingest for
+     * @param lastDateOfIngest last date to initiate ingest for, the date the run is recorded as made on
+     * @param outputStream where the downloads are written
+     */
+    public void initiateIngest(DateTime firstDateOfIngest, DateTime lastDateOfIngest, OutputStream outputStream) {
+        if (lastDateOfIngest.isBefore(firstDateOfIngest)) {
+            throw new RuntimeException("Last date of ingest " + lastDateOfIngest + " is before first date " + firstDateOfIngest);
+        }
+        DateTime dateOfIngest = lastDateOfIngest;
+        RunMetrics metrics = new RunMetrics();
+        runMetrics = metrics;
+        outputStream = metrics.countBytesWritten(outputStream);
+        downloadPriority = downloadPriorityProperties == null ? null
+                : new DownloadPriority(downloadPriorityProperties, daysYouSeeKeepsRecordings, new DateTime());
+        stateLookupFailed = false;
+        AdaptiveConcurrencyLimiter stateLookupLimiter = webServiceFacade == null ? null : webServiceFacade.getLimiter();
+        long limiterQueueNanos = stateLookupLimiter == null ? 0 : stateLookupLimiter.getQueueNanos();
+        long limiterBackoffs = stateLookupLimiter == null ? 0 : stateLookupLimiter.getBackoffs();
+        long httpCacheHits = webServiceFacade == null ? 0 : webServiceFacade.getHttpCacheHits();
+        long httpCacheMisses = webServiceFacade == null ? 0 : webServiceFacade.getHttpCacheMisses();
+        long hedgesFired = webServiceFacade == null ? 0 : webServiceFacade.getHedgesFired();
+        long hedgesWon = webServiceFacade == null ? 0 : webServiceFacade.getHedgesWon();
+        boolean succeeded = false;
         try {
-            log.debug("Initiated ingest based on date: " + dateOfIngest);
+            log.debug("Initiated ingest based on dates: " + firstDateOfIngest + " to " + lastDateOfIngest);
             // Infer period to ingest
-            DateTime toDate = dateOfIngest;
-            DateTime fromDate = dateOfIngest.minusDays(daysYouSeeKeepsRecordings-1); // dateOfIngest counts as one day
+            DateTime toDate = lastDateOfIngest;
+            DateTime fromDate = firstDateOfIngest.minusDays(daysYouSeeKeepsRecordings-1); // dateOfIngest counts as one day
             log.info("Ingestion periode: " + fromDate + " to " + toDate);
             List<ChannelArchiveRequest> caRequests;
+            long requestsStart = System.nanoTime();
             caRequests = channelArchiveRequestService.getValidRequests(fromDate.toDate(), toDate.toDate());
+            metrics.addStageTime(RunMetrics.Stage.REQUESTS, requestsStart);
+            metrics.addRequestsLoaded(caRequests.size());
             log.debug("Found requests size: " + caRequests.size());
-            List<MediaFileIngestOutputParameters> fullFileList = inferFilesToIngest(caRequests, fromDate, toDate);
-            log.debug("Full file list size: " + fullFileList.size());
-            List<MediaFileIngestOutputParameters> filteredFileList = filterOutFilesAlreadyIngested(dateOfIngest, new ArrayList<MediaFileIngestOutputParameters>(fullFileList));
-            log.debug("Filtered file list size: " + filteredFileList.size());
-            outputResult(filteredFileList, outputStream);
+            if (channelShard.isSharded()) {
+                caRequests = getRequestsOfShard(caRequests);
+            }
+            ScheduleExpander scheduleExpander = createScheduleExpander(caRequests);
+            // The days since the last run suffice only if they cover the periods of all the dates
+            boolean fullSweep = runCheckpoint == null
+                    || runCheckpoint.isFullSweepDue(firstDateOfIngest, daysYouSeeKeepsRecordings, fullSweepIntervalDays)
+                    || runCheckpoint.isFullSweepDue(lastDateOfIngest, daysYouSeeKeepsRecordings, fullSweepIntervalDays);
+            if (!fullSweep) {
+                restrictToDelta(scheduleExpander, runCheckpoint.getLastRun());
+            }
+            if (pipelined) {
+                initiateIngestPipelined(dateOfIngest, scheduleExpander, fromDate, toDate, outputStream);
+            } else {
+                List<MediaFileIngestOutputParameters> fullFileList = inferFilesToIngest(scheduleExpander, fromDate, toDate);
+                log.debug("Full file list size: " + fullFileList.size());
+                List<MediaFileIngestOutputParameters> filteredFileList = filterOutFilesAlreadyIngested(dateOfIngest, fullFileList);
+                log.debug("Filtered file list size: " + filteredFileList.size());
+                long outputStart = System.nanoTime();
+                if (downloadPriority != null) {
+                    filteredFileList = new ArrayList<MediaFileIngestOutputParameters>(filteredFileList);
+                    Collections.sort(filteredFileList, downloadPriority);
+                }
+                outputResult(filteredFileList, outputStream);
+                metrics.addStageTime(RunMetrics.Stage.OUTPUT, outputStart);
+            }
+            if (terminalStateCache != null) {
+                terminalStateCache.evictStartedBefore(fromDate);
+                terminalStateCache.save();
+            }
+            if (runCheckpoint != null && stateLookupFailed) {
+                log.warn("Not recording the run in the checkpoint, as the work flow states of some files could not be looked up");
+            } else if (runCheckpoint != null) {
+                runCheckpoint.update(dateOfIngest, daysYouSeeKeepsRecordings, fullSweep, caRequests);
+                runCheckpoint.save();
+            }
             log.debug("Done initiating ingest based on date: " + dateOfIngest);
+            succeeded = true;
         } catch (Exception e) {
             log.error("An error occurred: " + e.toString(), e);
             workFlowStateMonitorFacade.addState("Failed", "An error occurred initiating ingest (see logs for details). " + e.toString());
             throw new RuntimeException("An error occured initiating ingest.", e);
+        } finally {
+            if (stateLookupLimiter != null) {
+                metrics.setLookupLimiter(stateLookupLimiter.getLimit(), stateLookupLimiter.getQueueNanos() - limiterQueueNanos,
+                        stateLookupLimiter.getBackoffs() - limiterBackoffs);
+            }
+            if (webServiceFacade != null) {
+                metrics.addHttpCacheResult(webServiceFacade.getHttpCacheHits() - httpCacheHits,
+                        webServiceFacade.getHttpCacheMisses() - httpCacheMisses);
+                metrics.addHedges(webServiceFacade.getHedgesFired() - hedgesFired, webServiceFacade.getHedgesWon() - hedgesWon);
+            }
+            reportRunMetrics(metrics, succeeded);
         }
     }
 
+    /** @return the metrics of the current run, or of the last run when no run is in progress */
+    RunMetrics getRunMetrics() {
+        return runMetrics;
+    }
+
+    ChannelArchiveRequestServiceIF getChannelArchiveRequestService() {
+        return channelArchiveRequestService;
+    }
+
+    /** @return the facade calling the monitor, possibly wrapped by an {@link AsyncStateReporter}, or null if none */
+    private static WorkFlowStateMonitorWebServiceFacade getWebServiceFacade(WorkFlowStateMonitorFacade workFlowStateMonitorFacade) {
+        if (workFlowStateMonitorFacade instanceof AsyncStateReporter) {
+            workFlowStateMonitorFacade = ((AsyncStateReporter) workFlowStateMonitorFacade).getWorkFlowStateMonitorFacade();
+        }
+        return workFlowStateMonitorFacade instanceof WorkFlowStateMonitorWebServiceFacade
+                ? (WorkFlowStateMonitorWebServiceFacade) workFlowStateMonitorFacade : null;
+    }
+
+    private void reportRunMetrics(RunMetrics metrics, boolean succeeded) {
+        metrics.finish(succeeded);
+        log.info("Run metrics: " + metrics.toJson());
+        if (metricsSummaryFile != null) {
+            RunMetrics.write(metricsSummaryFile, metrics.toJson() + "\n");
+        }
+        if (metricsPrometheusFile != null) {
+            RunMetrics.write(metricsPrometheusFile, metrics.toPrometheusText());
+        }
+    }
+
+    /**
+     * Removes files from the terminal state cache, if one is configured, and saves the cache. Used instead of
+     * {@link TerminalStateCacheCLI} when the initiator keeps running between ingests.
+     *
+     * @return the number of files that were in the cache
+     */
+    public int invalidateTerminalStates(Collection<String> sbFileIds) {
+        if (terminalStateCache == null) {
+            return 0;
+        }
+        int removed = terminalStateCache.invalidate(sbFileIds);
+        terminalStateCache.save();
+        return removed;
+    }
+
+    /** @return the requests of the channels of the shard of this initiator */
+    private List<ChannelArchiveRequest> getRequestsOfShard(List<ChannelArchiveRequest> caRequests) {
+        List<ChannelArchiveRequest> shardRequests = new ArrayList<ChannelArchiveRequest>();
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            if (channelShard.owns(caRequest.getsBChannelId())) {
+                shardRequests.add(caRequest);
+            }
+        }
+        log.info("Requests of " + channelShard + ": " + shardRequests.size() + " of " + caRequests.size());
+        return shardRequests;
+    }
+
+    /**
+     * Examines only the days after the last run, less ingest.delta.overlap.days days, of requests not created
+     * or changed since the last run.
+     */
+    private void restrictToDelta(ScheduleExpander scheduleExpander, DateTime lastRun) {
+        DateTime deltaFromDate = lastRun.withTimeAtStartOfDay().plusDays(1 - deltaOverlapDays);
+        int changedRequestCount = 0;
+        for (ScheduleExpander.CompiledRequest request : scheduleExpander.getRequests()) {
+            if (runCheckpoint.hasChanged(request.caRequest)) {
+                changedRequestCount++;
+            } else {
+                scheduleExpander.expandFrom(request, deltaFromDate);
+            }
+        }
+        log.info("Examining files from " + deltaFromDate + ", and all files of " + changedRequestCount
+                + " requests created or changed since the run at " + lastRun);
+    }
+
     protected List<MediaFileIngestOutputParameters> inferFilesToIngest(List<ChannelArchiveRequest> caRequests, DateTime fromDate, DateTime toDate) {
         log.debug("Inferring files to ingest. Request: " + caRequests + ", fromDate: " + fromDate + ", toDate: " + toDate);
-        Set<MediaFileIngestOutputParameters> filesToIngest = new HashSet<MediaFileIngestOutputParameters>();
-        List<ChannelArchiveRequest> failures = new ArrayList<ChannelArchiveRequest>();
-        DateTime dayToCheck = fromDate;
-        while (dayToCheck.isBefore(toDate) || dayToCheck.equals(toDate)) {
-            for (ChannelArchiveRequest car : caRequests) {
-                try {
-                    if (car.isEnabled()) {
-                        filesToIngest.addAll(inferFilesToIngest(car, dayToCheck));
-                    } else {
-                        log.error("Not scheduling files from request " + car.toString() + " because of validation failure " + car.getCause());
-                        failures.add(car);
-                    }
-                } catch (Exception e) {
-                    log.error("Not scheduling files from request " + car.toString() + " because of exception in scheduling", e);
-                    car.setEnabled(false);
-                    car.setCause("Failure in Ingest Initiator during scheduling (see log for details): " + e.toString());
-                    failures.add(car);
+        return inferFilesToIngest(createScheduleExpander(caRequests), fromDate, toDate);
+    }
+
+    /**
+     * @return the files sorted by start time. The files are planned compactly, and each element of the list
+     * is built when it is read.
+     */
+    private List<MediaFileIngestOutputParameters> inferFilesToIngest(ScheduleExpander scheduleExpander, DateTime fromDate, DateTime toDate) {
+        long scheduleStart = System.nanoTime();
+        FilePlan filesToIngest = new FilePlan(this);
+        HourGrid hourGrid = createHourGrid(fromDate, toDate);
+        for (ScheduleExpander.CompiledRequest request : scheduleExpander.getRequests()) {
+            try {
+                for (DateTime dayToCheck : scheduleExpander.getActiveDays(request, fromDate, toDate)) {
+                    addFilesToIngest(filesToIngest, request, dayToCheck, hourGrid);
                 }
+            } catch (Exception e) {
+                log.error("Not scheduling files from request " + request.caRequest.toString() + " because of exception in scheduling", e);
+                scheduleExpander.disable(request, e);
+            }
+        }
+        List<MediaFileIngestOutputParameters> fileList = filesToIngest.toList();
+        runMetrics.addFilesScheduled(fileList.size());
+        runMetrics.addStageTime(RunMetrics.Stage.SCHEDULE, scheduleStart);
+        reportScheduledFiles(scheduleExpander.getFailures(), fileList.size());
+        return fileList;
+    }
+
+    private ScheduleExpander createScheduleExpander(List<ChannelArchiveRequest> caRequests) {
+        ScheduleExpander scheduleExpander = new ScheduleExpander(caRequests);
+        for (ChannelArchiveRequest car : scheduleExpander.getFailures()) {
+            log.error("Not scheduling files from request " + car.toString() + " because of validation failure " + car.getCause());
+        }
+        return scheduleExpander;
+    }
+
+    /**
+     * Infers the files to ingest from all requests active on a single day. Requests failing are disabled.
+     */
+    private void inferFilesToIngestOnDay(FilePlan filesToIngest, ScheduleExpander scheduleExpander, DateTime dayToCheck, HourGrid hourGrid) {
+        for (ScheduleExpander.CompiledRequest request : scheduleExpander.getRequestsActiveOn(dayToCheck)) {
+            try {
+                addFilesToIngest(filesToIngest, request, dayToCheck, hourGrid);
+            } catch (Exception e) {
+                log.error("Not scheduling files from request " + request.caRequest.toString() + " because of exception in scheduling", e);
+                scheduleExpander.disable(request, e);
             }
-            dayToCheck = dayToCheck.plusDays(1);
         }
-        List<MediaFileIngestOutputParameters> fileList = new ArrayList<MediaFileIngestOutputParameters>(filesToIngest);
-        Collections.sort(fileList);
+    }
+
+    private void reportScheduledFiles(List<ChannelArchiveRequest> failures, int fileCount) {
         if (failures.isEmpty()) {
-            workFlowStateMonitorFacade.addState("Started", "Scheduled " + fileList.size() + " files");
+            workFlowStateMonitorFacade.addState("Started", "Scheduled " + fileCount + " files");
         } else {
             StringBuilder errorString = new StringBuilder();
             errorString.append("Error scheduling files: ");
@@ -151,10 +437,170 @@ public class IngestMediaFilesInitiator {
                 errorString.append("Not scheduling files from request ").append(car.toString())
                         .append(" because of validation failure ").append(car.getCause());
             }
-            workFlowStateMonitorFacade.addState("Failed", errorString.toString() + "\nScheduled " + fileList.size()
+            workFlowStateMonitorFacade.addState("Failed", errorString.toString() + "\nScheduled " + fileCount
                     + " files");
         }
-        return fileList;
+    }
+
+    /**
+     * Pipelined variant of inferring, filtering and outputting files, used when output.mode is pipelined.
+     * Files are inferred one day at a time, filtered in chunks on workflow.state.monitor.parallelism
+     * workers, and written to the output as soon as a chunk has been filtered. The stages are connected by
+     * bounded queues, so a slow stage holds back the stages before it.
+     *
+     * The chunks are numbered as they are inferred, and each chunk is written once the chunks before it have been
+     * written, so the downloads are written day by day, sorted within each day, whatever the number of workers. At
+     * most {@value #PIPELINE_CHUNKS_PER_WORKER} chunks per worker are inferred ahead of the writing. Failing state
+     * lookups are handled as by {@link #filterOutFilesAlreadyIngestedInParallel(DateTime, List)}. If an error stops
+     * the pipeline, the downloads written so far are kept, and the output is closed without the end of the document,
+     * leaving it incomplete, before the error is thrown.
+     */
+    protected void initiateIngestPipelined(DateTime dateOfIngest, List<ChannelArchiveRequest> caRequests, DateTime fromDate, DateTime toDate, OutputStream outputStream) {
+        initiateIngestPipelined(dateOfIngest, createScheduleExpander(caRequests), fromDate, toDate, outputStream);
+    }
+
+    private void initiateIngestPipelined(final DateTime dateOfIngest, final ScheduleExpander scheduleExpander, final DateTime fromDate, final DateTime toDate, OutputStream outputStream) {
+        final int filterWorkerCount = Math.max(1, stateLookupParallelism);
+        final BlockingQueue<PipelineChunk> inferredChunks = new ArrayBlockingQueue<PipelineChunk>(2 * filterWorkerCount);
+        final BlockingQueue<PipelineChunk> filteredChunks = new ArrayBlockingQueue<PipelineChunk>(2 * filterWorkerCount);
+        // Taken for each chunk inferred and given back when it is written, so a slow chunk holds back the inferring
+        final Semaphore unwrittenChunks = new Semaphore(PIPELINE_CHUNKS_PER_WORKER * filterWorkerCount);
+        final AtomicInteger scheduledFileCount = new AtomicInteger();
+        final AtomicInteger failedFileCount = new AtomicInteger();
+        final List<String> failedChunks = Collections.synchronizedList(new ArrayList<String>());
+        Callable<Void> inferrer = new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                try {
+                    // A request may pass midnight, so files of one day can also be inferred from the day before
+                    FilePlan previousDayFiles = new FilePlan(IngestMediaFilesInitiator.this);
+                    HourGrid hourGrid = createHourGrid(fromDate, toDate);
+                    DateTime dayToCheck = fromDate;
+                    int sequence = 0;
+                    while (dayToCheck.isBefore(toDate) || dayToCheck.equals(toDate)) {
+                        long scheduleStart = System.nanoTime();
+                        FilePlan dayFiles = new FilePlan(previousDayFiles);
+                        inferFilesToIngestOnDay(dayFiles, scheduleExpander, dayToCheck, hourGrid);
+                        long[] newFiles = new long[dayFiles.size()];
+                        int newFileCount = 0;
+                        for (long file : dayFiles.getSortedFiles()) {
+                            if (!previousDayFiles.contains(file)) {
+                                newFiles[newFileCount++] = file;
+                            }
+                        }
+                        scheduledFileCount.addAndGet(newFileCount);
+                        runMetrics.addFilesScheduled(newFileCount);
+                        runMetrics.addStageTime(RunMetrics.Stage.SCHEDULE, scheduleStart);
+                        for (int from = 0; from < newFileCount; from += PARALLEL_FILTER_CHUNK_SIZE) {
+                            int to = Math.min(from + PARALLEL_FILTER_CHUNK_SIZE, newFileCount);
+                            unwrittenChunks.acquire();
+                            inferredChunks.put(new PipelineChunk(sequence++,
+                                    new ArrayList<MediaFileIngestOutputParameters>(dayFiles.toList(newFiles, from, to))));
+                        }
+                        previousDayFiles = dayFiles;
+                        dayToCheck = dayToCheck.plusDays(1);
+                    }
+                } finally {
+                    for (int i = 0; i < filterWorkerCount; i++) {
+                        inferredChunks.put(END_OF_CHUNKS);
+                    }
+                }
+                return null;
+            }
+        };
+        Callable<Void> filterWorker = new Callable<Void>() {
+            @Override
+            public Void call() throws InterruptedException {
+                try {
+                    PipelineChunk chunk;
+                    while ((chunk = inferredChunks.take()) != END_OF_CHUNKS) {
+                        List<MediaFileIngestOutputParameters> filteredFiles;
+                        try {
+                            filteredFiles = filterOutFilesAlreadyIngestedInOneLookup(dateOfIngest, filterOutFilesInTerminalStateCache(chunk.files));
+                        } catch (RuntimeException e) {
+                            String files = "Files " + chunk.files.get(0).getFileNameSB() + " to " + chunk.files.get(chunk.files.size() - 1).getFileNameSB();
+                            log.error("Unable to look up work flow states of " + files, e);
+                            failedFileCount.addAndGet(chunk.files.size());
+                            failedChunks.add(files + ": " + e.toString());
+                            filteredFiles = Collections.emptyList();
+                        } catch (Error e) {
+                            // The chunk will never be written, so the chunks after it must not be waited for
+                            filteredChunks.put(new PipelineChunk(e));
+                            throw e;
+                        }
+                        filteredChunks.put(new PipelineChunk(chunk.sequence, filteredFiles));
+                    }
+                } finally {
+                    filteredChunks.put(END_OF_CHUNKS);
+                }
+                return null;
+            }
+        };
+        ExecutorService executor = StateLookupExecutors.newExecutor(filterWorkerCount + 1, "ingest-pipeline");
+        DownloadsJsonWriter downloadsWriter = new DownloadsJsonWriter(outputStream);
+        boolean documentComplete = false;
+        try {
+            List<Future<Void>> stages = new ArrayList<Future<Void>>();
+            stages.add(executor.submit(inferrer));
+            for (int i = 0; i < filterWorkerCount; i++) {
+                stages.add(executor.submit(filterWorker));
+            }
+            Map<Integer, List<MediaFileIngestOutputParameters>> chunksAhead = new HashMap<Integer, List<MediaFileIngestOutputParameters>>();
+            int nextSequence = 0;
+            int endedFilterWorkers = 0;
+            while (endedFilterWorkers < filterWorkerCount) {
+                PipelineChunk chunk = filteredChunks.take();
+                if (chunk == END_OF_CHUNKS) {
+                    endedFilterWorkers++;
+                    continue;
+                }
+                if (chunk.failure != null) {
+                    throw new RuntimeException("Unable to initiate ingest: " + chunk.failure, chunk.failure);
+                }
+                chunksAhead.put(chunk.sequence, chunk.files);
+                List<MediaFileIngestOutputParameters> files;
+                while ((files = chunksAhead.remove(nextSequence)) != null) {
+                    if (!files.isEmpty()) {
+                        long outputStart = System.nanoTime();
+                        for (MediaFileIngestOutputParameters fileIngest : files) {
+                            downloadsWriter.write(fileIngest);
+                        }
+                        downloadsWriter.flush();
+                        runMetrics.addStageTime(RunMetrics.Stage.OUTPUT, outputStart);
+                    }
+                    nextSequence++;
+                    unwrittenChunks.release();
+                }
+            }
+            // The document is only ended if every stage succeeded
+            for (Future<Void> stage : stages) {
+                stage.get();
+            }
+            downloadsWriter.close();
+            documentComplete = true;
+            runMetrics.addDownloadsWritten(downloadsWriter.getDownloadCount());
+            log.debug("Wrote " + downloadsWriter.getDownloadCount() + " downloads of " + scheduledFileCount.get() + " files");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while initiating ingest", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to initiate ingest: " + e.getCause(), e.getCause());
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to output to: " + outputStream, e);
+        } finally {
+            executor.shutdownNow();
+            if (!documentComplete) {
+                try {
+                    downloadsWriter.closeIncomplete();
+                } catch (IOException e) {
+                    log.warn("Unable to close output: " + outputStream, e);
+                }
+            }
+        }
+        reportScheduledFiles(scheduleExpander.getFailures(), scheduledFileCount.get());
+        if (!failedChunks.isEmpty()) {
+            reportStateLookupFailures(failedChunks, failedFileCount.get(), scheduledFileCount.get());
+        }
     }
 
     /**
@@ -175,46 +621,44 @@ public class IngestMediaFilesInitiator {
      * @return
      */
     protected Set<MediaFileIngestOutputParameters> inferFilesToIngest(ChannelArchiveRequest caRequest, DateTime dayToCheck) {
-        Set<MediaFileIngestOutputParameters> filesToIngest = new HashSet<MediaFileIngestOutputParameters>();
+        FilePlan filesToIngest = new FilePlan(this);
+        if (isChannelArchiveRequestActive(caRequest, dayToCheck)) {
+            addFilesToIngest(filesToIngest, new ScheduleExpander.CompiledRequest(caRequest), dayToCheck,
+                    createHourGrid(dayToCheck, dayToCheck));
+        }
+        return new HashSet<MediaFileIngestOutputParameters>(filesToIngest.toList());
+    }
+
+    /** The hour grid of the days from fromDate to toDate, and of the day after for requests passing midnight. */
+    private HourGrid createHourGrid(DateTime fromDate, DateTime toDate) {
+        LocalDate firstDay = fromDate.toLocalDate();
+        return new HourGrid(DateTimeZone.forTimeZone(TimeZone.getDefault()), firstDay,
+                Days.daysBetween(firstDay, toDate.toLocalDate()).getDays() + 2);
+    }
+
+    /**
+     * Adds the hour intervals to download for a request on a day where the request is active. The channel mappings
+     * of all the intervals are resolved before any interval is added, so a failing mapping adds none of them.
+     */
+    private void addFilesToIngest(FilePlan filesToIngest, ScheduleExpander.CompiledRequest request, DateTime dayToCheck, HourGrid hourGrid) {
         try {
-            if (isChannelArchiveRequestActive(caRequest, dayToCheck)) {
-                String sbChannelID = caRequest.getsBChannelId();
-                DateTimeZone dateTimeZone = DateTimeZone.forTimeZone(TimeZone.getDefault());
-                LocalTime localTimeFrom = new LocalTime(caRequest.getFromTime().getTime());
-                LocalTime localTimeTo = new LocalTime(caRequest.getToTime().getTime());
-                LocalDateTime startDateLocal = new LocalDateTime(dayToCheck.getYear(), dayToCheck.getMonthOfYear(),
-                                                                 dayToCheck.getDayOfMonth(),
-                                                                 localTimeFrom.getHourOfDay(), 0);
-                if (dateTimeZone.isLocalDateTimeGap(startDateLocal)) {
-                    startDateLocal = new LocalDateTime(dayToCheck.getYear(), dayToCheck.getMonthOfYear(),
-                                                       dayToCheck.getDayOfMonth(), localTimeFrom.getHourOfDay() + 1, 0);
-                }
-                LocalDateTime finalDateLocal = new LocalDateTime(dayToCheck.getYear(), dayToCheck.getMonthOfYear(),
-                                                                 dayToCheck.getDayOfMonth(), localTimeTo.getHourOfDay(),
-                                                                 localTimeTo.getMinuteOfHour());
-                if (dateTimeZone.isLocalDateTimeGap(finalDateLocal)) {
-                    finalDateLocal = new LocalDateTime(dayToCheck.getYear(), dayToCheck.getMonthOfYear(),
-                                                       dayToCheck.getDayOfMonth(), localTimeTo.getHourOfDay() + 1,
-                                                       localTimeTo.getMinuteOfHour());
-                }
-                DateTime startDate = startDateLocal.toDateTime();
-                DateTime finalDate = finalDateLocal.toDateTime();
-                if (!startDate.isBefore(finalDate)) {
-                    finalDate = finalDate.plusDays(1);
-                }
-                while (startDate.isBefore(finalDate)) {
-                    DateTime endDate = startDate.plusHours(1);
-                    String youseeChannelID = youSeeChannelMappingService.getUniqueMappingFromSbChannelId(sbChannelID, startDate.toDate()).getYouSeeChannelId();
-                    String filenameYouSee = getYouSeeFilename(startDate, endDate, youseeChannelID);
-                    String filenameSB = getSBFileID(sbChannelID, startDate, endDate);
-                    filesToIngest.add(new MediaFileIngestOutputParameters(filenameSB, filenameYouSee, sbChannelID, youseeChannelID, startDate, endDate));
-                    startDate = startDate.plusHours(1);
-                }
+            String sbChannelID = request.sbChannelId;
+            int dayIndex = hourGrid.getDayIndex(dayToCheck);
+            long firstStartDate = hourGrid.getStart(dayIndex, request.fromHour);
+            long finalDate = hourGrid.getEnd(dayIndex, request.fromHour, request.toHour, request.toMinute);
+            List<String> youseeChannelIDs = new ArrayList<String>();
+            for (long startDate = firstStartDate; startDate < finalDate; startDate += DateTimeConstants.MILLIS_PER_HOUR) {
+                youseeChannelIDs.add(youSeeChannelMappingService.getUniqueMappingFromSbChannelId(sbChannelID, new Date(startDate)).getYouSeeChannelId());
+            }
+            long startDate = firstStartDate;
+            for (String youseeChannelID : youseeChannelIDs) {
+                filesToIngest.add(sbChannelID, youseeChannelID, startDate);
+                startDate += DateTimeConstants.MILLIS_PER_HOUR;
             }
+            runMetrics.addSlotsGenerated(youseeChannelIDs.size());
         } catch (ServiceException e) {
             throw new RuntimeException("An unexpected error occurred: " + e.toString(), e);
         }
-        return filesToIngest;
     }
 
     /**
@@ -229,11 +673,7 @@ public class IngestMediaFilesInitiator {
      */
     protected String getYouSeeFilename(DateTime startDate, DateTime endDate,
             String youseeChannelID) {
-        String filenameYouSee = 
-                youseeChannelID + "_"
-                        + youseeFilenameDateFormatter.print(startDate) + "_"
-                        + youseeFilenameDateFormatter.print(endDate) + ".mux";
-        return filenameYouSee;
+        return fileNameEncoders.get().getYouSeeFilename(startDate, endDate, youseeChannelID);
     }
 
     /**
@@ -252,16 +692,7 @@ public class IngestMediaFilesInitiator {
      * @return
      */
     protected String getSBFileID(String sbChannelID, DateTime startDate, DateTime endDate) {
-        Long startDateInSecondsSince1970 = startDate.getMillis() / 1000;
-        Long endDateInSecondsSince1970 = endDate.getMillis() / 1000;
-        String filenameSB = sbChannelID
-                + "_teracom."
-                + startDateInSecondsSince1970 + "-"
-                + sbFilenameDateFormatter.print(startDate) + "_"
-                + endDateInSecondsSince1970 + "-"
-                + sbFilenameDateFormatter.print(endDate)
-                + "_teracom.ts";
-        return filenameSB;
+        return fileNameEncoders.get().getSBFileID(sbChannelID, startDate, endDate);
     }
 
     /** Identifies whether a channel archiving request contributes to download a given day. */
@@ -272,82 +703,8 @@ public class IngestMediaFilesInitiator {
         boolean caRequestPeriodValid = (caRequestFromDate.equals(dayToCheck) || caRequestFromDate.isBefore(dayToCheck)) && 
                 (caRequestToDate.equals(dayToCheck) || caRequestToDate.isAfter(dayToCheck));
         if (caRequestPeriodValid) {
-            switch (caRequest.getWeekdayCoverage()) {
-            case DAILY:
-                caRequestActive = true;
-                break;
-
-            case MONDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.MONDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case TUESDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.TUESDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case WEDNESDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.WEDNESDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case THURSDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.THURSDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case FRIDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.FRIDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case SATURDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.SATURDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case SUNDAY:
-                if (dayToCheck.getDayOfWeek() == DateTimeConstants.SUNDAY) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case MONDAY_TO_THURSDAY:
-                if ((dayToCheck.getDayOfWeek() == DateTimeConstants.MONDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.TUESDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.WEDNESDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.THURSDAY)) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case MONDAY_TO_FRIDAY:
-                if ((dayToCheck.getDayOfWeek() == DateTimeConstants.MONDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.TUESDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.WEDNESDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.THURSDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.FRIDAY)) {
-                    caRequestActive = true;
-                }
-                break;
-
-            case SATURDAY_AND_SUNDAY:
-                if ((dayToCheck.getDayOfWeek() == DateTimeConstants.SATURDAY) ||
-                        (dayToCheck.getDayOfWeek() == DateTimeConstants.SUNDAY)) {
-                    caRequestActive = true;
-                }
-                break;
-
-            default:
-                throw new RuntimeException("Unknown Weekday enum: " + caRequest.getWeekdayCoverage());
-            }
+            int weekdayMask = ScheduleExpander.getWeekdayMask(caRequest.getWeekdayCoverage());
+            caRequestActive = (weekdayMask & (1 << dayToCheck.getDayOfWeek())) != 0;
         }
         return caRequestActive;
     }
@@ -355,20 +712,149 @@ public class IngestMediaFilesInitiator {
     /**
      * Filter out files that have alrady been ingested
      * 
+     * Files found in the terminal state cache, if one is configured by workflow.state.cache.file.path,
+     * are left out without asking the work flow state monitor.
+     * 
      * @param dateOfIngest date and time of the current ingest
      * @param unFilteredOutputList List of all files that can be ingested
      * @return List of files that have not been ingested
      */
     protected List<MediaFileIngestOutputParameters> filterOutFilesAlreadyIngested(DateTime dateOfIngest, List<MediaFileIngestOutputParameters> unFilteredOutputList) {
+        List<MediaFileIngestOutputParameters> uncachedList = filterOutFilesInTerminalStateCache(unFilteredOutputList);
+        if (stateLookupParallelism > 1) {
+            return filterOutFilesAlreadyIngestedInParallel(dateOfIngest, uncachedList);
+        }
+        return filterOutFilesAlreadyIngestedInOneLookup(dateOfIngest, uncachedList);
+    }
+
+    private List<MediaFileIngestOutputParameters> filterOutFilesAlreadyIngestedInOneLookup(DateTime dateOfIngest, List<MediaFileIngestOutputParameters> unFilteredOutputList) {
+        long lookupStart = System.nanoTime();
+        Map<String, State> states = workFlowStateMonitorFacade.getLastWorkFlowStatesForEntities(getFileNamesSB(unFilteredOutputList));
+        runMetrics.addLookup(unFilteredOutputList.size(), lookupStart);
         List<MediaFileIngestOutputParameters> filteredList = new ArrayList<MediaFileIngestOutputParameters>();
         for (MediaFileIngestOutputParameters fileIngest : unFilteredOutputList) {
-            if (shouldInititateIngest(dateOfIngest, fileIngest.getFileNameSB())) {
+            if (shouldInititateIngest(dateOfIngest, fileIngest, states.get(fileIngest.getFileNameSB()))) {
                 filteredList.add(fileIngest);
             }
         }
         return filteredList;
     }
 
+    /**
+     * Filter out files that have already been ingested, looking up the states of the files in chunks on
+     * workflow.state.monitor.parallelism concurrent workers. The order of the given list is kept.
+     *
+     * A failing lookup does not stop the other lookups. The files of the failed chunk are left out, and
+     * all failures are reported together once every chunk has been tried. The files left out will be
+     * considered again by the next ingest.
+     *
+     * If the monitor has no bulk endpoint, the workers share the workflow.state.monitor.lookup.threads threads of
+     * the {@link WorkFlowStateMonitorWebServiceFacade} looking up one entity at a time, so more workers than threads
+     * make no more lookups at a time.
+     *
+     * @param dateOfIngest date and time of the current ingest
+     * @param unFilteredOutputList List of all files that can be ingested
+     * @return List of files that have not been ingested
+     */
+    protected List<MediaFileIngestOutputParameters> filterOutFilesAlreadyIngestedInParallel(final DateTime dateOfIngest, final List<MediaFileIngestOutputParameters> unFilteredOutputList) {
+        final int fileCount = unFilteredOutputList.size();
+        final int chunkCount = (fileCount + PARALLEL_FILTER_CHUNK_SIZE - 1) / PARALLEL_FILTER_CHUNK_SIZE;
+        final boolean[] initiateIngest = new boolean[fileCount];
+        final Map<Integer, RuntimeException> failures = new ConcurrentHashMap<Integer, RuntimeException>();
+        final AtomicInteger nextChunk = new AtomicInteger();
+        Runnable worker = new Runnable() {
+            @Override
+            public void run() {
+                int chunk;
+                while ((chunk = nextChunk.getAndIncrement()) < chunkCount) {
+                    int from = chunk * PARALLEL_FILTER_CHUNK_SIZE;
+                    int to = Math.min(from + PARALLEL_FILTER_CHUNK_SIZE, fileCount);
+                    try {
+                        List<MediaFileIngestOutputParameters> chunkFiles = new ArrayList<MediaFileIngestOutputParameters>(unFilteredOutputList.subList(from, to));
+                        long lookupStart = System.nanoTime();
+                        Map<String, State> states = workFlowStateMonitorFacade.getLastWorkFlowStatesForEntities(getFileNamesSB(chunkFiles));
+                        runMetrics.addLookup(chunkFiles.size(), lookupStart);
+                        for (int i = from; i < to; i++) {
+                            MediaFileIngestOutputParameters fileIngest = chunkFiles.get(i - from);
+                            initiateIngest[i] = shouldInititateIngest(dateOfIngest, fileIngest, states.get(fileIngest.getFileNameSB()));
+                        }
+                    } catch (RuntimeException e) {
+                        log.error("Unable to look up work flow states of files " + from + " to " + to, e);
+                        failures.put(chunk, e);
+                    }
+                }
+            }
+        };
+        ExecutorService executor = StateLookupExecutors.newExecutor(stateLookupParallelism, "state-filter");
+        try {
+            List<Future<?>> workers = new ArrayList<Future<?>>();
+            for (int i = 0; i < Math.min(stateLookupParallelism, chunkCount); i++) {
+                workers.add(executor.submit(worker));
+            }
+            for (Future<?> future : workers) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while filtering files already ingested", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unexpected error filtering files already ingested", e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        List<MediaFileIngestOutputParameters> filteredList = new ArrayList<MediaFileIngestOutputParameters>();
+        for (int i = 0; i < fileCount; i++) {
+            if (initiateIngest[i]) {
+                filteredList.add(unFilteredOutputList.get(i));
+            }
+        }
+        if (!failures.isEmpty()) {
+            int failedFileCount = 0;
+            List<String> failedChunks = new ArrayList<String>();
+            for (Map.Entry<Integer, RuntimeException> failure : new TreeMap<Integer, RuntimeException>(failures).entrySet()) {
+                int from = failure.getKey() * PARALLEL_FILTER_CHUNK_SIZE;
+                int to = Math.min(from + PARALLEL_FILTER_CHUNK_SIZE, fileCount);
+                failedFileCount += to - from;
+                failedChunks.add("Files " + from + " to " + to + ": " + failure.getValue().toString());
+            }
+            reportStateLookupFailures(failedChunks, failedFileCount, fileCount);
+        }
+        return filteredList;
+    }
+
+    private void reportStateLookupFailures(List<String> failedChunks, int failedFileCount, int fileCount) {
+        stateLookupFailed = true;
+        StringBuilder errorString = new StringBuilder();
+        for (String failedChunk : failedChunks) {
+            errorString.append("\n").append(failedChunk);
+        }
+        workFlowStateMonitorFacade.addState("Failed", "Unable to look up work flow state of " + failedFileCount + " of "
+                + fileCount + " files. Not scheduling these files:" + errorString.toString());
+    }
+
+    private List<MediaFileIngestOutputParameters> filterOutFilesInTerminalStateCache(List<MediaFileIngestOutputParameters> files) {
+        if (terminalStateCache == null) {
+            return files;
+        }
+        List<MediaFileIngestOutputParameters> uncachedFiles = new ArrayList<MediaFileIngestOutputParameters>();
+        for (MediaFileIngestOutputParameters fileIngest : files) {
+            if (!terminalStateCache.contains(fileIngest.getFileNameSB())) {
+                uncachedFiles.add(fileIngest);
+            }
+        }
+        log.debug("Files found in terminal state cache: " + (files.size() - uncachedFiles.size()));
+        runMetrics.addTerminalCacheResult(files.size() - uncachedFiles.size(), uncachedFiles.size());
+        return uncachedFiles;
+    }
+
+    private static List<String> getFileNamesSB(List<MediaFileIngestOutputParameters> files) {
+        List<String> fileNamesSB = new ArrayList<String>(files.size());
+        for (MediaFileIngestOutputParameters fileIngest : files) {
+            fileNamesSB.add(fileIngest.getFileNameSB());
+        }
+        return fileNamesSB;
+    }
+
     /**
      * Evalutates if a file should be ingested or not.
      *
@@ -380,7 +866,34 @@ public class IngestMediaFilesInitiator {
      * @return
      */
     protected boolean shouldInititateIngest(DateTime dateOfIngest, String fileNameSB) {
-        State state = workFlowStateMonitorFacade.getLastWorkFlowStateForEntity(fileNameSB);
+        return shouldInititateIngest(dateOfIngest, workFlowStateMonitorFacade.getLastWorkFlowStateForEntity(fileNameSB));
+    }
+
+    /**
+     * Evalutates if a file should be ingested or not, and remembers files in a final state in the
+     * terminal state cache.
+     */
+    private boolean shouldInititateIngest(DateTime dateOfIngest, MediaFileIngestOutputParameters fileIngest, State state) {
+        if (terminalStateCache != null && state != null
+                && (state.getStateName().equals(workFlowStateNameDone) || state.getStateName().equals(workFlowStateNameStopped))) {
+            terminalStateCache.put(fileIngest.getFileNameSB(), fileIngest.getStartDate());
+        }
+        boolean initiateIngest = shouldInititateIngest(dateOfIngest, state);
+        DownloadPriority priority = downloadPriority;
+        if (initiateIngest && state != null && priority != null) {
+            priority.addRetried(fileIngest.getFileNameSB());
+        }
+        return initiateIngest;
+    }
+
+    /**
+     * Evalutates if a file should be ingested or not, given the last known state of the file.
+     *
+     * @param dateOfIngest date and time of the current ingest
+     * @param state last state of the file, or null if the file is unknown to the work flow state monitor
+     * @return
+     */
+    protected boolean shouldInititateIngest(DateTime dateOfIngest, State state) {
         log.info(state);
         boolean initiateIngest = true;
         if (state == null) { // Unknown
@@ -406,37 +919,38 @@ public class IngestMediaFilesInitiator {
  * @param outputStream Where output is directed
  */
 protected void outputResult(List<MediaFileIngestOutputParameters> outputList, OutputStream outputStream) {
-    boolean firstEntry = true;
-    String output = " {\n"
-            + "     \"downloads\":[";
-    for (MediaFileIngestOutputParameters mediaFileIngestParameters : outputList) {
-        String params = "\n"
-                + "         {\n"
-                + "            \"fileID\" : \"" +          mediaFileIngestParameters.getFileNameSB() + "\",\n"
-                + "            \"youSeeFilename\" : \"" +  mediaFileIngestParameters.getFileNameYouSee() + "\",\n"
-                + "            \"startTime\" : \"" +       outputDataDateFormatter.print(mediaFileIngestParameters.getStartDate()) + "\",\n"
-                + "            \"endTime\" : \"" +         outputDataDateFormatter.print(mediaFileIngestParameters.getEndDate()) + "\",\n"
-                + "            \"youseeChannelID\" : \"" + mediaFileIngestParameters.getChannelIDYouSee() + "\",\n"
-                + "            \"sbChannelID\" : \"" +     mediaFileIngestParameters.getChannelIDSB() + "\"\n"
-                + "         }";
-        if (firstEntry) {
-            output += params;
-            firstEntry = false;
-        } else {
-            output += "," + params;
-        }
-    }
-    output += "\n"
-            + "     ]\n"
-            + " }\n";
+    DownloadsJsonWriter downloadsWriter = new DownloadsJsonWriter(outputStream);
     try {
-        log.debug("Writing output: " + output);
-        outputStream.write(output.getBytes());
+        for (MediaFileIngestOutputParameters mediaFileIngestParameters : outputList) {
+            downloadsWriter.write(mediaFileIngestParameters);
+        }
         log.debug("Closing output.");
-        outputStream.close();
-        log.debug("Closed output.");
+        downloadsWriter.close();
+        runMetrics.addDownloadsWritten(downloadsWriter.getDownloadCount());
+        log.debug("Closed output after writing " + downloadsWriter.getDownloadCount() + " downloads.");
     } catch (IOException e) {
         throw new RuntimeException("Unable to output to: " + outputStream, e);
     }
 }
+
+    /** Files passed between the stages of the pipelined ingest, numbered in the order they were inferred. */
+    private static class PipelineChunk {
+
+        private final int sequence;
+        private final List<MediaFileIngestOutputParameters> files;
+        /** The error stopping the filter worker of the chunk, or null */
+        private final Error failure;
+
+        PipelineChunk(int sequence, List<MediaFileIngestOutputParameters> files) {
+            this.sequence = sequence;
+            this.files = files;
+            this.failure = null;
+        }
+
+        PipelineChunk(Error failure) {
+            this.sequence = -1;
+            this.files = null;
+            this.failure = failure;
+        }
+    }
 }
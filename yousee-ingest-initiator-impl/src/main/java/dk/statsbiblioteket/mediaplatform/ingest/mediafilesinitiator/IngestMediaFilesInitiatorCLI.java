@@ -3,6 +3,8 @@ package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 
 import org.jfree.util.Log;
@@ -12,6 +14,9 @@ import org.joda.time.format.DateTimeFormatter;
 
 public class IngestMediaFilesInitiatorCLI {
 
+    static final String SHARD_OPTION = "--shard=";
+    private static final String OFFLINE_OPTION = "--offline";
+
     /**
      * Starts media file ingest initiator with the following setup:
      * 
@@ -21,23 +26,48 @@ public class IngestMediaFilesInitiatorCLI {
      *   <li>Output to stdout</li>
      *   <li>Properties found in property file specified as first argument</li>
      *   <li>Date for which the ingest is initiated given as second argument</li>
+     *   <li>Optionally, --shard=&lt;index&gt;/&lt;count&gt; anywhere in the arguments, handling only a share of the
+     *          channels, see ingest.shard.index and ingest.shard.count</li>
+     *   <li>Optionally, --offline anywhere in the arguments, planning from the snapshot of requests and mappings in
+     *          plan.snapshot.file.path without using the database</li>
+     *   <li>Optionally, a last date given as third argument. Ingest is then initiated for every date from the
+     *          second to the third argument in one run, eg. when catching up after an outage</li>
      * </ol>
      * 
      * @param args
      * <ol>
      *   <li>path_to_property_file - full filename and path to property file</li>
      *   <li>date_to_initiate - date for which the ingest is based</li>
+     *   <li>last_date_to_initiate - optional last date for which the ingest is based</li>
      * </ol>
      */
     public static void main(String[] args) {
         try {
             // Check args
             System.err.println("Starting initiation process...");
-            if (args.length != 2) {
+            String shard = null;
+            boolean offline = false;
+            List<String> arguments = new ArrayList<String>();
+            for (String arg : args) {
+                if (arg.startsWith(SHARD_OPTION)) {
+                    shard = arg.substring(SHARD_OPTION.length());
+                } else if (arg.equals(OFFLINE_OPTION)) {
+                    offline = true;
+                } else {
+                    arguments.add(arg);
+                }
+            }
+            args = arguments.toArray(new String[arguments.size()]);
+            if (args.length != 2 && args.length != 3) {
                 System.err.println("At least two arguments must be supplied.");
-                System.err.println("Parameter required: <path_to_property_file> <date_to_initiate>");
+                System.err.println("Parameter required: [--shard=<index>/<count>] [--offline] <path_to_property_file> <date_to_initiate> [<last_date_to_initiate>]");
+                System.err.println(" --shard - optional share of the channels handled by this initiator, index from 0 to count - 1.");
+                System.err.println("  Overrides ingest.shard.index and ingest.shard.count of the property file.");
+                System.err.println(" --offline - plan from the snapshot in plan.snapshot.file.path without using the database.");
                 System.err.println(" -path_to_property_file - full filename and path to property file");
                 System.err.println(" -date_to_initiate - date for which the ingest is based. Format yyyy-MM-dd.");
+                System.err.println(" -last_date_to_initiate - optional last date for which the ingest is based, initiating ingest for");
+                System.err.println("  every date from date_to_initiate in one run. Format yyyy-MM-dd.");
                 System.exit(1);
             }
             // Bypass default initialization for Log4j. Circumvents log4j in CAR's package
@@ -47,16 +77,31 @@ public class IngestMediaFilesInitiatorCLI {
             String filenameAndPath = args[0];
             Properties properties = null;
             properties = getPropertiesFromPropertyFile(filenameAndPath);
+            if (shard != null) {
+                setShard(properties, shard);
+            }
+            if (offline) {
+                if (!PlanSnapshotStore.isEnabled(properties)) {
+                    throw new RuntimeException("Planning offline requires " + PlanSnapshotStore.PLAN_SNAPSHOT_FILE_PATH_KEY);
+                }
+                properties.setProperty(PlanSnapshotStore.PLAN_SNAPSHOT_OFFLINE_KEY, "true");
+            }
             // Get date to base ingest on
             System.err.println("Parsing property date from argument");
             String ingestBaseTimeString = args[1];
             DateTime ingestBaseTime = getIngestBaseTime(ingestBaseTimeString);
+            DateTime lastIngestBaseTime = args.length == 3 ? getIngestBaseTime(args[2]) : ingestBaseTime;
             // Create classes to inject into initiator and construct initiator
             System.err.println("Creating initiator..." );
             IngestMediaFilesInitiator ingestInitiatorMediaFiles = IngestMediaFilesInitiatorFactory.create(properties);
             // Start initator
-            System.err.println("Starting initiator with base time: " + ingestBaseTime);
-            ingestInitiatorMediaFiles.initiateIngest(ingestBaseTime);
+            if (lastIngestBaseTime.equals(ingestBaseTime)) {
+                System.err.println("Starting initiator with base time: " + ingestBaseTime);
+                ingestInitiatorMediaFiles.initiateIngest(ingestBaseTime);
+            } else {
+                System.err.println("Starting initiator with base times: " + ingestBaseTime + " to " + lastIngestBaseTime);
+                ingestInitiatorMediaFiles.initiateIngest(ingestBaseTime, lastIngestBaseTime, System.out);
+            }
         } catch (Exception e) {
             System.err.println("An unrecoverable error occured.");
             System.err.println("Error message: " + e.getMessage());
@@ -72,6 +117,15 @@ public class IngestMediaFilesInitiatorCLI {
         return properties;
     }
 
+    static void setShard(Properties properties, String shard) {
+        String[] indexAndCount = shard.split("/");
+        if (indexAndCount.length != 2) {
+            throw new RuntimeException("Shard must be given as <index>/<count>, was: " + shard);
+        }
+        properties.setProperty(ChannelShard.SHARD_INDEX_KEY, indexAndCount[0]);
+        properties.setProperty(ChannelShard.SHARD_COUNT_KEY, indexAndCount[1]);
+    }
+
     private static DateTime getIngestBaseTime(String ingestBaseTimeString) {
         DateTime inputDate = DateTimeFormat.forPattern("yyyy-MM-dd").parseDateTime(ingestBaseTimeString);
         Log.debug("Input date parsed from parameter: " + inputDate);
@@ -0,0 +1,525 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+import org.joda.time.LocalTime;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+/**
+ * Keeps an initiator running between ingests, so the database connections, the HTTP client and the
+ * channel mappings are set up once instead of on every run.
+ *
+ * Ingest is initiated every day at the local times in daemon.run.times, writing the downloads to
+ * daemon.output.file.path. The file is replaced when a run is done, so it never holds a partial document.
+ *
+ * The daemon is controlled by one line commands sent to daemon.control.port on localhost, eg.
+ * <code>echo run 2012-03-28 | nc localhost 9997</code>:
+ *
+ * <ul>
+ *   <li>run [yyyy-MM-dd] - initiates ingest now, for today unless a date is given, and writes the downloads to the
+ *          connection as the CLI writes them to stdout. If the run fails, the document is left incomplete.</li>
+ *   <li>trigger - initiates ingest for today now, writing the downloads to the output file as a scheduled run</li>
+ *   <li>status - the last and the next run</li>
+ *   <li>reload - loads the channel mappings again on the next run</li>
+ *   <li>invalidate sb_file_id ... - removes files from the terminal state cache, see {@link TerminalStateCacheCLI}</li>
+ *   <li>stop - stops the daemon when the current run, if any, is done</li>
+ * </ul>
+ *
+ * Runs never overlap, a run started while another is running waits for it.
+ *
+ * If daemon.jmx.enabled is true, the metrics of the last run are exposed as the attributes of the MBean
+ * {@value #METRICS_MBEAN_NAME}.
+ */
+public class IngestMediaFilesInitiatorDaemon {
+
+    private static final String DAEMON_RUN_TIMES_KEY = "daemon.run.times";
+    private static final String DAEMON_CONTROL_PORT_KEY = "daemon.control.port";
+    private static final String DAEMON_OUTPUT_FILE_PATH_KEY = "daemon.output.file.path";
+    private static final String DAEMON_CHANNEL_MAPPING_MAX_AGE_MINUTES_KEY = "daemon.channel.mapping.max.age.minutes";
+    private static final String DAEMON_JMX_ENABLED_KEY = "daemon.jmx.enabled";
+    static final String METRICS_MBEAN_NAME = "dk.statsbiblioteket.mediaplatform.ingest:type=IngestMediaFilesInitiator,name=LastRunMetrics";
+    private static final DateTimeFormatter dateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd");
+    private static final DateTimeFormatter runTimeFormatter = DateTimeFormat.forPattern("HH:mm");
+    private static final Logger log = Logger.getLogger(IngestMediaFilesInitiatorDaemon.class);
+
+    private final IngestMediaFilesInitiator initiator;
+    private final CachingYouSeeChannelMappingService channelMappingService;
+    private final List<LocalTime> runTimes;
+    private final int controlPort;
+    private final File outputFile;
+    private final long channelMappingMaxAgeMillis;
+    private final boolean jmxEnabled;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final ExecutorService connectionExecutor;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    /** Held while initiating ingest, as the initiator does not support concurrent runs */
+    private final Object runLock = new Object();
+    private ServerSocket controlSocket;
+    private long channelMappingsLoaded = Long.MIN_VALUE;
+    private volatile boolean running;
+    private volatile DateTime lastRunStart;
+    private volatile DateTime lastRunEnd;
+    private volatile String lastRunResult;
+    private volatile DateTime nextRun;
+
+    /**
+     * @param channelMappingService the channel mappings of the initiator, reloaded when older than
+     * daemon.channel.mapping.max.age.minutes. May be null.
+     */
+    public IngestMediaFilesInitiatorDaemon(Properties properties, IngestMediaFilesInitiator initiator, CachingYouSeeChannelMappingService channelMappingService) {
+        this.initiator = initiator;
+        this.channelMappingService = channelMappingService;
+        this.runTimes = getRunTimes(properties.getProperty(DAEMON_RUN_TIMES_KEY, ""));
+        this.controlPort = Integer.parseInt(IngestMediaFilesInitiatorFactory.getPropertyValue(properties, DAEMON_CONTROL_PORT_KEY));
+        this.outputFile = new File(IngestMediaFilesInitiatorFactory.getPropertyValue(properties, DAEMON_OUTPUT_FILE_PATH_KEY));
+        this.channelMappingMaxAgeMillis = TimeUnit.MINUTES.toMillis(
+                Long.parseLong(properties.getProperty(DAEMON_CHANNEL_MAPPING_MAX_AGE_MINUTES_KEY, "60")));
+        this.jmxEnabled = Boolean.parseBoolean(properties.getProperty(DAEMON_JMX_ENABLED_KEY, "false"));
+        this.scheduler = new ScheduledThreadPoolExecutor(1, createThreadFactory("ingest-daemon-scheduler"));
+        this.scheduler.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+        this.connectionExecutor = Executors.newCachedThreadPool(createThreadFactory("ingest-daemon-control"));
+    }
+
+    /**
+     * Starts the daemon with the properties found in the property file given as argument, and runs until it
+     * is stopped by the stop command or the JVM is shut down.
+     *
+     * @param args
+     * <ol>
+     *   <li>path_to_property_file - full filename and path to property file</li>
+     * </ol>
+     */
+    public static void main(String[] args) {
+        try {
+            if (args.length != 1) {
+                System.err.println("Parameter required: <path_to_property_file>");
+                System.err.println(" -path_to_property_file - full filename and path to property file");
+                System.exit(1);
+            }
+            // Bypass default initialization for Log4j. Circumvents log4j in CAR's package
+            System.getProperties().put("log4j.defaultInitOverride", "true");
+            Properties properties = new Properties();
+            FileInputStream in = new FileInputStream(args[0]);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+            final IngestMediaFilesInitiatorDaemon daemon = IngestMediaFilesInitiatorFactory.createDaemon(properties);
+            Runtime.getRuntime().addShutdownHook(new Thread("ingest-daemon-shutdown") {
+                @Override
+                public void run() {
+                    daemon.stop();
+                }
+            });
+            daemon.start();
+            System.err.println("Ingest initiator daemon listening on localhost:" + daemon.getControlPort());
+            daemon.awaitStop();
+        } catch (Exception e) {
+            System.err.println("An unrecoverable error occured.");
+            System.err.println("Error message: " + e.getMessage());
+            System.err.println("Stacktrace:");
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /** Opens the control port and schedules the first run. */
+    public void start() throws IOException {
+        controlSocket = new ServerSocket(controlPort, 50, InetAddress.getByName("127.0.0.1"));
+        Thread acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "ingest-daemon-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        if (jmxEnabled) {
+            registerMetricsMBean();
+        }
+        scheduleNextRun();
+        log.info("Started ingest initiator daemon on port " + getControlPort() + ", running at " + runTimes);
+    }
+
+    /** Stops accepting commands and cancels the next run. Waits for the current run, if any, to finish. */
+    public void stop() {
+        if (stopped.getCount() == 0) {
+            return;
+        }
+        log.info("Stopping ingest initiator daemon");
+        scheduler.shutdown();
+        connectionExecutor.shutdown();
+        try {
+            if (controlSocket != null) {
+                controlSocket.close();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to close control port: " + e);
+        }
+        if (jmxEnabled) {
+            unregisterMetricsMBean();
+        }
+        synchronized (runLock) {
+            stopped.countDown();
+        }
+    }
+
+    public void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    /** @return the port commands are accepted on, useful when daemon.control.port is 0 */
+    public int getControlPort() {
+        return controlSocket.getLocalPort();
+    }
+
+    /**
+     * Initiates ingest, writing the downloads to the given stream, once no other run is in progress.
+     *
+     * @throws RuntimeException if initiating ingest fails
+     */
+    public void initiateIngest(DateTime dateOfIngest, OutputStream outputStream) {
+        synchronized (runLock) {
+            if (stopped.getCount() == 0) {
+                throw new RuntimeException("The daemon is stopped");
+            }
+            running = true;
+            lastRunStart = new DateTime();
+            try {
+                reloadChannelMappingsIfOld();
+                initiator.initiateIngest(dateOfIngest, outputStream);
+                lastRunResult = "OK";
+            } catch (RuntimeException e) {
+                lastRunResult = "FAILED " + getCause(e);
+                throw e;
+            } finally {
+                lastRunEnd = new DateTime();
+                running = false;
+            }
+        }
+    }
+
+    /** Initiates ingest, replacing the output file with the downloads when done. */
+    public void initiateIngestToOutputFile(final DateTime dateOfIngest) {
+        try {
+            FileReplacer.replace(outputFile, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) {
+                    initiateIngest(dateOfIngest, out);
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write downloads: " + outputFile.getAbsolutePath(), e);
+        }
+        log.info("Wrote downloads to " + outputFile.getAbsolutePath());
+    }
+
+    /**
+     * @return the first of the run times after the given instant, in the default time zone. A run time skipped
+     * by DST is moved an hour later.
+     */
+    DateTime getNextRun(DateTime now) {
+        if (runTimes.isEmpty()) {
+            return null;
+        }
+        DateTimeZone zone = DateTimeZone.getDefault();
+        LocalDateTime localNow = now.withZone(zone).toLocalDateTime();
+        for (int days = 0; ; days++) {
+            for (LocalTime runTime : runTimes) {
+                LocalDateTime localRun = localNow.toLocalDate().plusDays(days).toLocalDateTime(runTime);
+                if (zone.isLocalDateTimeGap(localRun)) {
+                    localRun = localRun.plusHours(1);
+                }
+                DateTime run = localRun.toDateTime(zone);
+                if (run.isAfter(now)) {
+                    return run;
+                }
+            }
+        }
+    }
+
+    private void scheduleNextRun() {
+        nextRun = getNextRun(new DateTime());
+        if (nextRun == null) {
+            return;
+        }
+        try {
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        initiateIngestToOutputFile(new DateTime().withTimeAtStartOfDay());
+                    } catch (RuntimeException e) {
+                        log.error("Scheduled ingest failed", e);
+                    }
+                    scheduleNextRun();
+                }
+            }, nextRun.getMillis() - System.currentTimeMillis(), TimeUnit.MILLISECONDS);
+            log.info("Next ingest at " + nextRun);
+        } catch (RejectedExecutionException e) {
+            // Stopped
+            nextRun = null;
+        }
+    }
+
+    private void reloadChannelMappingsIfOld() {
+        if (channelMappingService == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (channelMappingsLoaded == Long.MIN_VALUE || now - channelMappingsLoaded > channelMappingMaxAgeMillis) {
+            channelMappingService.reload();
+            channelMappingsLoaded = now;
+        }
+    }
+
+    private void acceptConnections() {
+        while (!controlSocket.isClosed()) {
+            try {
+                final Socket connection = controlSocket.accept();
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(connection);
+                    }
+                });
+            } catch (SocketException e) {
+                // Closed by stop
+            } catch (RejectedExecutionException e) {
+                // Stopped
+            } catch (IOException e) {
+                log.warn("Unable to accept control connection: " + e);
+            }
+        }
+    }
+
+    private void handleConnection(Socket connection) {
+        try {
+            try {
+                BufferedReader reader = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                String line = reader.readLine();
+                if (line != null) {
+                    handleCommand(line.trim(), connection.getOutputStream());
+                }
+            } finally {
+                connection.close();
+            }
+        } catch (Exception e) {
+            log.warn("Control command failed: " + e, e);
+        }
+    }
+
+    private void handleCommand(String line, OutputStream out) throws IOException {
+        log.info("Control command: " + line);
+        List<String> words = new ArrayList<String>(Arrays.asList(line.split("\\s+")));
+        String command = words.remove(0);
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        if (command.equals("run")) {
+            DateTime dateOfIngest;
+            try {
+                dateOfIngest = words.isEmpty() ? new DateTime().withTimeAtStartOfDay() : dateFormatter.parseDateTime(words.get(0));
+            } catch (IllegalArgumentException e) {
+                writer.write("ERROR date must be yyyy-MM-dd: " + words.get(0) + "\n");
+                writer.flush();
+                return;
+            }
+            // The connection is closed once the run is recorded, not by the initiator, so a status command sent when
+            // the downloads have been read shows the run
+            initiateIngest(dateOfIngest, new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            });
+            return;
+        }
+        if (command.equals("trigger")) {
+            try {
+                initiateIngestToOutputFile(new DateTime().withTimeAtStartOfDay());
+                writer.write("OK " + outputFile.getAbsolutePath() + "\n");
+            } catch (RuntimeException e) {
+                writer.write("FAILED " + getCause(e) + "\n");
+            }
+        } else if (command.equals("status")) {
+            writer.write("running=" + running + "\n");
+            writer.write("last.run.start=" + lastRunStart + "\n");
+            writer.write("last.run.end=" + lastRunEnd + "\n");
+            writer.write("last.run.result=" + lastRunResult + "\n");
+            writer.write("next.run=" + nextRun + "\n");
+        } else if (command.equals("reload")) {
+            synchronized (runLock) {
+                channelMappingsLoaded = Long.MIN_VALUE;
+            }
+            writer.write("OK\n");
+        } else if (command.equals("invalidate")) {
+            int removed;
+            synchronized (runLock) {
+                removed = initiator.invalidateTerminalStates(words);
+            }
+            writer.write("OK removed " + removed + " of " + words.size() + " files\n");
+        } else if (command.equals("stop")) {
+            writer.write("OK\n");
+            writer.flush();
+            stop();
+        } else {
+            writer.write("ERROR unknown command: " + command + "\n");
+        }
+        writer.flush();
+    }
+
+    private void registerMetricsMBean() {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new RunMetricsMBean(), new ObjectName(METRICS_MBEAN_NAME));
+        } catch (JMException e) {
+            throw new RuntimeException("Unable to register MBean " + METRICS_MBEAN_NAME, e);
+        }
+    }
+
+    private void unregisterMetricsMBean() {
+        try {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(METRICS_MBEAN_NAME);
+            if (mBeanServer.isRegistered(name)) {
+                mBeanServer.unregisterMBean(name);
+            }
+        } catch (JMException e) {
+            log.warn("Unable to unregister MBean " + METRICS_MBEAN_NAME + ": " + e);
+        }
+    }
+
+    /** @return the error wrapped by the initiator, or the error itself */
+    private static Throwable getCause(RuntimeException e) {
+        return e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static List<LocalTime> getRunTimes(String runTimesValue) {
+        List<LocalTime> runTimes = new ArrayList<LocalTime>();
+        for (String runTime : runTimesValue.split(",")) {
+            if (runTime.trim().length() > 0) {
+                runTimes.add(runTimeFormatter.parseLocalTime(runTime.trim()));
+            }
+        }
+        Collections.sort(runTimes);
+        return runTimes;
+    }
+
+    private static ThreadFactory createThreadFactory(final String threadName) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /** Read only MBean with the metrics of the last run, or of the current run while a run is in progress, as attributes. */
+    private class RunMetricsMBean implements DynamicMBean {
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            RunMetrics metrics = initiator.getRunMetrics();
+            if (attribute.equals("result")) {
+                return running ? "RUNNING" : lastRunResult;
+            }
+            Number value = metrics.getValues().get(attribute);
+            if (value == null) {
+                throw new AttributeNotFoundException(attribute);
+            }
+            return value;
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            AttributeList attributeList = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    attributeList.add(new Attribute(attribute, getAttribute(attribute)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the JMX specification asks
+                }
+            }
+            return attributeList;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException("Attribute " + attribute.getName() + " is read only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) throws MBeanException, ReflectionException {
+            // The MBean has no operations
+            throw new ReflectionException(new NoSuchMethodException(actionName));
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+            attributes.add(new MBeanAttributeInfo("result", String.class.getName(), "Result of the last run", true, false, false));
+            for (Map.Entry<String, Number> value : initiator.getRunMetrics().getValues().entrySet()) {
+                attributes.add(new MBeanAttributeInfo(value.getKey(), value.getValue().getClass().getName(),
+                        value.getKey().replace('_', ' '), true, false, false));
+            }
+            return new MBeanInfo(getClass().getName(), "Metrics of the last ingest run",
+                    attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, null, null);
+        }
+    }
+}
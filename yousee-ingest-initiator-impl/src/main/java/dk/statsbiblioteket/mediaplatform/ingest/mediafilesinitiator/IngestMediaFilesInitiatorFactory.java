@@ -18,6 +18,7 @@ import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappi
 public class IngestMediaFilesInitiatorFactory {
 
     private static final String HIBERNATE_CONFIG_FILE_PATH_KEY = "hibernate.config.file.path";
+    private static final String CLI_HIBERNATE_CONFIG_FILE_PATH_KEY = "cli.hibernate.config.file.path";
     private static final String LOG4J_CONFIG_FILE_PATH_KEY = "log4j.config.file.path";
 
     private static final Logger log = Logger.getLogger(IngestMediaFilesInitiatorFactory.class);
@@ -25,23 +26,133 @@ public class IngestMediaFilesInitiatorFactory {
     
     /**
      * Creates instance of IngestInitiatorMediaFiles with db access and an output stream
-     * that is directed to stdout
+     * that is directed to stdout. Hibernate is set up when the database is first used, from the config file of
+     * cli.hibernate.config.file.path if set, which only needs the entities of the initiator and a small pool, and
+     * from the config file of hibernate.config.file.path otherwise. If jdbc.loader.enabled is
+     * true, requests and mappings are loaded with a {@link JdbcChannelDataLoader} instead. If plan.snapshot.file.path
+     * is set, they are planned from a snapshot, see {@link PlanSnapshotStore}, and when planning offline, the Hibernate
+     * config file is not needed.
      * 
      * @param properties
      * @return
      */
     public static IngestMediaFilesInitiator create(Properties properties) {
         setupLog4j(getPropertyValue(properties, LOG4J_CONFIG_FILE_PATH_KEY));
-        setupHibernate(getPropertyValue(properties, HIBERNATE_CONFIG_FILE_PATH_KEY));
+        boolean offline = PlanSnapshotStore.isOffline(properties);
+        String hibernateConfigFilePath = properties.getProperty(CLI_HIBERNATE_CONFIG_FILE_PATH_KEY);
+        if (hibernateConfigFilePath == null) {
+            hibernateConfigFilePath = offline ? properties.getProperty(HIBERNATE_CONFIG_FILE_PATH_KEY)
+                    : getPropertyValue(properties, HIBERNATE_CONFIG_FILE_PATH_KEY);
+        }
+        LazyHibernate hibernate = new LazyHibernate(hibernateConfigFilePath);
         OutputStream outputStream = System.out;
-        ChannelArchiveRequestServiceIF channelArchiveRequestService = new ChannelArchiveRequestService();
-        YouSeeChannelMappingServiceIF youSeeChannelMappingService = new YouSeeChannelMappingService();
-        WorkFlowStateMonitorFacade workFlowStateMonitorFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+        ChannelArchiveRequestServiceIF channelArchiveRequestService = new LazyChannelArchiveRequestService(hibernate);
+        ChannelArchiveRequestServiceIF hibernateRequestService = channelArchiveRequestService;
+        YouSeeChannelMappingServiceIF youSeeChannelMappingService = new LazyYouSeeChannelMappingService(hibernate);
+        JdbcChannelDataLoader loader = offline ? null : createJdbcChannelDataLoader(properties, hibernateConfigFilePath);
+        if (JdbcChannelDataLoader.isEnabled(properties) && loader != null) {
+            // Hibernate is then only set up if requests or mappings are changed, or to check the requests
+            channelArchiveRequestService = new JdbcChannelArchiveRequestService(loader, channelArchiveRequestService,
+                    createHibernateRequestCheck(properties, hibernateRequestService));
+            youSeeChannelMappingService = new JdbcYouSeeChannelMappingService(loader, youSeeChannelMappingService);
+        }
+        if (PlanSnapshotStore.isEnabled(properties)) {
+            PlanSnapshotStore store = new PlanSnapshotStore(properties, loader, channelArchiveRequestService, youSeeChannelMappingService);
+            channelArchiveRequestService = new SnapshotChannelArchiveRequestService(store, channelArchiveRequestService,
+                    createHibernateRequestCheck(properties, hibernateRequestService));
+            youSeeChannelMappingService = new SnapshotYouSeeChannelMappingService(store, youSeeChannelMappingService);
+        }
+        youSeeChannelMappingService = new CachingYouSeeChannelMappingService(youSeeChannelMappingService);
+        WorkFlowStateMonitorFacade workFlowStateMonitorFacade = createWorkFlowStateMonitorFacade(properties);
         IngestMediaFilesInitiator ingestInitiatorMediaFiles = new IngestMediaFilesInitiator(properties, channelArchiveRequestService, youSeeChannelMappingService, workFlowStateMonitorFacade, outputStream);
         return ingestInitiatorMediaFiles;
     }
 
 
+    /**
+     * Creates a daemon initiating ingest on a schedule, see {@link IngestMediaFilesInitiatorDaemon}. The initiator
+     * of the daemon writes to the output file of the daemon, or to the connection of a run command.
+     *
+     * @param properties
+     * @return
+     */
+    public static IngestMediaFilesInitiatorDaemon createDaemon(Properties properties) {
+        setupLog4j(getPropertyValue(properties, LOG4J_CONFIG_FILE_PATH_KEY));
+        boolean offline = PlanSnapshotStore.isOffline(properties);
+        ChannelArchiveRequestServiceIF channelArchiveRequestService;
+        YouSeeChannelMappingServiceIF mappingService;
+        JdbcChannelDataLoader loader = null;
+        if (offline) {
+            // Only changes to requests or mappings set up Hibernate
+            LazyHibernate hibernate = new LazyHibernate(properties.getProperty(HIBERNATE_CONFIG_FILE_PATH_KEY));
+            channelArchiveRequestService = new LazyChannelArchiveRequestService(hibernate);
+            mappingService = new LazyYouSeeChannelMappingService(hibernate);
+        } else {
+            String hibernateConfigFilePath = getPropertyValue(properties, HIBERNATE_CONFIG_FILE_PATH_KEY);
+            setupHibernate(hibernateConfigFilePath);
+            channelArchiveRequestService = new ChannelArchiveRequestService();
+            mappingService = new YouSeeChannelMappingService();
+            loader = createJdbcChannelDataLoader(properties, hibernateConfigFilePath);
+        }
+        ChannelArchiveRequestServiceIF hibernateRequestService = channelArchiveRequestService;
+        if (JdbcChannelDataLoader.isEnabled(properties) && loader != null) {
+            channelArchiveRequestService = new JdbcChannelArchiveRequestService(loader, channelArchiveRequestService,
+                    createHibernateRequestCheck(properties, hibernateRequestService));
+            mappingService = new JdbcYouSeeChannelMappingService(loader, mappingService);
+        }
+        if (PlanSnapshotStore.isEnabled(properties)) {
+            PlanSnapshotStore store = new PlanSnapshotStore(properties, loader, channelArchiveRequestService, mappingService);
+            channelArchiveRequestService = new SnapshotChannelArchiveRequestService(store, channelArchiveRequestService,
+                    createHibernateRequestCheck(properties, hibernateRequestService));
+            mappingService = new SnapshotYouSeeChannelMappingService(store, mappingService);
+        }
+        CachingYouSeeChannelMappingService youSeeChannelMappingService = new CachingYouSeeChannelMappingService(mappingService);
+        WorkFlowStateMonitorFacade workFlowStateMonitorFacade = createWorkFlowStateMonitorFacade(properties);
+        IngestMediaFilesInitiator ingestInitiatorMediaFiles = new IngestMediaFilesInitiator(properties, channelArchiveRequestService, youSeeChannelMappingService, workFlowStateMonitorFacade, null);
+        return new IngestMediaFilesInitiatorDaemon(properties, ingestInitiatorMediaFiles, youSeeChannelMappingService);
+    }
+
+
+    /**
+     * @return the JDBC loader of requests and mappings, also querying the version of the database for the plan
+     * snapshot, or null if neither is enabled
+     */
+    private static JdbcChannelDataLoader createJdbcChannelDataLoader(Properties properties, String hibernateConfigFilePath) {
+        if (!JdbcChannelDataLoader.isEnabled(properties) && !PlanSnapshotStore.isEnabled(properties)) {
+            return null;
+        }
+        return new JdbcChannelDataLoader(properties, hibernateConfigFilePath);
+    }
+
+
+    /** @return the check of the requests loaded without Hibernate against the Hibernate service, or null if disabled */
+    private static HibernateRequestCheck createHibernateRequestCheck(Properties properties, ChannelArchiveRequestServiceIF hibernateRequestService) {
+        return HibernateRequestCheck.isEnabled(properties) ? new HibernateRequestCheck(hibernateRequestService) : null;
+    }
+
+
+    /**
+     * Creates the facade of the work flow state monitor. States are added in the background by an
+     * {@link AsyncStateReporter}, unless disabled. When the JVM shuts down, the reporter is closed, and then the
+     * facade, logging its counters and releasing its connections.
+     */
+    protected static WorkFlowStateMonitorFacade createWorkFlowStateMonitorFacade(Properties properties) {
+        final WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+        final AsyncStateReporter asyncStateReporter = AsyncStateReporter.isEnabled(properties)
+                ? new AsyncStateReporter(properties, webServiceFacade) : null;
+        Runtime.getRuntime().addShutdownHook(new Thread("work-flow-state-monitor-shutdown") {
+            @Override
+            public void run() {
+                if (asyncStateReporter != null) {
+                    asyncStateReporter.close();
+                }
+                webServiceFacade.close();
+            }
+        });
+        return asyncStateReporter != null ? asyncStateReporter : webServiceFacade;
+    }
+
+
     protected static void setupLog4j(String log4jConfigFilePath) throws FactoryConfigurationError {
         DOMConfigurator.configure(log4jConfigFilePath);
         log.debug("Log4j property file: " + log4jConfigFilePath);
@@ -0,0 +1,96 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ChannelArchivingRequesterValidator;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ValidationFailure;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.validator.ValidatorIF;
+
+/**
+ * Channel archive request service loading requests with a {@link JdbcChannelDataLoader}. Changes go to the wrapped
+ * service.
+ *
+ * As by the Hibernate service, the valid requests are validated with the validator of the requester, disabling the
+ * requests failing validation with the failure as their cause. If given a {@link HibernateRequestCheck}, the valid
+ * requests are checked against those of the Hibernate service.
+ */
+class JdbcChannelArchiveRequestService implements ChannelArchiveRequestServiceIF {
+
+    private static final Logger log = Logger.getLogger(JdbcChannelArchiveRequestService.class);
+
+    private final JdbcChannelDataLoader loader;
+    private final ChannelArchiveRequestServiceIF channelArchiveRequestService;
+    private final HibernateRequestCheck hibernateRequestCheck;
+
+    /** @param hibernateRequestCheck the check of the valid requests, or null if they are not checked */
+    JdbcChannelArchiveRequestService(JdbcChannelDataLoader loader, ChannelArchiveRequestServiceIF channelArchiveRequestService,
+            HibernateRequestCheck hibernateRequestCheck) {
+        this.loader = loader;
+        this.channelArchiveRequestService = channelArchiveRequestService;
+        this.hibernateRequestCheck = hibernateRequestCheck;
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getValidRequests(Date fromDate, Date toDate) throws ServiceException {
+        List<ChannelArchiveRequest> caRequests;
+        try {
+            caRequests = validate(loader.loadRequests(fromDate, toDate));
+        } catch (SQLException e) {
+            log.error("Unable to load requests from " + fromDate + " to " + toDate, e);
+            throw new ServiceException("Unable to load requests from " + fromDate + " to " + toDate + ": " + e);
+        }
+        return hibernateRequestCheck == null ? caRequests : hibernateRequestCheck.check(caRequests, fromDate, toDate);
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getAllRequests() throws ServiceException {
+        try {
+            return loader.loadAllRequests();
+        } catch (SQLException e) {
+            log.error("Unable to load requests", e);
+            throw new ServiceException("Unable to load requests: " + e);
+        }
+    }
+
+    /**
+     * Validates each request against the other requests, enabling the valid requests and disabling the others.
+     *
+     * @return the requests
+     */
+    static List<ChannelArchiveRequest> validate(List<ChannelArchiveRequest> caRequests) {
+        ValidatorIF validator = new ChannelArchivingRequesterValidator();
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            try {
+                validator.validate(caRequest, caRequests);
+                caRequest.setEnabled(true);
+                caRequest.setCause(null);
+            } catch (ValidationFailure e) {
+                caRequest.setEnabled(false);
+                caRequest.setCause(e.getMessage());
+            }
+        }
+        return caRequests;
+    }
+
+    @Override
+    public void insert(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.insert(caRequest);
+    }
+
+    @Override
+    public void update(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.update(caRequest);
+    }
+
+    @Override
+    public void delete(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.delete(caRequest);
+    }
+}
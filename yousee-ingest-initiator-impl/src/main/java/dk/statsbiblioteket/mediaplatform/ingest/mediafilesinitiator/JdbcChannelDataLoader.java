@@ -0,0 +1,270 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+
+/**
+ * Loads channel archive requests and channel mappings with one plain JDBC query each, instead of through Hibernate.
+ * The connection URL, user name, password and driver are read from the Hibernate config file, and a connection is
+ * opened, read only, for each query.
+ *
+ * The rows are streamed in batches of jdbc.loader.fetch.size. PostgreSQL only streams within a transaction, so auto
+ * commit is turned off while reading. The queries, jdbc.loader.requests.query, jdbc.loader.all.requests.query and
+ * jdbc.loader.mappings.query, must return the columns named as in the default queries, which assume the default table
+ * and column names of the Hibernate mappings. The requests query is given the end and the start of the period, in that order. The weekday
+ * coverage may be stored by name or by ordinal.
+ *
+ * Whether a request is enabled, and why not, is not stored, but set by validating the requests, see
+ * {@link JdbcChannelArchiveRequestService}. The requests loaded are enabled.
+ */
+final class JdbcChannelDataLoader {
+
+    static final String JDBC_LOADER_ENABLED_KEY = "jdbc.loader.enabled";
+    private static final String JDBC_LOADER_FETCH_SIZE_KEY = "jdbc.loader.fetch.size";
+    private static final String JDBC_LOADER_REQUESTS_QUERY_KEY = "jdbc.loader.requests.query";
+    private static final String JDBC_LOADER_MAPPINGS_QUERY_KEY = "jdbc.loader.mappings.query";
+    private static final String JDBC_LOADER_ALL_REQUESTS_QUERY_KEY = "jdbc.loader.all.requests.query";
+    static final String DEFAULT_ALL_REQUESTS_QUERY = "SELECT id, sBChannelId, weekdayCoverage, fromTime, toTime, fromDate, toDate"
+            + " FROM ChannelArchiveRequest";
+    static final String DEFAULT_REQUESTS_QUERY = DEFAULT_ALL_REQUESTS_QUERY
+            + " WHERE (fromDate IS NULL OR fromDate <= ?) AND (toDate IS NULL OR toDate >= ?)";
+    static final String DEFAULT_MAPPINGS_QUERY = "SELECT id, sbChannelId, youSeeChannelId, displayName, fromDate, toDate"
+            + " FROM YouSeeChannelMapping";
+    private static final Logger log = Logger.getLogger(JdbcChannelDataLoader.class);
+
+    private final String url;
+    private final String username;
+    private final String password;
+    private final int fetchSize;
+    private final String requestsQuery;
+    private final String allRequestsQuery;
+    private final String mappingsQuery;
+
+    JdbcChannelDataLoader(Properties properties, String hibernateConfigFilePath) {
+        Map<String, String> connectionProperties = readConnectionProperties(new File(hibernateConfigFilePath));
+        this.url = connectionProperties.get("connection.url");
+        this.username = connectionProperties.get("connection.username");
+        this.password = connectionProperties.get("connection.password");
+        if (url == null) {
+            throw new RuntimeException("No connection.url in Hibernate config file " + hibernateConfigFilePath);
+        }
+        String driverClass = connectionProperties.get("connection.driver_class");
+        if (driverClass != null) {
+            try {
+                // Drivers older than JDBC 4 are not found unless loaded
+                Class.forName(driverClass);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException("JDBC driver " + driverClass + " not found", e);
+            }
+        }
+        this.fetchSize = Integer.parseInt(properties.getProperty(JDBC_LOADER_FETCH_SIZE_KEY, "500"));
+        this.requestsQuery = properties.getProperty(JDBC_LOADER_REQUESTS_QUERY_KEY, DEFAULT_REQUESTS_QUERY);
+        this.mappingsQuery = properties.getProperty(JDBC_LOADER_MAPPINGS_QUERY_KEY, DEFAULT_MAPPINGS_QUERY);
+        this.allRequestsQuery = properties.getProperty(JDBC_LOADER_ALL_REQUESTS_QUERY_KEY, DEFAULT_ALL_REQUESTS_QUERY);
+    }
+
+    /** @return true if jdbc.loader.enabled is true, and requests and mappings should be loaded with JDBC */
+    static boolean isEnabled(Properties properties) {
+        return Boolean.parseBoolean(properties.getProperty(JDBC_LOADER_ENABLED_KEY, "false"));
+    }
+
+    /** @return the requests valid at some time from the start to the end of the period, not yet validated */
+    List<ChannelArchiveRequest> loadRequests(Date fromDate, Date toDate) throws SQLException {
+        return loadRequests(requestsQuery, new Timestamp(toDate.getTime()), new Timestamp(fromDate.getTime()));
+    }
+
+    List<ChannelArchiveRequest> loadAllRequests() throws SQLException {
+        return loadRequests(allRequestsQuery);
+    }
+
+    /**
+     * Runs a query returning a single value, eg. a count of the changes made to the tables.
+     *
+     * @return the value as a string, or null if the query returns no rows
+     */
+    String queryValue(String query) throws SQLException {
+        Connection connection = openConnection();
+        try {
+            PreparedStatement statement = prepare(connection, query);
+            try {
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    return resultSet.next() ? resultSet.getString(1) : null;
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            closeConnection(connection);
+        }
+    }
+
+    private List<ChannelArchiveRequest> loadRequests(String query, Timestamp... parameters) throws SQLException {
+        long start = System.currentTimeMillis();
+        List<ChannelArchiveRequest> caRequests = new ArrayList<ChannelArchiveRequest>();
+        Connection connection = openConnection();
+        try {
+            PreparedStatement statement = prepare(connection, query);
+            try {
+                for (int i = 0; i < parameters.length; i++) {
+                    statement.setTimestamp(i + 1, parameters[i]);
+                }
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    while (resultSet.next()) {
+                        caRequests.add(toRequest(resultSet));
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            closeConnection(connection);
+        }
+        log.debug("Loaded " + caRequests.size() + " requests in " + (System.currentTimeMillis() - start) + " ms");
+        return caRequests;
+    }
+
+    List<YouSeeChannelMapping> loadMappings() throws SQLException {
+        long start = System.currentTimeMillis();
+        List<YouSeeChannelMapping> mappings = new ArrayList<YouSeeChannelMapping>();
+        Connection connection = openConnection();
+        try {
+            PreparedStatement statement = prepare(connection, mappingsQuery);
+            try {
+                ResultSet resultSet = statement.executeQuery();
+                try {
+                    while (resultSet.next()) {
+                        mappings.add(toMapping(resultSet));
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                statement.close();
+            }
+        } finally {
+            closeConnection(connection);
+        }
+        log.debug("Loaded " + mappings.size() + " channel mappings in " + (System.currentTimeMillis() - start) + " ms");
+        return mappings;
+    }
+
+    private Connection openConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection(url, username, password);
+        try {
+            connection.setReadOnly(true);
+            connection.setAutoCommit(false);
+        } catch (SQLException e) {
+            connection.close();
+            throw e;
+        }
+        return connection;
+    }
+
+    /** Ends the read only transaction and closes the connection. */
+    private static void closeConnection(Connection connection) throws SQLException {
+        try {
+            connection.rollback();
+        } finally {
+            connection.close();
+        }
+    }
+
+    private PreparedStatement prepare(Connection connection, String query) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement(query, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+        statement.setFetchSize(fetchSize);
+        return statement;
+    }
+
+    private static ChannelArchiveRequest toRequest(ResultSet resultSet) throws SQLException {
+        ChannelArchiveRequest caRequest = new ChannelArchiveRequest();
+        caRequest.setId(resultSet.getLong("id"));
+        caRequest.setsBChannelId(resultSet.getString("sBChannelId"));
+        caRequest.setWeekdayCoverage(toWeekdayCoverage(resultSet.getObject("weekdayCoverage")));
+        caRequest.setFromTime(resultSet.getTime("fromTime"));
+        caRequest.setToTime(resultSet.getTime("toTime"));
+        caRequest.setFromDate(toDate(resultSet.getTimestamp("fromDate")));
+        caRequest.setToDate(toDate(resultSet.getTimestamp("toDate")));
+        return caRequest;
+    }
+
+    private static YouSeeChannelMapping toMapping(ResultSet resultSet) throws SQLException {
+        YouSeeChannelMapping mapping = new YouSeeChannelMapping();
+        mapping.setId(resultSet.getLong("id"));
+        mapping.setSbChannelId(resultSet.getString("sbChannelId"));
+        mapping.setYouSeeChannelId(resultSet.getString("youSeeChannelId"));
+        mapping.setDisplayName(resultSet.getString("displayName"));
+        mapping.setFromDate(toDate(resultSet.getTimestamp("fromDate")));
+        mapping.setToDate(toDate(resultSet.getTimestamp("toDate")));
+        return mapping;
+    }
+
+    private static WeekdayCoverage toWeekdayCoverage(Object value) {
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof Number) {
+            return WeekdayCoverage.values()[((Number) value).intValue()];
+        }
+        return WeekdayCoverage.valueOf(value.toString().trim());
+    }
+
+    /** @return the time as a java.util.Date, as Timestamp does not compare equal to Date */
+    private static Date toDate(Timestamp timestamp) {
+        return timestamp == null ? null : new Date(timestamp.getTime());
+    }
+
+    /** @return the connection properties of the Hibernate config file, without any hibernate. prefix */
+    private static Map<String, String> readConnectionProperties(File hibernateConfigFile) {
+        Map<String, String> connectionProperties = new HashMap<String, String>();
+        try {
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            // The DTD is not needed, and fetching it fails without network access
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            DocumentBuilder builder = factory.newDocumentBuilder();
+            Document document = builder.parse(hibernateConfigFile);
+            NodeList nodes = document.getElementsByTagName("property");
+            for (int i = 0; i < nodes.getLength(); i++) {
+                Element element = (Element) nodes.item(i);
+                String name = element.getAttribute("name");
+                if (name.startsWith("hibernate.")) {
+                    name = name.substring("hibernate.".length());
+                }
+                if (name.startsWith("connection.")) {
+                    connectionProperties.put(name, element.getTextContent().trim());
+                }
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("Unable to read Hibernate config file " + hibernateConfigFile.getAbsolutePath(), e);
+        }
+        return connectionProperties;
+    }
+}
@@ -0,0 +1,64 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Channel mapping service loading all mappings with a {@link JdbcChannelDataLoader}. Other calls go to the wrapped
+ * service. Meant to be wrapped by a {@link CachingYouSeeChannelMappingService}, which answers the lookups from the
+ * mappings loaded, so the mappings of a run are loaded by a single query.
+ */
+class JdbcYouSeeChannelMappingService implements YouSeeChannelMappingServiceIF {
+
+    private static final Logger log = Logger.getLogger(JdbcYouSeeChannelMappingService.class);
+
+    private final JdbcChannelDataLoader loader;
+    private final YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+
+    JdbcYouSeeChannelMappingService(JdbcChannelDataLoader loader, YouSeeChannelMappingServiceIF youSeeChannelMappingService) {
+        this.loader = loader;
+        this.youSeeChannelMappingService = youSeeChannelMappingService;
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromYouSeeChannelId(String youSeeChannelId, Date date) throws ServiceException {
+        return youSeeChannelMappingService.getUniqueMappingFromYouSeeChannelId(youSeeChannelId, date);
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sbChannelId, Date date) throws ServiceException {
+        return youSeeChannelMappingService.getUniqueMappingFromSbChannelId(sbChannelId, date);
+    }
+
+    @Override
+    public List<YouSeeChannelMapping> getAllMappings() throws ServiceException {
+        try {
+            return loader.loadMappings();
+        } catch (SQLException e) {
+            log.error("Unable to load channel mappings", e);
+            throw new ServiceException("Unable to load channel mappings: " + e);
+        }
+    }
+
+    @Override
+    public void create(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.create(youSeeChannelMapping);
+    }
+
+    @Override
+    public void update(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.update(youSeeChannelMapping);
+    }
+
+    @Override
+    public void delete(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.delete(youSeeChannelMapping);
+    }
+}
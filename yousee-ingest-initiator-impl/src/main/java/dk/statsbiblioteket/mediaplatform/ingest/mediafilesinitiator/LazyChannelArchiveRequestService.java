@@ -0,0 +1,63 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Date;
+import java.util.List;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestService;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+
+/**
+ * Channel archive request service setting up Hibernate, and creating the wrapped service, on the first call.
+ */
+class LazyChannelArchiveRequestService implements ChannelArchiveRequestServiceIF {
+
+    private final LazyHibernate hibernate;
+    private ChannelArchiveRequestServiceIF channelArchiveRequestService;
+
+    LazyChannelArchiveRequestService(LazyHibernate hibernate) {
+        this.hibernate = hibernate;
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getValidRequests(Date fromDate, Date toDate) throws ServiceException {
+        return getService().getValidRequests(fromDate, toDate);
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getAllRequests() throws ServiceException {
+        return getService().getAllRequests();
+    }
+
+    @Override
+    public void insert(ChannelArchiveRequest caRequest) throws ServiceException {
+        getService().insert(caRequest);
+    }
+
+    @Override
+    public void update(ChannelArchiveRequest caRequest) throws ServiceException {
+        getService().update(caRequest);
+    }
+
+    @Override
+    public void delete(ChannelArchiveRequest caRequest) throws ServiceException {
+        getService().delete(caRequest);
+    }
+
+    LazyHibernate getHibernate() {
+        return hibernate;
+    }
+
+    protected ChannelArchiveRequestServiceIF createService() {
+        return new ChannelArchiveRequestService();
+    }
+
+    private synchronized ChannelArchiveRequestServiceIF getService() {
+        if (channelArchiveRequestService == null) {
+            hibernate.ensureInitialised();
+            channelArchiveRequestService = createService();
+        }
+        return channelArchiveRequestService;
+    }
+}
@@ -0,0 +1,47 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Sets up Hibernate the first time persistence is used, instead of when the initiator is created. Creating the
+ * session factory and its connection pool is most of the startup time of a run, and is not needed at all by runs
+ * failing before the database is used.
+ */
+class LazyHibernate {
+
+    private static final Logger log = Logger.getLogger(LazyHibernate.class);
+
+    private final String hibernateConfigFilePath;
+    private volatile boolean initialised;
+
+    LazyHibernate(String hibernateConfigFilePath) {
+        this.hibernateConfigFilePath = hibernateConfigFilePath;
+    }
+
+    /** Sets up Hibernate unless it is already set up. */
+    void ensureInitialised() {
+        if (initialised) {
+            return;
+        }
+        synchronized (this) {
+            if (!initialised) {
+                long start = System.currentTimeMillis();
+                initialise();
+                initialised = true;
+                log.info("Set up Hibernate in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
+
+    String getHibernateConfigFilePath() {
+        return hibernateConfigFilePath;
+    }
+
+    boolean isInitialised() {
+        return initialised;
+    }
+
+    protected void initialise() {
+        IngestMediaFilesInitiatorFactory.setupHibernate(hibernateConfigFilePath);
+    }
+}
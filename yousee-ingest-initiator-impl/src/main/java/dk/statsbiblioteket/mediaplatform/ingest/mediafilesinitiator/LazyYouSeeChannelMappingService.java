@@ -0,0 +1,64 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Date;
+import java.util.List;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingService;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Channel mapping service setting up Hibernate, and creating the wrapped service, on the first call.
+ */
+class LazyYouSeeChannelMappingService implements YouSeeChannelMappingServiceIF {
+
+    private final LazyHibernate hibernate;
+    private YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+
+    LazyYouSeeChannelMappingService(LazyHibernate hibernate) {
+        this.hibernate = hibernate;
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromYouSeeChannelId(String youSeeChannelId, Date date) throws ServiceException {
+        return getService().getUniqueMappingFromYouSeeChannelId(youSeeChannelId, date);
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sbChannelId, Date date) throws ServiceException {
+        return getService().getUniqueMappingFromSbChannelId(sbChannelId, date);
+    }
+
+    @Override
+    public List<YouSeeChannelMapping> getAllMappings() throws ServiceException {
+        return getService().getAllMappings();
+    }
+
+    @Override
+    public void create(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        getService().create(youSeeChannelMapping);
+    }
+
+    @Override
+    public void update(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        getService().update(youSeeChannelMapping);
+    }
+
+    @Override
+    public void delete(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        getService().delete(youSeeChannelMapping);
+    }
+
+    protected YouSeeChannelMappingServiceIF createService() {
+        return new YouSeeChannelMappingService();
+    }
+
+    private synchronized YouSeeChannelMappingServiceIF getService() {
+        if (youSeeChannelMappingService == null) {
+            hibernate.ensureInitialised();
+            youSeeChannelMappingService = createService();
+        }
+        return youSeeChannelMappingService;
+    }
+}
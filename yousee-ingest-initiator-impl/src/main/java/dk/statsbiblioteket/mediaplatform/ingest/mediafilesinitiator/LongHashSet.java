@@ -0,0 +1,102 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Arrays;
+
+/**
+ * Set of longs, stored in an open addressing hash table without boxing the values.
+ */
+class LongHashSet {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    /** Table of values, where 0 marks an empty slot. Whether 0 is in the set is kept in containsZero. */
+    private long[] table;
+    private boolean containsZero = false;
+    private int size = 0;
+
+    LongHashSet() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    LongHashSet(int expectedSize) {
+        int capacity = MINIMUM_CAPACITY;
+        while (capacity < expectedSize * 2) {
+            capacity *= 2;
+        }
+        table = new long[capacity];
+    }
+
+    /** @return true if the value was not already in the set */
+    boolean add(long value) {
+        if (value == 0) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int slot = findSlot(table, value);
+        if (table[slot] == value) {
+            return false;
+        }
+        table[slot] = value;
+        size++;
+        if (size * 2 > table.length) {
+            grow();
+        }
+        return true;
+    }
+
+    boolean contains(long value) {
+        if (value == 0) {
+            return containsZero;
+        }
+        return table[findSlot(table, value)] == value;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /** @return the values in ascending order */
+    long[] toSortedArray() {
+        long[] values = new long[size];
+        int i = 0;
+        if (containsZero) {
+            values[i++] = 0;
+        }
+        for (long value : table) {
+            if (value != 0) {
+                values[i++] = value;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private void grow() {
+        long[] newTable = new long[table.length * 2];
+        for (long value : table) {
+            if (value != 0) {
+                newTable[findSlot(newTable, value)] = value;
+            }
+        }
+        table = newTable;
+    }
+
+    /** @return the slot holding the value, or the empty slot where it belongs */
+    private static int findSlot(long[] table, long value) {
+        int mask = table.length - 1;
+        int slot = hash(value) & mask;
+        while (table[slot] != 0 && table[slot] != value) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
@@ -0,0 +1,270 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+
+/**
+ * All channel archive requests and channel mappings, as loaded from the database at one time, with the version of
+ * the database they were loaded at, see {@link PlanSnapshotStore}.
+ *
+ * The snapshot file starts with a magic number and the format version, and ends with a CRC32 of the rest, so a file
+ * of another format or a damaged file is rejected instead of planned from. Strings are stored as UTF-8 and dates as
+ * milliseconds since 1970. The file is memory mapped when read.
+ *
+ * Whether a request is enabled, and why not, is not stored, as it is set when the requests are validated for
+ * planning. The requests and mappings returned are copies, new on each call, as planning disables requests that fail,
+ * so a failure in one run does not disable the request in the snapshot for the runs after it.
+ */
+final class PlanSnapshot {
+
+    static final int MAGIC = 0x59535053;
+    static final int FORMAT_VERSION = 2;
+
+    private final String databaseVersion;
+    private final long createdMillis;
+    private final List<ChannelArchiveRequest> caRequests;
+    private final List<YouSeeChannelMapping> mappings;
+
+    PlanSnapshot(String databaseVersion, long createdMillis, List<ChannelArchiveRequest> caRequests,
+            List<YouSeeChannelMapping> mappings) {
+        this.databaseVersion = databaseVersion;
+        this.createdMillis = createdMillis;
+        this.caRequests = Collections.unmodifiableList(new ArrayList<ChannelArchiveRequest>(caRequests));
+        this.mappings = Collections.unmodifiableList(new ArrayList<YouSeeChannelMapping>(mappings));
+    }
+
+    /** @return the version of the database the snapshot was loaded at, or null if unknown */
+    String getDatabaseVersion() {
+        return databaseVersion;
+    }
+
+    long getCreatedMillis() {
+        return createdMillis;
+    }
+
+    List<ChannelArchiveRequest> getAllRequests() {
+        List<ChannelArchiveRequest> allRequests = new ArrayList<ChannelArchiveRequest>(caRequests.size());
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            allRequests.add(copy(caRequest));
+        }
+        return allRequests;
+    }
+
+    /**
+     * @return the requests valid at some time from the start to the end of the period, not yet validated. A request
+     * without a from or to date is open in that end.
+     */
+    List<ChannelArchiveRequest> getValidRequests(Date fromDate, Date toDate) {
+        List<ChannelArchiveRequest> validRequests = new ArrayList<ChannelArchiveRequest>();
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            if ((caRequest.getFromDate() == null || !caRequest.getFromDate().after(toDate))
+                    && (caRequest.getToDate() == null || !caRequest.getToDate().before(fromDate))) {
+                validRequests.add(copy(caRequest));
+            }
+        }
+        return validRequests;
+    }
+
+    /** @return a new request with the stored fields of the given request */
+    private static ChannelArchiveRequest copy(ChannelArchiveRequest caRequest) {
+        ChannelArchiveRequest copy = new ChannelArchiveRequest();
+        copy.setId(caRequest.getId());
+        copy.setsBChannelId(caRequest.getsBChannelId());
+        copy.setWeekdayCoverage(caRequest.getWeekdayCoverage());
+        copy.setFromTime(caRequest.getFromTime());
+        copy.setToTime(caRequest.getToTime());
+        copy.setFromDate(caRequest.getFromDate());
+        copy.setToDate(caRequest.getToDate());
+        return copy;
+    }
+
+    List<YouSeeChannelMapping> getAllMappings() {
+        List<YouSeeChannelMapping> allMappings = new ArrayList<YouSeeChannelMapping>(mappings.size());
+        for (YouSeeChannelMapping mapping : mappings) {
+            allMappings.add(copy(mapping));
+        }
+        return allMappings;
+    }
+
+    /** @return a new mapping with the fields of the given mapping */
+    private static YouSeeChannelMapping copy(YouSeeChannelMapping mapping) {
+        YouSeeChannelMapping copy = new YouSeeChannelMapping();
+        copy.setId(mapping.getId());
+        copy.setSbChannelId(mapping.getSbChannelId());
+        copy.setYouSeeChannelId(mapping.getYouSeeChannelId());
+        copy.setDisplayName(mapping.getDisplayName());
+        copy.setFromDate(mapping.getFromDate());
+        copy.setToDate(mapping.getToDate());
+        return copy;
+    }
+
+    /** Replaces the file with the snapshot, see {@link FileReplacer}. */
+    void write(File file) throws IOException {
+        FileReplacer.replace(file, new FileReplacer.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                write(out);
+            }
+        });
+    }
+
+    private void write(OutputStream fileOut) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fileOut));
+        DataOutputStream checkedOut = new DataOutputStream(new CheckedOutputStream(out, crc));
+        checkedOut.writeInt(MAGIC);
+        checkedOut.writeInt(FORMAT_VERSION);
+        checkedOut.writeLong(createdMillis);
+        writeString(checkedOut, databaseVersion);
+        checkedOut.writeInt(caRequests.size());
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            writeLong(checkedOut, caRequest.getId());
+            writeString(checkedOut, caRequest.getsBChannelId());
+            writeString(checkedOut, caRequest.getWeekdayCoverage() == null ? null : caRequest.getWeekdayCoverage().name());
+            writeDate(checkedOut, caRequest.getFromTime());
+            writeDate(checkedOut, caRequest.getToTime());
+            writeDate(checkedOut, caRequest.getFromDate());
+            writeDate(checkedOut, caRequest.getToDate());
+        }
+        checkedOut.writeInt(mappings.size());
+        for (YouSeeChannelMapping mapping : mappings) {
+            writeLong(checkedOut, mapping.getId());
+            writeString(checkedOut, mapping.getSbChannelId());
+            writeString(checkedOut, mapping.getYouSeeChannelId());
+            writeString(checkedOut, mapping.getDisplayName());
+            writeDate(checkedOut, mapping.getFromDate());
+            writeDate(checkedOut, mapping.getToDate());
+        }
+        checkedOut.flush();
+        out.writeLong(crc.getValue());
+        out.flush();
+    }
+
+    /** @return the snapshot of the file, which must exist */
+    static PlanSnapshot read(File file) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            return read(buffer, file);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static PlanSnapshot read(ByteBuffer buffer, File file) throws IOException {
+        if (buffer.limit() < 16 || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not a plan snapshot: " + file.getAbsolutePath());
+        }
+        if (buffer.getInt(4) != FORMAT_VERSION) {
+            throw new IOException("Plan snapshot " + file.getAbsolutePath() + " is of format version " + buffer.getInt(4)
+                    + ", expected " + FORMAT_VERSION);
+        }
+        int crcOffset = buffer.limit() - 8;
+        CRC32 crc = new CRC32();
+        byte[] bytes = new byte[crcOffset];
+        buffer.get(bytes);
+        crc.update(bytes);
+        if (crc.getValue() != buffer.getLong(crcOffset)) {
+            throw new IOException("Plan snapshot " + file.getAbsolutePath() + " is damaged, checksum mismatch");
+        }
+        try {
+            buffer.position(8);
+            long createdMillis = buffer.getLong();
+            String databaseVersion = readString(buffer);
+            int requestCount = buffer.getInt();
+            List<ChannelArchiveRequest> caRequests = new ArrayList<ChannelArchiveRequest>(requestCount);
+            for (int i = 0; i < requestCount; i++) {
+                ChannelArchiveRequest caRequest = new ChannelArchiveRequest();
+                caRequest.setId(readLong(buffer));
+                caRequest.setsBChannelId(readString(buffer));
+                String weekdayCoverage = readString(buffer);
+                caRequest.setWeekdayCoverage(weekdayCoverage == null ? null : WeekdayCoverage.valueOf(weekdayCoverage));
+                caRequest.setFromTime(toTime(readDate(buffer)));
+                caRequest.setToTime(toTime(readDate(buffer)));
+                caRequest.setFromDate(readDate(buffer));
+                caRequest.setToDate(readDate(buffer));
+                caRequests.add(caRequest);
+            }
+            int mappingCount = buffer.getInt();
+            List<YouSeeChannelMapping> mappings = new ArrayList<YouSeeChannelMapping>(mappingCount);
+            for (int i = 0; i < mappingCount; i++) {
+                YouSeeChannelMapping mapping = new YouSeeChannelMapping();
+                mapping.setId(readLong(buffer));
+                mapping.setSbChannelId(readString(buffer));
+                mapping.setYouSeeChannelId(readString(buffer));
+                mapping.setDisplayName(readString(buffer));
+                mapping.setFromDate(readDate(buffer));
+                mapping.setToDate(readDate(buffer));
+                mappings.add(mapping);
+            }
+            return new PlanSnapshot(databaseVersion, createdMillis, caRequests, mappings);
+        } catch (RuntimeException e) {
+            throw new IOException("Unable to read plan snapshot " + file.getAbsolutePath() + ": " + e);
+        }
+    }
+
+    /** Writes the string as its length in UTF-8 bytes and the bytes, -1 being null. */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes("UTF-8");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) throws IOException {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /** Writes whether the value is there, and the value if it is. */
+    private static void writeLong(DataOutputStream out, Long value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeLong(value);
+        }
+    }
+
+    private static Long readLong(ByteBuffer buffer) {
+        return buffer.get() != 0 ? Long.valueOf(buffer.getLong()) : null;
+    }
+
+    private static void writeDate(DataOutputStream out, Date value) throws IOException {
+        writeLong(out, value == null ? null : Long.valueOf(value.getTime()));
+    }
+
+    private static Date readDate(ByteBuffer buffer) {
+        Long millis = readLong(buffer);
+        return millis == null ? null : new Date(millis);
+    }
+
+    private static Time toTime(Date date) {
+        return date == null ? null : new Time(date.getTime());
+    }
+}
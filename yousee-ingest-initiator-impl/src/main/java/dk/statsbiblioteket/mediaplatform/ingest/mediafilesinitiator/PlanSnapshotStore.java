@@ -0,0 +1,148 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Keeps a {@link PlanSnapshot} of all requests and mappings in plan.snapshot.file.path, so runs can plan without
+ * loading them from the database.
+ *
+ * Before planning, the database is asked for its version with plan.snapshot.version.query, a query returning a single
+ * value that changes whenever the requests or mappings change. The default counts the rows inserted, updated and
+ * deleted in the tables, as recorded by the statistics of PostgreSQL. Only if the version differs from the version of
+ * the snapshot are the requests and mappings loaded, and the snapshot replaced. If the version can not be queried, eg.
+ * while the database is under maintenance, the snapshot is planned from as it is.
+ *
+ * If plan.snapshot.offline is true, the database is not used at all, and runs fail if there is no snapshot.
+ */
+class PlanSnapshotStore {
+
+    static final String PLAN_SNAPSHOT_FILE_PATH_KEY = "plan.snapshot.file.path";
+    static final String PLAN_SNAPSHOT_OFFLINE_KEY = "plan.snapshot.offline";
+    private static final String PLAN_SNAPSHOT_VERSION_QUERY_KEY = "plan.snapshot.version.query";
+    static final String DEFAULT_VERSION_QUERY = "SELECT sum(n_tup_ins + n_tup_upd + n_tup_del) FROM pg_stat_user_tables"
+            + " WHERE lower(relname) IN ('channelarchiverequest', 'youseechannelmapping')";
+    private static final Logger log = Logger.getLogger(PlanSnapshotStore.class);
+
+    private final File file;
+    private final boolean offline;
+    private final String versionQuery;
+    private final JdbcChannelDataLoader loader;
+    private final ChannelArchiveRequestServiceIF channelArchiveRequestService;
+    private final YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+    private PlanSnapshot snapshot;
+    private boolean fileRead;
+
+    /**
+     * @param loader queries the version of the database, null if offline
+     * @param channelArchiveRequestService loads the requests when the snapshot is refreshed
+     * @param youSeeChannelMappingService loads the mappings when the snapshot is refreshed
+     */
+    PlanSnapshotStore(Properties properties, JdbcChannelDataLoader loader,
+            ChannelArchiveRequestServiceIF channelArchiveRequestService, YouSeeChannelMappingServiceIF youSeeChannelMappingService) {
+        this.file = new File(ChannelShard.fromProperties(properties).getFilePath(
+                IngestMediaFilesInitiatorFactory.getPropertyValue(properties, PLAN_SNAPSHOT_FILE_PATH_KEY)));
+        this.offline = isOffline(properties);
+        this.versionQuery = properties.getProperty(PLAN_SNAPSHOT_VERSION_QUERY_KEY, DEFAULT_VERSION_QUERY);
+        this.loader = loader;
+        this.channelArchiveRequestService = channelArchiveRequestService;
+        this.youSeeChannelMappingService = youSeeChannelMappingService;
+    }
+
+    /** @return true if plan.snapshot.file.path is set, and runs should plan from a snapshot */
+    static boolean isEnabled(Properties properties) {
+        return properties.getProperty(PLAN_SNAPSHOT_FILE_PATH_KEY) != null;
+    }
+
+    static boolean isOffline(Properties properties) {
+        return isEnabled(properties) && Boolean.parseBoolean(properties.getProperty(PLAN_SNAPSHOT_OFFLINE_KEY, "false"));
+    }
+
+    /**
+     * @param checkVersion true to refresh the snapshot if the database has changed, false to only load the snapshot
+     * if there is none
+     * @return the snapshot to plan from
+     */
+    synchronized PlanSnapshot getSnapshot(boolean checkVersion) throws ServiceException {
+        if (!fileRead) {
+            fileRead = true;
+            snapshot = readFile();
+        }
+        if (offline) {
+            if (snapshot == null) {
+                throw new ServiceException("No plan snapshot " + file.getAbsolutePath() + " to plan from offline");
+            }
+            return snapshot;
+        }
+        if (snapshot != null && !checkVersion) {
+            return snapshot;
+        }
+        String version = null;
+        try {
+            version = queryDatabaseVersion();
+        } catch (SQLException e) {
+            if (snapshot != null) {
+                log.warn("Unable to query database version, planning from snapshot of " + new Date(snapshot.getCreatedMillis()), e);
+                return snapshot;
+            }
+            log.warn("Unable to query database version, loading requests and mappings", e);
+        }
+        if (snapshot != null && version != null && version.equals(snapshot.getDatabaseVersion())) {
+            log.debug("Planning from snapshot of " + new Date(snapshot.getCreatedMillis()) + " at database version " + version);
+            return snapshot;
+        }
+        snapshot = load(version);
+        return snapshot;
+    }
+
+    /** @return the version of the database, or null if the query returns no rows */
+    protected String queryDatabaseVersion() throws SQLException {
+        return loader.queryValue(versionQuery);
+    }
+
+    /**
+     * Loads the requests and mappings, and replaces the snapshot file. The version is queried before loading, so
+     * changes made while loading make the next run load again.
+     */
+    private PlanSnapshot load(String version) throws ServiceException {
+        long start = System.currentTimeMillis();
+        List<ChannelArchiveRequest> caRequests = channelArchiveRequestService.getAllRequests();
+        List<YouSeeChannelMapping> mappings = youSeeChannelMappingService.getAllMappings();
+        PlanSnapshot loaded = new PlanSnapshot(version, start, caRequests, mappings);
+        try {
+            loaded.write(file);
+        } catch (IOException e) {
+            log.error("Unable to write plan snapshot " + file.getAbsolutePath(), e);
+        }
+        log.info("Loaded plan snapshot of " + caRequests.size() + " requests and " + mappings.size() + " mappings at database version "
+                + version + " in " + (System.currentTimeMillis() - start) + " ms");
+        return loaded;
+    }
+
+    /** @return the snapshot of the file, or null if there is none or it can not be read */
+    private PlanSnapshot readFile() {
+        if (!file.exists()) {
+            return null;
+        }
+        try {
+            PlanSnapshot read = PlanSnapshot.read(file);
+            log.debug("Read plan snapshot of " + new Date(read.getCreatedMillis()) + " from " + file.getAbsolutePath());
+            return read;
+        } catch (IOException e) {
+            log.warn("Ignoring plan snapshot " + file.getAbsolutePath(), e);
+            return null;
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends a duplicate of a call that has not returned within a given percentile of the latencies of recent calls, and
+ * returns the result of whichever returns first, so a call stalled by eg. a garbage collection in the monitor does
+ * not stall the run. The calls must be safe to repeat.
+ *
+ * At most the given share of the calls are duplicated. Until enough calls have been made to estimate the percentile,
+ * no calls are duplicated.
+ */
+final class RequestHedger {
+
+    /** Number of recent latencies the percentile is estimated from */
+    static final int LATENCY_WINDOW = 1000;
+    /** Number of calls between estimates of the percentile */
+    private static final int ESTIMATE_INTERVAL = 100;
+
+    private final ExecutorService executor;
+    private final double percentile;
+    private final double budget;
+    private final long minDelayNanos;
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    /** Recent latencies in nanoseconds, a ring buffer guarded by itself */
+    private final long[] latencies = new long[LATENCY_WINDOW];
+    private long latencyCount;
+    private volatile long hedgeDelayNanos = -1;
+
+    /**
+     * @param executor runs the calls and their duplicates
+     * @param percentile the percentile, from 0 to 100, of the latencies to wait before duplicating a call
+     * @param budget the share of the calls that may be duplicated
+     * @param minDelayMillis the least time to wait before duplicating a call
+     */
+    RequestHedger(ExecutorService executor, double percentile, double budget, long minDelayMillis) {
+        if (percentile <= 0 || percentile >= 100 || budget < 0 || budget > 1) {
+            throw new RuntimeException("Hedge percentile must be between 0 and 100, and budget between 0 and 1, were "
+                    + percentile + " and " + budget);
+        }
+        this.executor = executor;
+        this.percentile = percentile;
+        this.budget = budget;
+        this.minDelayNanos = TimeUnit.MILLISECONDS.toNanos(minDelayMillis);
+    }
+
+    /**
+     * Makes the call, duplicating it if it is slow.
+     *
+     * @return the result of the first of the calls to succeed
+     * @throws RuntimeException the error of the last call to fail, if every call fails
+     */
+    <T> T call(Callable<T> callable) {
+        long start = System.nanoTime();
+        calls.incrementAndGet();
+        CompletionService<T> completionService = new ExecutorCompletionService<T>(executor);
+        Future<T> primary = completionService.submit(callable);
+        Future<T> hedge = null;
+        try {
+            long delayNanos = hedgeDelayNanos;
+            Future<T> first = delayNanos < 0 ? null : completionService.poll(delayNanos, TimeUnit.NANOSECONDS);
+            if (first == null && delayNanos >= 0 && hedgesFired.get() < budget * calls.get()) {
+                hedgesFired.incrementAndGet();
+                hedge = completionService.submit(callable);
+            }
+            int pending = hedge == null ? 1 : 2;
+            if (first != null) {
+                pending--;
+            } else {
+                first = completionService.take();
+                pending--;
+            }
+            while (true) {
+                try {
+                    T result = first.get();
+                    if (first == hedge) {
+                        hedgesWon.incrementAndGet();
+                    }
+                    addLatency(System.nanoTime() - start);
+                    return result;
+                } catch (ExecutionException e) {
+                    if (pending == 0) {
+                        throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause()
+                                : new RuntimeException(e.getCause());
+                    }
+                    first = completionService.take();
+                    pending--;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while waiting for call", e);
+        } finally {
+            primary.cancel(true);
+            if (hedge != null) {
+                hedge.cancel(true);
+            }
+        }
+    }
+
+    long getHedgesFired() {
+        return hedgesFired.get();
+    }
+
+    /** @return the number of duplicated calls where the duplicate returned first */
+    long getHedgesWon() {
+        return hedgesWon.get();
+    }
+
+    /** @return the time to wait before duplicating a call, or -1 if not yet estimated */
+    long getHedgeDelayNanos() {
+        return hedgeDelayNanos;
+    }
+
+    /** Records the latency of a call, and estimates the percentile now and then. */
+    private void addLatency(long nanos) {
+        long[] window = null;
+        synchronized (latencies) {
+            latencies[(int) (latencyCount % LATENCY_WINDOW)] = nanos;
+            latencyCount++;
+            if (latencyCount % ESTIMATE_INTERVAL == 0) {
+                window = Arrays.copyOf(latencies, (int) Math.min(latencyCount, LATENCY_WINDOW));
+            }
+        }
+        if (window != null) {
+            Arrays.sort(window);
+            int index = (int) Math.ceil(percentile / 100 * window.length) - 1;
+            hedgeDelayNanos = Math.max(minDelayNanos, window[Math.max(0, index)]);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+
+/**
+ * Record of the last successful ingest, used to only infer the files that have become relevant since then.
+ *
+ * The checkpoint is a properties file holding the time of the last run, the time of the last full sweep of
+ * the whole period, the number of days in that period and a fingerprint of every channel archive request.
+ * A request whose fingerprint differs from the one recorded has been created or changed since the last run.
+ *
+ * Deleting the checkpoint file is always safe, the next run is then a full sweep.
+ */
+public class RunCheckpoint {
+
+    private static final Logger log = Logger.getLogger(RunCheckpoint.class);
+    private static final String LAST_RUN_KEY = "last.run";
+    private static final String LAST_FULL_SWEEP_KEY = "last.full.sweep";
+    private static final String DAYS_TO_KEEP_KEY = "days.to.keep";
+    private static final String REQUEST_KEY_PREFIX = "request.";
+
+    private final File checkpointFile;
+    private final Properties checkpoint = new Properties();
+
+    /**
+     * Creates the checkpoint and loads the content of the checkpoint file, if it exists.
+     *
+     * @param checkpointFile file holding the checkpoint
+     */
+    public RunCheckpoint(File checkpointFile) {
+        this.checkpointFile = checkpointFile;
+        if (checkpointFile.exists()) {
+            load();
+        }
+    }
+
+    /** @return the time of the last successful run, or null if there has been none */
+    public DateTime getLastRun() {
+        return getDateTime(LAST_RUN_KEY);
+    }
+
+    /**
+     * A full sweep is due if there has been no full sweep within the given number of days, if the number of
+     * days YouSee keeps recordings has changed, or if the date of ingest is before the last run.
+     */
+    public boolean isFullSweepDue(DateTime dateOfIngest, int daysYouSeeKeepsRecordings, int fullSweepIntervalDays) {
+        DateTime lastRun = getLastRun();
+        DateTime lastFullSweep = getDateTime(LAST_FULL_SWEEP_KEY);
+        return lastRun == null || lastFullSweep == null
+                || dateOfIngest.isBefore(lastRun)
+                || !dateOfIngest.minusDays(fullSweepIntervalDays).isBefore(lastFullSweep)
+                || !String.valueOf(daysYouSeeKeepsRecordings).equals(checkpoint.getProperty(DAYS_TO_KEEP_KEY));
+    }
+
+    /** @return true if the request has been created or changed since the last run */
+    public boolean hasChanged(ChannelArchiveRequest caRequest) {
+        return !getFingerprint(caRequest).equals(checkpoint.getProperty(REQUEST_KEY_PREFIX + caRequest.getId()));
+    }
+
+    /**
+     * Records a successful run. The fingerprints of the given requests replace the recorded ones.
+     *
+     * @param fullSweep true if the whole period was examined
+     */
+    public void update(DateTime dateOfIngest, int daysYouSeeKeepsRecordings, boolean fullSweep, List<ChannelArchiveRequest> caRequests) {
+        String lastFullSweep = checkpoint.getProperty(LAST_FULL_SWEEP_KEY);
+        checkpoint.clear();
+        checkpoint.setProperty(LAST_RUN_KEY, String.valueOf(dateOfIngest.getMillis()));
+        if (fullSweep) {
+            checkpoint.setProperty(LAST_FULL_SWEEP_KEY, String.valueOf(dateOfIngest.getMillis()));
+        } else if (lastFullSweep != null) {
+            checkpoint.setProperty(LAST_FULL_SWEEP_KEY, lastFullSweep);
+        }
+        checkpoint.setProperty(DAYS_TO_KEEP_KEY, String.valueOf(daysYouSeeKeepsRecordings));
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            checkpoint.setProperty(REQUEST_KEY_PREFIX + caRequest.getId(), getFingerprint(caRequest));
+        }
+    }
+
+    /**
+     * Writes the checkpoint to the checkpoint file, see {@link FileReplacer}. A failed write leaves the old file, and a
+     * missing file makes the next run a full sweep.
+     */
+    public void save() {
+        try {
+            FileReplacer.replace(checkpointFile, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    checkpoint.store(out, "Checkpoint of the last ingest initiated");
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write run checkpoint: " + checkpointFile.getAbsolutePath(), e);
+        }
+        log.debug("Saved run checkpoint " + checkpointFile.getAbsolutePath());
+    }
+
+    /**
+     * The fields of a request that determine the files inferred from it. A request disabled because it failed
+     * is fingerprinted as disabled, so it is examined again once it is enabled.
+     */
+    static String getFingerprint(ChannelArchiveRequest caRequest) {
+        return caRequest.getsBChannelId()
+                + "|" + caRequest.getWeekdayCoverage()
+                + "|" + getTime(caRequest.getFromTime())
+                + "|" + getTime(caRequest.getToTime())
+                + "|" + getTime(caRequest.getFromDate())
+                + "|" + getTime(caRequest.getToDate())
+                + "|" + caRequest.isEnabled();
+    }
+
+    private static String getTime(Date date) {
+        return date == null ? "null" : String.valueOf(date.getTime());
+    }
+
+    private DateTime getDateTime(String key) {
+        String millis = checkpoint.getProperty(key);
+        return millis == null ? null : new DateTime(Long.parseLong(millis));
+    }
+
+    private void load() {
+        try {
+            InputStream in = new FileInputStream(checkpointFile);
+            try {
+                checkpoint.load(in);
+            } finally {
+                in.close();
+            }
+            getDateTime(LAST_RUN_KEY);
+            getDateTime(LAST_FULL_SWEEP_KEY);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read run checkpoint: " + checkpointFile.getAbsolutePath(), e);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Corrupt run checkpoint: " + checkpointFile.getAbsolutePath(), e);
+        }
+        log.debug("Loaded run checkpoint " + checkpointFile.getAbsolutePath() + " of run " + getLastRun());
+    }
+}
@@ -0,0 +1,282 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Counters and timers of the stages of one ingest run. The counters may be updated by several threads at a time.
+ *
+ * The time of a stage is summed over the threads working on it, so with parallel lookups or the pipelined output
+ * mode, the stage times may add up to more than the time of the run.
+ */
+final class RunMetrics {
+
+    /** Upper bounds, in milliseconds, of the buckets of the state lookup latency histogram */
+    static final long[] LOOKUP_LATENCY_BUCKETS = {10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+    private static final String PROMETHEUS_PREFIX = "yousee_ingest_";
+    private static final Logger log = Logger.getLogger(RunMetrics.class);
+
+    enum Stage {
+        /** Loading the channel archive requests */
+        REQUESTS,
+        /** Inferring the files to ingest from the requests */
+        SCHEDULE,
+        /** Looking up the work flow states of the files */
+        LOOKUP,
+        /** Writing the downloads */
+        OUTPUT
+    }
+
+    private final long runStart = System.nanoTime();
+    private final long runStartMillis = System.currentTimeMillis();
+    private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+    private final AtomicLong requestsLoaded = new AtomicLong();
+    private final AtomicLong slotsGenerated = new AtomicLong();
+    private final AtomicLong filesScheduled = new AtomicLong();
+    private final AtomicLong terminalCacheHits = new AtomicLong();
+    private final AtomicLong terminalCacheMisses = new AtomicLong();
+    private final AtomicLong httpCacheHits = new AtomicLong();
+    private final AtomicLong httpCacheMisses = new AtomicLong();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong lookupFiles = new AtomicLong();
+    private final AtomicLong lookupNanosMax = new AtomicLong();
+    /** Lookups per latency bucket, the last counting the lookups slower than the largest bound */
+    private final AtomicLongArray lookupLatencyCounts = new AtomicLongArray(LOOKUP_LATENCY_BUCKETS.length + 1);
+    private final AtomicLong downloadsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private volatile int lookupLimit;
+    private volatile long lookupLimitQueueNanos;
+    private volatile long lookupLimitBackoffs;
+    private volatile long runNanos = -1;
+    private volatile boolean succeeded;
+
+    void addStageTime(Stage stage, long startNanos) {
+        stageNanos.addAndGet(stage.ordinal(), System.nanoTime() - startNanos);
+    }
+
+    void addRequestsLoaded(int count) {
+        requestsLoaded.addAndGet(count);
+    }
+
+    /** Counts hour intervals of requests, including intervals also given by other requests. */
+    void addSlotsGenerated(int count) {
+        slotsGenerated.addAndGet(count);
+    }
+
+    /** Counts distinct files to ingest. */
+    void addFilesScheduled(int count) {
+        filesScheduled.addAndGet(count);
+    }
+
+    void addTerminalCacheResult(int hits, int misses) {
+        terminalCacheHits.addAndGet(hits);
+        terminalCacheMisses.addAndGet(misses);
+    }
+
+    /**
+     * Counts the conditional lookups of the states of single files, see workflow.state.monitor.http.cache.size.
+     *
+     * @param hits lookups answered with 304 Not Modified, using the cached states
+     * @param misses lookups answered with the states
+     */
+    void addHttpCacheResult(long hits, long misses) {
+        httpCacheHits.addAndGet(hits);
+        httpCacheMisses.addAndGet(misses);
+    }
+
+    /**
+     * Counts the lookups of single files sent again because they were slow, see workflow.state.monitor.hedge.percentile.
+     *
+     * @param fired lookups sent again
+     * @param won lookups sent again where the second lookup was answered first
+     */
+    void addHedges(long fired, long won) {
+        hedgesFired.addAndGet(fired);
+        hedgesWon.addAndGet(won);
+    }
+
+    /** Counts one lookup of the states of several files, started at the given time. */
+    void addLookup(int fileCount, long startNanos) {
+        long nanos = System.nanoTime() - startNanos;
+        stageNanos.addAndGet(Stage.LOOKUP.ordinal(), nanos);
+        lookupFiles.addAndGet(fileCount);
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < LOOKUP_LATENCY_BUCKETS.length && millis > LOOKUP_LATENCY_BUCKETS[bucket]) {
+            bucket++;
+        }
+        lookupLatencyCounts.incrementAndGet(bucket);
+        long max;
+        while (nanos > (max = lookupNanosMax.get()) && !lookupNanosMax.compareAndSet(max, nanos)) {
+            // Another lookup raised the maximum, try again
+        }
+    }
+
+    void addDownloadsWritten(int count) {
+        downloadsWritten.addAndGet(count);
+    }
+
+    /** @return a stream counting the bytes written to the given stream */
+    OutputStream countBytesWritten(OutputStream outputStream) {
+        return new FilterOutputStream(outputStream) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytesWritten.incrementAndGet();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytesWritten.addAndGet(len);
+            }
+        };
+    }
+
+    /**
+     * Records the state of the lookup limiter, see {@link AdaptiveConcurrencyLimiter}.
+     *
+     * @param limit the limit at the end of the run
+     * @param queueNanos the time lookups of the run waited for the limit, summed over the lookups
+     * @param backoffs the number of times the limit was decreased during the run
+     */
+    void setLookupLimiter(int limit, long queueNanos, long backoffs) {
+        this.lookupLimit = limit;
+        this.lookupLimitQueueNanos = queueNanos;
+        this.lookupLimitBackoffs = backoffs;
+    }
+
+    /** Ends the run, stopping the run timer. */
+    void finish(boolean succeeded) {
+        this.succeeded = succeeded;
+        this.runNanos = System.nanoTime() - runStart;
+    }
+
+    /**
+     * @return the counters and timers by name, times in seconds. The lookup latency histogram is only given by
+     * {@link #toJson()} and {@link #toPrometheusText()}.
+     */
+    Map<String, Number> getValues() {
+        Map<String, Number> values = new LinkedHashMap<String, Number>();
+        values.put("run_seconds", toSeconds(runNanos >= 0 ? runNanos : System.nanoTime() - runStart));
+        for (Stage stage : Stage.values()) {
+            values.put(stage.name().toLowerCase(Locale.ROOT) + "_seconds", toSeconds(stageNanos.get(stage.ordinal())));
+        }
+        values.put("requests_loaded", requestsLoaded.get());
+        values.put("slots_generated", slotsGenerated.get());
+        values.put("files_scheduled", filesScheduled.get());
+        values.put("duplicates_removed", Math.max(0, slotsGenerated.get() - filesScheduled.get()));
+        values.put("terminal_cache_hits", terminalCacheHits.get());
+        values.put("terminal_cache_misses", terminalCacheMisses.get());
+        long cacheLookups = terminalCacheHits.get() + terminalCacheMisses.get();
+        values.put("terminal_cache_hit_rate", cacheLookups == 0 ? 0.0 : (double) terminalCacheHits.get() / cacheLookups);
+        values.put("http_cache_hits", httpCacheHits.get());
+        values.put("http_cache_misses", httpCacheMisses.get());
+        values.put("hedges_fired", hedgesFired.get());
+        values.put("hedges_won", hedgesWon.get());
+        values.put("lookups", getLookupCount());
+        values.put("lookup_files", lookupFiles.get());
+        values.put("lookup_max_seconds", toSeconds(lookupNanosMax.get()));
+        values.put("lookup_limit", lookupLimit);
+        values.put("lookup_limit_queue_seconds", toSeconds(lookupLimitQueueNanos));
+        values.put("lookup_limit_backoffs", lookupLimitBackoffs);
+        values.put("downloads_written", downloadsWritten.get());
+        values.put("bytes_written", bytesWritten.get());
+        return values;
+    }
+
+    boolean isSucceeded() {
+        return succeeded;
+    }
+
+    /** @return the time the run started, in milliseconds since 1970 */
+    long getRunStartMillis() {
+        return runStartMillis;
+    }
+
+    long getLookupCount() {
+        long count = 0;
+        for (int i = 0; i < lookupLatencyCounts.length(); i++) {
+            count += lookupLatencyCounts.get(i);
+        }
+        return count;
+    }
+
+    /** @return the metrics as a JSON object on one line, the lookup latency histogram counting lookups per bucket */
+    String toJson() {
+        StringBuilder json = new StringBuilder("{\"result\":\"").append(succeeded ? "OK" : "FAILED").append('"');
+        for (Map.Entry<String, Number> value : getValues().entrySet()) {
+            json.append(",\"").append(value.getKey()).append("\":").append(format(value.getValue()));
+        }
+        json.append(",\"lookup_latency_ms\":{");
+        for (int i = 0; i < lookupLatencyCounts.length(); i++) {
+            json.append(i == 0 ? "" : ",").append('"')
+                    .append(i < LOOKUP_LATENCY_BUCKETS.length ? Long.toString(LOOKUP_LATENCY_BUCKETS[i]) : "+Inf")
+                    .append("\":").append(lookupLatencyCounts.get(i));
+        }
+        return json.append("}}").toString();
+    }
+
+    /**
+     * @return the metrics in the Prometheus text format, eg. for the textfile collector of the node exporter. The
+     * lookup latency is given as a histogram with cumulative buckets.
+     */
+    String toPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        text.append("# TYPE ").append(PROMETHEUS_PREFIX).append("run_success gauge\n");
+        text.append(PROMETHEUS_PREFIX).append("run_success ").append(succeeded ? 1 : 0).append('\n');
+        text.append("# TYPE ").append(PROMETHEUS_PREFIX).append("run_start_timestamp_seconds gauge\n");
+        text.append(PROMETHEUS_PREFIX).append("run_start_timestamp_seconds ").append(runStartMillis / 1000).append('\n');
+        for (Map.Entry<String, Number> value : getValues().entrySet()) {
+            text.append("# TYPE ").append(PROMETHEUS_PREFIX).append(value.getKey()).append(" gauge\n");
+            text.append(PROMETHEUS_PREFIX).append(value.getKey()).append(' ').append(format(value.getValue())).append('\n');
+        }
+        String histogram = PROMETHEUS_PREFIX + "lookup_latency_seconds";
+        text.append("# TYPE ").append(histogram).append(" histogram\n");
+        long cumulativeCount = 0;
+        for (int i = 0; i < lookupLatencyCounts.length(); i++) {
+            cumulativeCount += lookupLatencyCounts.get(i);
+            String bound = i < LOOKUP_LATENCY_BUCKETS.length ? Double.toString(LOOKUP_LATENCY_BUCKETS[i] / 1000.0) : "+Inf";
+            text.append(histogram).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulativeCount).append('\n');
+        }
+        text.append(histogram).append("_sum ").append(format(toSeconds(stageNanos.get(Stage.LOOKUP.ordinal())))).append('\n');
+        text.append(histogram).append("_count ").append(cumulativeCount).append('\n');
+        return text.toString();
+    }
+
+    /** Replaces the file with the given text, see {@link FileReplacer}. */
+    static void write(File file, final String text) {
+        try {
+            FileReplacer.replace(file, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write(text.getBytes("UTF-8"));
+                }
+            });
+        } catch (IOException e) {
+            log.error("Unable to write run metrics to " + file.getAbsolutePath(), e);
+        }
+    }
+
+    private static double toSeconds(long nanos) {
+        return nanos / 1e9;
+    }
+
+    private static String format(Number value) {
+        if (value instanceof Double) {
+            return String.format(Locale.ROOT, "%.6f", value.doubleValue());
+        }
+        return value.toString();
+    }
+}
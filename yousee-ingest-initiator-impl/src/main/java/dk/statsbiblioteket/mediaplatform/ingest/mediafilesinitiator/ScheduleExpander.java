@@ -0,0 +1,217 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeConstants;
+import org.joda.time.Days;
+import org.joda.time.LocalTime;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+/**
+ * Index of the channel archive requests, used to find the days on which each request is active without
+ * checking every request on every day.
+ *
+ * Each enabled request is compiled once into a bit mask of the weekdays it covers, the period in which it is
+ * valid and its local from and to times. The requests are also indexed by weekday.
+ */
+class ScheduleExpander {
+
+    private final List<CompiledRequest> requests = new ArrayList<CompiledRequest>();
+    /** Requests covering each weekday, indexed by DateTimeConstants.MONDAY to SUNDAY */
+    private final List<List<CompiledRequest>> requestsByWeekday = new ArrayList<List<CompiledRequest>>();
+    private final List<ChannelArchiveRequest> failures = new ArrayList<ChannelArchiveRequest>();
+
+    /**
+     * Compiles the requests. Disabled requests, and requests that cannot be compiled, are added to the failures.
+     */
+    ScheduleExpander(List<ChannelArchiveRequest> caRequests) {
+        for (int weekday = 0; weekday <= DateTimeConstants.SUNDAY; weekday++) {
+            requestsByWeekday.add(new ArrayList<CompiledRequest>());
+        }
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            if (!caRequest.isEnabled()) {
+                failures.add(caRequest);
+                continue;
+            }
+            try {
+                CompiledRequest request = new CompiledRequest(caRequest);
+                requests.add(request);
+                for (int weekday = DateTimeConstants.MONDAY; weekday <= DateTimeConstants.SUNDAY; weekday++) {
+                    if (request.coversWeekday(weekday)) {
+                        requestsByWeekday.get(weekday).add(request);
+                    }
+                }
+            } catch (RuntimeException e) {
+                disable(caRequest, e);
+            }
+        }
+    }
+
+    List<CompiledRequest> getRequests() {
+        return Collections.unmodifiableList(requests);
+    }
+
+    /** @return the requests, not disabled, that are active on the given day */
+    List<CompiledRequest> getRequestsActiveOn(DateTime day) {
+        List<CompiledRequest> activeRequests = new ArrayList<CompiledRequest>();
+        for (CompiledRequest request : requestsByWeekday.get(day.getDayOfWeek())) {
+            if (!request.disabled && request.isValidOn(day) && day.getMillis() >= request.expandFrom) {
+                activeRequests.add(request);
+            }
+        }
+        return activeRequests;
+    }
+
+    /**
+     * @return the days fromDate plus a whole number of days, up to and including toDate, on which the request
+     * is active and which are not before the date it is expanded from. Only the active days are visited.
+     */
+    List<DateTime> getActiveDays(CompiledRequest request, DateTime fromDate, DateTime toDate) {
+        List<DateTime> activeDays = new ArrayList<DateTime>();
+        int lastDay = Days.daysBetween(fromDate, toDate).getDays();
+        long firstMillis = Math.max(request.validFrom, request.expandFrom);
+        int day = Math.max(0, getDaysBetween(fromDate, firstMillis) - 1);
+        while (day <= lastDay && fromDate.plusDays(day).getMillis() < firstMillis) {
+            day++;
+        }
+        while (day <= lastDay) {
+            DateTime dayToCheck = fromDate.plusDays(day);
+            if (dayToCheck.getMillis() > request.validTo) {
+                break;
+            }
+            int daysToActiveDay = request.daysToNextCoveredWeekday[dayToCheck.getDayOfWeek()];
+            if (daysToActiveDay < 0) {
+                break;
+            } else if (daysToActiveDay > 0) {
+                day += daysToActiveDay;
+                continue;
+            }
+            activeDays.add(dayToCheck);
+            day++;
+        }
+        return activeDays;
+    }
+
+    /**
+     * Only expands the request on days from the given date, eg. because the days before it were examined
+     * by an earlier run.
+     */
+    void expandFrom(CompiledRequest request, DateTime date) {
+        request.expandFrom = date.getMillis();
+    }
+
+    /** Disables a request that failed, so it is skipped from now on. */
+    void disable(CompiledRequest request, Exception e) {
+        request.disabled = true;
+        disable(request.caRequest, e);
+    }
+
+    List<ChannelArchiveRequest> getFailures() {
+        return failures;
+    }
+
+    private void disable(ChannelArchiveRequest caRequest, Exception e) {
+        caRequest.setEnabled(false);
+        caRequest.setCause("Failure in Ingest Initiator during scheduling (see log for details): " + e.toString());
+        failures.add(caRequest);
+    }
+
+    private static int getDaysBetween(DateTime fromDate, long millis) {
+        long days = (millis - fromDate.getMillis()) / DateTimeConstants.MILLIS_PER_DAY;
+        return (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, days));
+    }
+
+    /** Bit mask with bit n set for each weekday n, as in DateTimeConstants, covered by the given coverage. */
+    static int getWeekdayMask(WeekdayCoverage weekdayCoverage) {
+        switch (weekdayCoverage) {
+        case DAILY:
+            return getWeekdayMask(DateTimeConstants.MONDAY, DateTimeConstants.SUNDAY);
+        case MONDAY:
+            return getWeekdayMask(DateTimeConstants.MONDAY, DateTimeConstants.MONDAY);
+        case TUESDAY:
+            return getWeekdayMask(DateTimeConstants.TUESDAY, DateTimeConstants.TUESDAY);
+        case WEDNESDAY:
+            return getWeekdayMask(DateTimeConstants.WEDNESDAY, DateTimeConstants.WEDNESDAY);
+        case THURSDAY:
+            return getWeekdayMask(DateTimeConstants.THURSDAY, DateTimeConstants.THURSDAY);
+        case FRIDAY:
+            return getWeekdayMask(DateTimeConstants.FRIDAY, DateTimeConstants.FRIDAY);
+        case SATURDAY:
+            return getWeekdayMask(DateTimeConstants.SATURDAY, DateTimeConstants.SATURDAY);
+        case SUNDAY:
+            return getWeekdayMask(DateTimeConstants.SUNDAY, DateTimeConstants.SUNDAY);
+        case MONDAY_TO_THURSDAY:
+            return getWeekdayMask(DateTimeConstants.MONDAY, DateTimeConstants.THURSDAY);
+        case MONDAY_TO_FRIDAY:
+            return getWeekdayMask(DateTimeConstants.MONDAY, DateTimeConstants.FRIDAY);
+        case SATURDAY_AND_SUNDAY:
+            return getWeekdayMask(DateTimeConstants.SATURDAY, DateTimeConstants.SUNDAY);
+        default:
+            throw new RuntimeException("Unknown Weekday enum: " + weekdayCoverage);
+        }
+    }
+
+    private static int getWeekdayMask(int firstWeekday, int lastWeekday) {
+        int mask = 0;
+        for (int weekday = firstWeekday; weekday <= lastWeekday; weekday++) {
+            mask |= 1 << weekday;
+        }
+        return mask;
+    }
+
+    /** A channel archive request, compiled for expansion into files. */
+    static class CompiledRequest {
+
+        final ChannelArchiveRequest caRequest;
+        final String sbChannelId;
+        final int weekdayMask;
+        final long validFrom;
+        final long validTo;
+        final int fromHour;
+        final int toHour;
+        final int toMinute;
+        /** Days from each weekday to the next weekday covered, or -1 if no weekday is covered */
+        private final int[] daysToNextCoveredWeekday = new int[DateTimeConstants.SUNDAY + 1];
+        private boolean disabled = false;
+        private long expandFrom = Long.MIN_VALUE;
+
+        CompiledRequest(ChannelArchiveRequest caRequest) {
+            this.caRequest = caRequest;
+            this.sbChannelId = caRequest.getsBChannelId();
+            this.weekdayMask = getWeekdayMask(caRequest.getWeekdayCoverage());
+            this.validFrom = new DateTime(caRequest.getFromDate()).getMillis();
+            this.validTo = new DateTime(caRequest.getToDate()).getMillis();
+            LocalTime localTimeFrom = new LocalTime(caRequest.getFromTime().getTime());
+            LocalTime localTimeTo = new LocalTime(caRequest.getToTime().getTime());
+            this.fromHour = localTimeFrom.getHourOfDay();
+            this.toHour = localTimeTo.getHourOfDay();
+            this.toMinute = localTimeTo.getMinuteOfHour();
+            for (int weekday = DateTimeConstants.MONDAY; weekday <= DateTimeConstants.SUNDAY; weekday++) {
+                daysToNextCoveredWeekday[weekday] = -1;
+                for (int days = 0; days < 7; days++) {
+                    if (coversWeekday((weekday - 1 + days) % 7 + 1)) {
+                        daysToNextCoveredWeekday[weekday] = days;
+                        break;
+                    }
+                }
+            }
+        }
+
+        boolean coversWeekday(int weekday) {
+            return (weekdayMask & (1 << weekday)) != 0;
+        }
+
+        boolean isValidOn(DateTime day) {
+            return validFrom <= day.getMillis() && day.getMillis() <= validTo;
+        }
+
+        boolean isActiveOn(DateTime day) {
+            return isValidOn(day) && coversWeekday(day.getDayOfWeek());
+        }
+    }
+}
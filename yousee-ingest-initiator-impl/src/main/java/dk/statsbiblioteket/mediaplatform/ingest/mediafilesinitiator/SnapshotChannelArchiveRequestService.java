@@ -0,0 +1,56 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Date;
+import java.util.List;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+
+/**
+ * Channel archive request service answering from the snapshot of a {@link PlanSnapshotStore}, refreshed when the
+ * valid requests are asked for. Changes go to the wrapped service. The valid requests are new copies on each call,
+ * validated as by Hibernate, see {@link JdbcChannelArchiveRequestService#validate(List)}, and checked against those of
+ * the Hibernate service if given a {@link HibernateRequestCheck}.
+ */
+class SnapshotChannelArchiveRequestService implements ChannelArchiveRequestServiceIF {
+
+    private final PlanSnapshotStore store;
+    private final ChannelArchiveRequestServiceIF channelArchiveRequestService;
+    private final HibernateRequestCheck hibernateRequestCheck;
+
+    /** @param hibernateRequestCheck the check of the valid requests, or null if they are not checked */
+    SnapshotChannelArchiveRequestService(PlanSnapshotStore store, ChannelArchiveRequestServiceIF channelArchiveRequestService,
+            HibernateRequestCheck hibernateRequestCheck) {
+        this.store = store;
+        this.channelArchiveRequestService = channelArchiveRequestService;
+        this.hibernateRequestCheck = hibernateRequestCheck;
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getValidRequests(Date fromDate, Date toDate) throws ServiceException {
+        List<ChannelArchiveRequest> caRequests = JdbcChannelArchiveRequestService.validate(
+                store.getSnapshot(true).getValidRequests(fromDate, toDate));
+        return hibernateRequestCheck == null ? caRequests : hibernateRequestCheck.check(caRequests, fromDate, toDate);
+    }
+
+    @Override
+    public List<ChannelArchiveRequest> getAllRequests() throws ServiceException {
+        return store.getSnapshot(false).getAllRequests();
+    }
+
+    @Override
+    public void insert(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.insert(caRequest);
+    }
+
+    @Override
+    public void update(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.update(caRequest);
+    }
+
+    @Override
+    public void delete(ChannelArchiveRequest caRequest) throws ServiceException {
+        channelArchiveRequestService.delete(caRequest);
+    }
+}
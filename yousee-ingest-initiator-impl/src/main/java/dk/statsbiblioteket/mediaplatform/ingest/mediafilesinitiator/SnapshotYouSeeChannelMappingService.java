@@ -0,0 +1,54 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.util.Date;
+import java.util.List;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Channel mapping service giving all mappings from the snapshot of a {@link PlanSnapshotStore}. Meant to be wrapped
+ * by a {@link CachingYouSeeChannelMappingService}, which answers the lookups from them. Other calls go to the wrapped
+ * service.
+ */
+class SnapshotYouSeeChannelMappingService implements YouSeeChannelMappingServiceIF {
+
+    private final PlanSnapshotStore store;
+    private final YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+
+    SnapshotYouSeeChannelMappingService(PlanSnapshotStore store, YouSeeChannelMappingServiceIF youSeeChannelMappingService) {
+        this.store = store;
+        this.youSeeChannelMappingService = youSeeChannelMappingService;
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromYouSeeChannelId(String youSeeChannelId, Date date) throws ServiceException {
+        return youSeeChannelMappingService.getUniqueMappingFromYouSeeChannelId(youSeeChannelId, date);
+    }
+
+    @Override
+    public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sbChannelId, Date date) throws ServiceException {
+        return youSeeChannelMappingService.getUniqueMappingFromSbChannelId(sbChannelId, date);
+    }
+
+    @Override
+    public List<YouSeeChannelMapping> getAllMappings() throws ServiceException {
+        return store.getSnapshot(false).getAllMappings();
+    }
+
+    @Override
+    public void create(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.create(youSeeChannelMapping);
+    }
+
+    @Override
+    public void update(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.update(youSeeChannelMapping);
+    }
+
+    @Override
+    public void delete(YouSeeChannelMapping youSeeChannelMapping) throws ServiceException {
+        youSeeChannelMappingService.delete(youSeeChannelMapping);
+    }
+}
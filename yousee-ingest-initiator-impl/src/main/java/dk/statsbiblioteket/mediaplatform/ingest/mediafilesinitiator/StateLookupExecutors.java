@@ -0,0 +1,59 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Creates executors for running lookups against the work flow state monitor concurrently.
+ *
+ * Lookups spend nearly all their time waiting for the monitor, so virtual threads are used when the
+ * JVM supports them. Otherwise a fixed pool of daemon threads is used. Either way, callers bound the
+ * concurrency themselves by the number of tasks they submit.
+ */
+final class StateLookupExecutors {
+
+    private static final Logger log = Logger.getLogger(StateLookupExecutors.class);
+
+    private StateLookupExecutors() {
+    }
+
+    /**
+     * @param parallelism the maximum number of tasks that will be submitted at the same time
+     * @param threadName name of the threads of the executor
+     * @return a new executor, which the caller must shut down
+     */
+    static ExecutorService newExecutor(int parallelism, final String threadName) {
+        ExecutorService virtualThreadExecutor = newVirtualThreadPerTaskExecutor();
+        if (virtualThreadExecutor != null) {
+            return virtualThreadExecutor;
+        }
+        final AtomicInteger threadCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName + "-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /** Looked up by reflection, as the code must still run on JVMs without virtual threads. */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factoryMethod.invoke(null);
+        } catch (NoSuchMethodException e) {
+            return null;
+        } catch (Exception e) {
+            // E.g. virtual threads present as a preview feature, but not enabled
+            log.debug("Virtual threads not available, using platform threads: " + e);
+            return null;
+        }
+    }
+}
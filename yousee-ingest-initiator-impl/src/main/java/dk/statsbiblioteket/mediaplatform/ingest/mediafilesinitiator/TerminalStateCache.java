@@ -0,0 +1,137 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+
+/**
+ * Local, on-disk record of the files whose last work flow state is final, ie. Done or Stopped. Such files
+ * are never ingested again, so the initiator does not need to ask the work flow state monitor about them.
+ *
+ * The cache is a text file with one line per file: the SB file id and the start time of the file in
+ * milliseconds, separated by a tab. The start time is used to evict files that YouSee no longer keeps.
+ *
+ * If an operator restarts a file, the file must be removed from the cache, see {@link TerminalStateCacheCLI}.
+ * Deleting the cache file is always safe, the states are then looked up again.
+ */
+public class TerminalStateCache {
+
+    private static final Logger log = Logger.getLogger(TerminalStateCache.class);
+    private static final String CHARSET = "UTF-8";
+
+    private final File cacheFile;
+    private final Map<String, Long> startTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * Creates the cache and loads the content of the cache file, if it exists.
+     *
+     * @param cacheFile file holding the cache
+     */
+    public TerminalStateCache(File cacheFile) {
+        this.cacheFile = cacheFile;
+        if (cacheFile.exists()) {
+            load();
+        }
+    }
+
+    /** @return true if the file is known to be in a final state */
+    public boolean contains(String sbFileId) {
+        return startTimes.containsKey(sbFileId);
+    }
+
+    /** Records that the file, starting at the given time, is in a final state. */
+    public void put(String sbFileId, DateTime startDate) {
+        startTimes.put(sbFileId, startDate.getMillis());
+    }
+
+    /**
+     * Removes the files from the cache, eg. because they have been restarted.
+     *
+     * @return the number of files that were in the cache
+     */
+    public int invalidate(Collection<String> sbFileIds) {
+        int removed = 0;
+        for (String sbFileId : sbFileIds) {
+            if (startTimes.remove(sbFileId) != null) {
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /** Removes the files starting before the given date, ie. files no longer considered for ingest. */
+    public void evictStartedBefore(DateTime date) {
+        long millis = date.getMillis();
+        for (Iterator<Long> iterator = startTimes.values().iterator(); iterator.hasNext();) {
+            if (iterator.next() < millis) {
+                iterator.remove();
+            }
+        }
+    }
+
+    public int size() {
+        return startTimes.size();
+    }
+
+    /**
+     * Writes the cache to the cache file, see {@link FileReplacer}. A failed write leaves the old file, and a missing
+     * file only makes the states be looked up again.
+     */
+    public void save() {
+        try {
+            FileReplacer.replace(cacheFile, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    Writer writer = new BufferedWriter(new OutputStreamWriter(out, CHARSET));
+                    for (Map.Entry<String, Long> entry : startTimes.entrySet()) {
+                        writer.write(entry.getKey());
+                        writer.write('\t');
+                        writer.write(Long.toString(entry.getValue()));
+                        writer.write('\n');
+                    }
+                    writer.flush();
+                }
+            });
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to write terminal state cache: " + cacheFile.getAbsolutePath(), e);
+        }
+        log.debug("Saved " + startTimes.size() + " files in terminal state cache " + cacheFile.getAbsolutePath());
+    }
+
+    private void load() {
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(cacheFile), CHARSET));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int separator = line.lastIndexOf('\t');
+                    if (separator > 0) {
+                        startTimes.put(line.substring(0, separator), Long.parseLong(line.substring(separator + 1)));
+                    } else if (line.length() > 0) {
+                        log.warn("Ignoring malformed line in terminal state cache: " + line);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to read terminal state cache: " + cacheFile.getAbsolutePath(), e);
+        } catch (NumberFormatException e) {
+            throw new RuntimeException("Corrupt terminal state cache: " + cacheFile.getAbsolutePath(), e);
+        }
+        log.debug("Loaded " + startTimes.size() + " files from terminal state cache " + cacheFile.getAbsolutePath());
+    }
+}
@@ -0,0 +1,78 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+public class TerminalStateCacheCLI {
+
+    private static final String WORKFLOW_STATE_CACHE_FILE_PATH_KEY = "workflow.state.cache.file.path";
+
+    /**
+     * Removes files from the terminal state cache of the ingest initiator. Must be used when a file in
+     * state Done or Stopped is set to Restarted, as the initiator otherwise never looks at the file again.
+     * Should not be run while the initiator is running, as the initiator overwrites the cache when it is done.
+     * The cache of a shard is edited by giving the shard of the initiator, either as --shard=&lt;index&gt;/&lt;count&gt;
+     * anywhere in the arguments or by ingest.shard.index and ingest.shard.count of the property file.
+     *
+     * @param args
+     * <ol>
+     *   <li>path_to_property_file - full filename and path to property file</li>
+     *   <li>sb_file_id ... - one or more SB file ids to remove from the cache</li>
+     * </ol>
+     */
+    public static void main(String[] args) {
+        try {
+            String shard = null;
+            List<String> arguments = new ArrayList<String>();
+            for (String arg : args) {
+                if (arg.startsWith(IngestMediaFilesInitiatorCLI.SHARD_OPTION)) {
+                    shard = arg.substring(IngestMediaFilesInitiatorCLI.SHARD_OPTION.length());
+                } else {
+                    arguments.add(arg);
+                }
+            }
+            if (arguments.size() < 2) {
+                System.err.println("At least two arguments must be supplied.");
+                System.err.println("Parameter required: [--shard=<index>/<count>] <path_to_property_file> <sb_file_id> [<sb_file_id> ...]");
+                System.err.println(" --shard - optional shard whose cache is edited, index from 0 to count - 1.");
+                System.err.println("  Overrides ingest.shard.index and ingest.shard.count of the property file.");
+                System.err.println(" -path_to_property_file - full filename and path to property file");
+                System.err.println(" -sb_file_id - id of a file to remove from the terminal state cache");
+                System.exit(1);
+            }
+            Properties properties = new Properties();
+            properties.load(new FileInputStream(arguments.get(0)));
+            if (shard != null) {
+                IngestMediaFilesInitiatorCLI.setShard(properties, shard);
+            }
+            String cacheFilePath = getCacheFilePath(properties);
+            if (cacheFilePath == null) {
+                System.err.println("No terminal state cache configured. Nothing to do.");
+                return;
+            }
+            TerminalStateCache cache = new TerminalStateCache(new File(cacheFilePath));
+            List<String> sbFileIds = arguments.subList(1, arguments.size());
+            int removed = cache.invalidate(sbFileIds);
+            cache.save();
+            System.err.println("Removed " + removed + " of " + sbFileIds.size() + " files from " + cacheFilePath);
+        } catch (IOException e) {
+            System.err.println("Unable to read property file: " + e.getMessage());
+            System.exit(2);
+        } catch (Exception e) {
+            System.err.println("An unrecoverable error occured.");
+            System.err.println("Error message: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(2);
+        }
+    }
+
+    /** @return the path of the cache of the shard of the initiator, as used by the initiator, or null if none is set */
+    static String getCacheFilePath(Properties properties) {
+        String cacheFilePath = properties.getProperty(WORKFLOW_STATE_CACHE_FILE_PATH_KEY);
+        return cacheFilePath == null ? null : ChannelShard.fromProperties(properties).getFilePath(cacheFilePath);
+    }
+}
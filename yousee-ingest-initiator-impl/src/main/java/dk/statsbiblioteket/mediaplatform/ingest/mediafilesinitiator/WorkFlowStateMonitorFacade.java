@@ -1,5 +1,8 @@
 package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 
+import java.util.Collection;
+import java.util.Map;
+
 import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
 
 /** Hides interface to work flow state monitor */
@@ -11,9 +14,16 @@ public interface WorkFlowStateMonitorFacade {
      */
     public abstract State getLastWorkFlowStateForEntity(String sbFileId);
 
+    /** Retrieves last state of each of the given entities
+     *
+     * @param sbFileIds Entities to look up.
+     * @return map from each of the given entities to its last state. Entities that do not exist are mapped to null.
+     */
+    public abstract Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds);
+
     /** Add a state for this component
      * @param stateName Name of state to add.
      * @param message A human readable message for the state.
      */
     public abstract void addState(String stateName, String message);
-}
\ No newline at end of file
+}
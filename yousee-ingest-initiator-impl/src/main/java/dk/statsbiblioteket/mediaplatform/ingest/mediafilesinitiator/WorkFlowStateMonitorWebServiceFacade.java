@@ -1,44 +1,218 @@
 package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
 import org.apache.log4j.Logger;
 
 import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.ClientResponse;
 import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.api.client.UniformInterfaceException;
 import com.sun.jersey.api.client.WebResource;
-import com.sun.jersey.api.client.config.ClientConfig;
-import com.sun.jersey.api.client.config.DefaultClientConfig;
+import com.sun.jersey.client.apache4.ApacheHttpClient4;
+import com.sun.jersey.client.apache4.config.ApacheHttpClient4Config;
+import com.sun.jersey.client.apache4.config.DefaultApacheHttpClient4Config;
+import com.sun.jersey.core.util.MultivaluedMapImpl;
 
 import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
 
+import javax.ws.rs.core.HttpHeaders;
 import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.MultivaluedMap;
 
 public class WorkFlowStateMonitorWebServiceFacade implements WorkFlowStateMonitorFacade {
 
     private static final String WORKFLOW_STATE_MONITOR_BASE_URL_KEY = "workflow.state.monitor.base.url";
+    private static final String WORKFLOW_STATE_MONITOR_BULK_PATH_KEY = "workflow.state.monitor.bulk.path";
+    private static final String WORKFLOW_STATE_MONITOR_BULK_CHUNK_SIZE_KEY = "workflow.state.monitor.bulk.chunk.size";
+    private static final String WORKFLOW_STATE_MONITOR_LOOKUP_THREADS_KEY = "workflow.state.monitor.lookup.threads";
+    private static final String WORKFLOW_STATE_MONITOR_CONNECT_TIMEOUT_KEY = "workflow.state.monitor.connect.timeout";
+    private static final String WORKFLOW_STATE_MONITOR_READ_TIMEOUT_KEY = "workflow.state.monitor.read.timeout";
+    private static final String WORKFLOW_STATE_MONITOR_MAX_CONNECTIONS_KEY = "workflow.state.monitor.max.connections";
+    private static final String WORKFLOW_STATE_MONITOR_HTTP_CACHE_SIZE_KEY = "workflow.state.monitor.http.cache.size";
+    private static final String WORKFLOW_STATE_MONITOR_HEDGE_PERCENTILE_KEY = "workflow.state.monitor.hedge.percentile";
+    private static final String WORKFLOW_STATE_MONITOR_HEDGE_BUDGET_KEY = "workflow.state.monitor.hedge.budget";
+    private static final String WORKFLOW_STATE_MONITOR_HEDGE_MIN_DELAY_KEY = "workflow.state.monitor.hedge.min.delay";
+    private static final String DEFAULT_BULK_CHUNK_SIZE = "50";
+    private static final String DEFAULT_LOOKUP_THREADS = "4";
+    private static final String DEFAULT_CONNECT_TIMEOUT = "10000";
+    private static final String DEFAULT_READ_TIMEOUT = "60000";
+    private static final String DEFAULT_MAX_CONNECTIONS = "8";
+    private static final String DEFAULT_HTTP_CACHE_SIZE = "0";
+    private static final String DEFAULT_HEDGE_PERCENTILE = "0";
+    private static final String DEFAULT_HEDGE_BUDGET = "0.05";
+    private static final String DEFAULT_HEDGE_MIN_DELAY = "10";
     private static final Logger log = Logger.getLogger(WorkFlowStateMonitorWebServiceFacade.class);
     private static final GenericType<List<State>> genericTypeStateList = new GenericType<List<State>>() {};
 
     private final String workFlowStateMonitorBaseUrl;
+    private final ThreadSafeClientConnManager connectionManager;
+    private final Client client;
+    private final String bulkPath;
+    private final int bulkChunkSize;
+    private final ExecutorService lookupExecutor;
+    private volatile boolean bulkLookupSupported;
+    /** Component the states of this initiator are added to. Each shard has its own. */
+    private final String component;
+    /** The last states of entities with the validators they were returned with, or null if not caching */
+    private final Map<String, CachedStates> httpCache;
+    private final AtomicLong httpCacheHits = new AtomicLong();
+    private final AtomicLong httpCacheMisses = new AtomicLong();
+    /** Limits the concurrent lookup requests, or null if not limiting */
+    private final AdaptiveConcurrencyLimiter limiter;
+    /** Duplicates slow lookups of single entities, or null if not hedging */
+    private final RequestHedger hedger;
+    private final ExecutorService hedgeExecutor;
 
     public WorkFlowStateMonitorWebServiceFacade(Properties properties) {
         this.workFlowStateMonitorBaseUrl = properties.getProperty(WORKFLOW_STATE_MONITOR_BASE_URL_KEY);
         if (this.workFlowStateMonitorBaseUrl == null) {
             throw new RuntimeException("Missing property: " + WORKFLOW_STATE_MONITOR_BASE_URL_KEY);
         }
+        ChannelShard channelShard = ChannelShard.fromProperties(properties);
+        this.component = channelShard.isSharded() ? "Yousee Ingest Initiator " + channelShard : "Yousee Ingest Initiator";
+        this.bulkPath = properties.getProperty(WORKFLOW_STATE_MONITOR_BULK_PATH_KEY);
+        this.bulkLookupSupported = this.bulkPath != null;
+        this.bulkChunkSize = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_BULK_CHUNK_SIZE_KEY, DEFAULT_BULK_CHUNK_SIZE));
+        int lookupThreads = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_LOOKUP_THREADS_KEY, DEFAULT_LOOKUP_THREADS));
+        if (this.bulkChunkSize < 1 || lookupThreads < 1) {
+            throw new RuntimeException("Properties " + WORKFLOW_STATE_MONITOR_BULK_CHUNK_SIZE_KEY + " and "
+                    + WORKFLOW_STATE_MONITOR_LOOKUP_THREADS_KEY + " must be positive");
+        }
+        this.limiter = AdaptiveConcurrencyLimiter.isEnabled(properties) ? new AdaptiveConcurrencyLimiter(properties) : null;
+        if (limiter != null) {
+            // Fewer threads would keep the limit from being reached when looking up one entity at a time
+            lookupThreads = Math.max(lookupThreads, limiter.getMaxLimit());
+        }
+        this.lookupExecutor = Executors.newFixedThreadPool(lookupThreads, createThreadFactory("workflow-state-lookup"));
+        double hedgePercentile = Double.parseDouble(properties.getProperty(WORKFLOW_STATE_MONITOR_HEDGE_PERCENTILE_KEY, DEFAULT_HEDGE_PERCENTILE));
+        if (hedgePercentile > 0) {
+            this.hedgeExecutor = Executors.newCachedThreadPool(createThreadFactory("workflow-state-hedge"));
+            this.hedger = new RequestHedger(hedgeExecutor, hedgePercentile,
+                    Double.parseDouble(properties.getProperty(WORKFLOW_STATE_MONITOR_HEDGE_BUDGET_KEY, DEFAULT_HEDGE_BUDGET)),
+                    Long.parseLong(properties.getProperty(WORKFLOW_STATE_MONITOR_HEDGE_MIN_DELAY_KEY, DEFAULT_HEDGE_MIN_DELAY)));
+        } else {
+            this.hedgeExecutor = null;
+            this.hedger = null;
+        }
+        this.connectionManager = new ThreadSafeClientConnManager();
+        // Fewer connections would keep the limit from being reached, the lookups waiting for a connection instead
+        this.client = createClient(properties, connectionManager, limiter == null ? 1 : limiter.getMaxLimit());
+        final int httpCacheSize = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_HTTP_CACHE_SIZE_KEY, DEFAULT_HTTP_CACHE_SIZE));
+        if (httpCacheSize > 0) {
+            this.httpCache = Collections.synchronizedMap(new LinkedHashMap<String, CachedStates>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, CachedStates> eldest) {
+                    return size() > httpCacheSize;
+                }
+            });
+        } else {
+            this.httpCache = null;
+        }
     }
-    
-    /* (non-Javadoc)
-     * @see dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.WorkFlowStateMonitorFacade#getWorkFlowStateForEntity(java.lang.String)
+
+    private static ThreadFactory createThreadFactory(final String threadName) {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Creates the client shared by all calls to the work flow state monitor. The client keeps persistent
+     * connections to the monitor in a pool of at most workflow.state.monitor.max.connections connections, raised to
+     * the given minimum if lower. Timeouts are given in milliseconds by workflow.state.monitor.connect.timeout and
+     * workflow.state.monitor.read.timeout.
+     */
+    private static Client createClient(Properties properties, ThreadSafeClientConnManager connectionManager, int minConnections) {
+        int maxConnections = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_MAX_CONNECTIONS_KEY, DEFAULT_MAX_CONNECTIONS));
+        if (maxConnections < minConnections) {
+            log.info("Raising " + WORKFLOW_STATE_MONITOR_MAX_CONNECTIONS_KEY + " from " + maxConnections + " to "
+                    + minConnections + ", the max limit of concurrent lookups");
+            maxConnections = minConnections;
+        }
+        int connectTimeout = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_CONNECT_TIMEOUT_KEY, DEFAULT_CONNECT_TIMEOUT));
+        int readTimeout = Integer.parseInt(properties.getProperty(WORKFLOW_STATE_MONITOR_READ_TIMEOUT_KEY, DEFAULT_READ_TIMEOUT));
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        DefaultApacheHttpClient4Config config = new DefaultApacheHttpClient4Config();
+        config.getProperties().put(ApacheHttpClient4Config.PROPERTY_CONNECTION_MANAGER, connectionManager);
+        ApacheHttpClient4 client = ApacheHttpClient4.create(config);
+        HttpParams httpParams = client.getClientHandler().getHttpClient().getParams();
+        HttpConnectionParams.setConnectionTimeout(httpParams, connectTimeout);
+        HttpConnectionParams.setSoTimeout(httpParams, readTimeout);
+        return client;
+    }
+
+    /** Releases the connections and threads held by this facade. */
+    public void close() {
+        if (httpCache != null) {
+            log.info("Work flow states not modified since cached: " + httpCacheHits.get() + ", states read: "
+                    + httpCacheMisses.get());
+        }
+        if (hedger != null) {
+            log.info("Work flow state lookups duplicated: " + hedger.getHedgesFired() + ", answered first by the duplicate: "
+                    + hedger.getHedgesWon());
+            hedgeExecutor.shutdownNow();
+        }
+        lookupExecutor.shutdownNow();
+        client.destroy();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * Looks up the last state of the entity. If workflow.state.monitor.hedge.percentile is set, a lookup not answered
+     * within that percentile of the latencies of recent lookups, and at least workflow.state.monitor.hedge.min.delay
+     * milliseconds, is sent again, and the first answer is used. At most the share
+     * workflow.state.monitor.hedge.budget of the lookups are sent again.
      */
     @Override
-    public State getLastWorkFlowStateForEntity(String sbFileId) {
-        ClientConfig config = new DefaultClientConfig();
-        Client client = Client.create(config);
+    public State getLastWorkFlowStateForEntity(final String sbFileId) {
+        if (hedger == null) {
+            return getLastWorkFlowStateForEntityOnce(sbFileId);
+        }
+        return hedger.call(new Callable<State>() {
+            @Override
+            public State call() {
+                return getLastWorkFlowStateForEntityOnce(sbFileId);
+            }
+        });
+    }
+
+    private State getLastWorkFlowStateForEntityOnce(String sbFileId) {
         WebResource webResource = client.resource(workFlowStateMonitorBaseUrl).path("states").path(sbFileId).queryParam("onlyLast", "true");
-        List<State> states = webResource.get(genericTypeStateList);
+        long start = limiter == null ? 0 : limiter.acquire();
+        boolean failed = true;
+        List<State> states;
+        try {
+            states = httpCache == null ? webResource.get(genericTypeStateList) : getConditionally(sbFileId, webResource);
+            failed = false;
+        } finally {
+            if (limiter != null) {
+                limiter.release(start, 1, failed);
+            }
+        }
         log.debug("Found states: " + states);
         State state = null;
         if (!states.isEmpty()) {
@@ -47,19 +221,207 @@ public class WorkFlowStateMonitorWebServiceFacade implements WorkFlowStateMonito
         return state;
     }
 
+    /**
+     * Gets the states of an entity, asking the monitor only to return them if they have changed since they were
+     * cached, as identified by the ETag and Last-Modified headers they were returned with. Up to
+     * workflow.state.monitor.http.cache.size entities are cached, the least recently looked up are evicted first.
+     * States returned without validators are not cached.
+     */
+    private List<State> getConditionally(String sbFileId, WebResource webResource) {
+        CachedStates cached = httpCache.get(sbFileId);
+        WebResource.Builder request = webResource.getRequestBuilder();
+        if (cached != null) {
+            if (cached.eTag != null) {
+                request = request.header(HttpHeaders.IF_NONE_MATCH, cached.eTag);
+            }
+            if (cached.lastModified != null) {
+                request = request.header(HttpHeaders.IF_MODIFIED_SINCE, cached.lastModified);
+            }
+        }
+        ClientResponse response = request.get(ClientResponse.class);
+        try {
+            if (response.getStatus() == ClientResponse.Status.NOT_MODIFIED.getStatusCode() && cached != null) {
+                httpCacheHits.incrementAndGet();
+                return cached.states;
+            }
+            if (response.getStatus() >= 300) {
+                throw new UniformInterfaceException(response);
+            }
+            List<State> states = response.getEntity(genericTypeStateList);
+            httpCacheMisses.incrementAndGet();
+            String eTag = response.getHeaders().getFirst(HttpHeaders.ETAG);
+            String lastModified = response.getHeaders().getFirst(HttpHeaders.LAST_MODIFIED);
+            if (eTag != null || lastModified != null) {
+                httpCache.put(sbFileId, new CachedStates(Collections.unmodifiableList(states), eTag, lastModified));
+            } else {
+                httpCache.remove(sbFileId);
+            }
+            return states;
+        } finally {
+            response.close();
+        }
+    }
+
+    /** @return the number of lookups answered by the monitor with 304 Not Modified, using the cached states */
+    public long getHttpCacheHits() {
+        return httpCacheHits.get();
+    }
+
+    /** @return the number of lookups, when caching, the monitor answered with the states */
+    public long getHttpCacheMisses() {
+        return httpCacheMisses.get();
+    }
+
+    /** @return the maximum number of connections kept to the monitor */
+    int getMaxConnections() {
+        return connectionManager.getMaxTotal();
+    }
+
+    /** @return the limiter of the concurrent lookup requests, or null if not limiting */
+    AdaptiveConcurrencyLimiter getLimiter() {
+        return limiter;
+    }
+
+    /** @return the number of lookups sent again because they were slow, 0 if not hedging */
+    public long getHedgesFired() {
+        return hedger == null ? 0 : hedger.getHedgesFired();
+    }
+
+    /** @return the number of lookups sent again where the second lookup was answered first, 0 if not hedging */
+    public long getHedgesWon() {
+        return hedger == null ? 0 : hedger.getHedgesWon();
+    }
+
+    /**
+     * Looks up the entities in chunks of workflow.state.monitor.bulk.chunk.size using the bulk endpoint given by
+     * workflow.state.monitor.bulk.path. If no bulk endpoint is configured, or the monitor turns out not to have
+     * one, the entities are looked up one by one using workflow.state.monitor.lookup.threads concurrent calls.
+     * Only lookups of one entity at a time are conditional, as the validators of a bulk lookup cover the whole chunk.
+     * If workflow.state.monitor.limiter.max.limit is set, each request waits for the {@link AdaptiveConcurrencyLimiter},
+     * and at least that many lookup threads are used.
+     */
+    @Override
+    public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+        Map<String, State> states = new HashMap<String, State>();
+        List<String> chunk = new ArrayList<String>(bulkChunkSize);
+        for (String sbFileId : sbFileIds) {
+            chunk.add(sbFileId);
+            if (chunk.size() == bulkChunkSize) {
+                states.putAll(getLastWorkFlowStatesForChunk(chunk));
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            states.putAll(getLastWorkFlowStatesForChunk(chunk));
+        }
+        return states;
+    }
+
+    private Map<String, State> getLastWorkFlowStatesForChunk(List<String> sbFileIds) {
+        if (bulkLookupSupported) {
+            try {
+                return getLastWorkFlowStatesInBulk(sbFileIds);
+            } catch (UniformInterfaceException e) {
+                int status = e.getResponse().getStatus();
+                e.getResponse().close();
+                if (status != 404 && status != 405) {
+                    throw e;
+                }
+                log.warn("Workflow state monitor has no bulk endpoint at '" + bulkPath + "' (HTTP " + status
+                        + "). Falling back to looking up states one entity at a time.");
+                bulkLookupSupported = false;
+            }
+        }
+        return getLastWorkFlowStatesOneByOne(sbFileIds);
+    }
+
+    private Map<String, State> getLastWorkFlowStatesInBulk(List<String> sbFileIds) {
+        MultivaluedMap<String, String> queryParams = new MultivaluedMapImpl();
+        queryParams.add("onlyLast", "true");
+        for (String sbFileId : sbFileIds) {
+            queryParams.add("entity", sbFileId);
+        }
+        WebResource webResource = client.resource(workFlowStateMonitorBaseUrl).path(bulkPath).queryParams(queryParams);
+        long start = limiter == null ? 0 : limiter.acquire();
+        boolean failed = true;
+        List<State> foundStates;
+        try {
+            foundStates = webResource.get(genericTypeStateList);
+            failed = false;
+        } finally {
+            if (limiter != null) {
+                limiter.release(start, sbFileIds.size(), failed);
+            }
+        }
+        log.debug("Found " + foundStates.size() + " states for " + sbFileIds.size() + " entities");
+        Map<String, State> states = new HashMap<String, State>();
+        for (String sbFileId : sbFileIds) {
+            states.put(sbFileId, null);
+        }
+        for (State state : foundStates) {
+            String sbFileId = state.getEntity().getName();
+            if (states.containsKey(sbFileId)) {
+                State previous = states.get(sbFileId);
+                if (previous == null || previous.getDate() == null
+                        || (state.getDate() != null && state.getDate().after(previous.getDate()))) {
+                    states.put(sbFileId, state);
+                }
+            }
+        }
+        return states;
+    }
+
+    private Map<String, State> getLastWorkFlowStatesOneByOne(List<String> sbFileIds) {
+        Map<String, Future<State>> lookups = new LinkedHashMap<String, Future<State>>();
+        for (final String sbFileId : sbFileIds) {
+            lookups.put(sbFileId, lookupExecutor.submit(new Callable<State>() {
+                @Override
+                public State call() {
+                    return getLastWorkFlowStateForEntity(sbFileId);
+                }
+            }));
+        }
+        Map<String, State> states = new HashMap<String, State>();
+        try {
+            for (Map.Entry<String, Future<State>> lookup : lookups.entrySet()) {
+                states.put(lookup.getKey(), lookup.getValue().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while looking up workflow states", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("Unable to look up workflow state: " + e.getCause(), e.getCause());
+        } finally {
+            for (Future<State> lookup : lookups.values()) {
+                lookup.cancel(true);
+            }
+        }
+        return states;
+    }
+
     @Override
     public void addState(String stateName, String message) {
         State state = new State();
-        state.setComponent("Yousee Ingest Initiator");
+        state.setComponent(component);
         state.setStateName(stateName);
         state.setMessage(message);
 
-        ClientConfig config = new DefaultClientConfig();
-        Client client = Client.create(config);
-        WebResource webResource = client.resource(workFlowStateMonitorBaseUrl).path("states").path(
-                "Yousee Ingest Initiator");
+        WebResource webResource = client.resource(workFlowStateMonitorBaseUrl).path("states").path(component);
         webResource.type(MediaType.TEXT_XML_TYPE).post(state);
         log.debug("Added state: " + state);
     }
 
+    /** States of an entity, with the validators the monitor returned them with. */
+    private static class CachedStates {
+
+        private final List<State> states;
+        private final String eTag;
+        private final String lastModified;
+
+        CachedStates(List<State> states, String eTag, String lastModified) {
+            this.states = states;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+    }
 }
@@ -0,0 +1,206 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorStubServer;
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
+
+public class AdaptiveConcurrencyLimiterTest {
+
+    private static final Logger log = Logger.getLogger(AdaptiveConcurrencyLimiterTest.class);
+
+    /**
+     * Each request to the stub monitor takes 5 ms more for each other request it handles, so above a few concurrent
+     * lookups the monitor is only slower. The limit must settle well below the 16 lookups asked for.
+     */
+    @Test
+    public void testLimitFollowsLoadOfMonitor() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer("lastStates");
+        server.setLatencyMillis(5);
+        server.setLoadLatencyMillis(5);
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+            properties.put("workflow.state.monitor.bulk.path", "lastStates");
+            properties.put("workflow.state.monitor.max.connections", "16");
+            properties.put("workflow.state.monitor.limiter.max.limit", "16");
+            WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            AdaptiveConcurrencyLimiter limiter = webServiceFacade.getLimiter();
+            runLookups(webServiceFacade, 16, 25);
+            log.info("Lookup limiter after overloaded monitor: " + limiter + ", queued " + limiter.getQueueNanos() / 1000000 + " ms");
+            assertTrue(limiter.toString(), limiter.getLimit() <= 8);
+            assertTrue(limiter.getBackoffs() > 0);
+            assertTrue(limiter.getQueueNanos() > 0);
+            webServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Without a bulk endpoint, each entity is a request of its own, and it is the requests that must be limited,
+     * however few lookup threads are configured.
+     */
+    @Test
+    public void testLimitFollowsLoadOfMonitorOneEntityAtATime() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.setLatencyMillis(2);
+        server.setLoadLatencyMillis(5);
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+            properties.put("workflow.state.monitor.lookup.threads", "1");
+            properties.put("workflow.state.monitor.max.connections", "16");
+            properties.put("workflow.state.monitor.limiter.max.limit", "16");
+            WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            AdaptiveConcurrencyLimiter limiter = webServiceFacade.getLimiter();
+            runLookups(webServiceFacade, 1, 20);
+            log.info("Lookup limiter after overloaded monitor: " + limiter + ", queued " + limiter.getQueueNanos() / 1000000 + " ms");
+            assertTrue(limiter.toString(), limiter.getLimit() <= 8);
+            assertTrue(limiter.getBackoffs() > 0);
+            webServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * The limit is fixed at 8 concurrent requests. With only 2 connections kept, the other requests would wait for a
+     * connection, so the connections are raised to the max limit.
+     */
+    @Test
+    public void testConnectionsAreRaisedToMaxLimit() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer("lastStates");
+        server.setLatencyMillis(50);
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+            properties.put("workflow.state.monitor.bulk.path", "lastStates");
+            properties.put("workflow.state.monitor.max.connections", "2");
+            properties.put("workflow.state.monitor.limiter.max.limit", "8");
+            properties.put("workflow.state.monitor.limiter.min.limit", "8");
+            WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            assertEquals(8, webServiceFacade.getMaxConnections());
+            runLookups(webServiceFacade, 8, 5);
+            assertTrue("Max concurrent requests " + server.getMaxConcurrentRequests(), server.getMaxConcurrentRequests() > 2);
+            webServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testLimitIsRaisedWhileLatencyIsSteady() throws Exception {
+        WorkFlowStateMonitorFacadeStub monitor = new WorkFlowStateMonitorFacadeStub();
+        monitor.setLookupLatency(5);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(getLimiterProperties());
+        runLookups(limit(limiter, monitor), 8, 20);
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitIsDecreasedOnFailures() throws Exception {
+        WorkFlowStateMonitorFacadeStub monitor = new WorkFlowStateMonitorFacadeStub() {
+            private final AtomicInteger lookups = new AtomicInteger();
+
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                if (lookups.incrementAndGet() > 100) {
+                    throw new RuntimeException("Monitor unavailable");
+                }
+                return super.getLastWorkFlowStatesForEntities(sbFileIds);
+            }
+        };
+        monitor.setLookupLatency(5);
+        AdaptiveConcurrencyLimiter limiter = new AdaptiveConcurrencyLimiter(getLimiterProperties());
+        WorkFlowStateMonitorFacade limitedMonitor = limit(limiter, monitor);
+        runLookups(limitedMonitor, 4, 25);
+        assertTrue(limiter.toString(), limiter.getLimit() >= 4);
+        for (int i = 0; i < 20; i++) {
+            try {
+                limitedMonitor.getLastWorkFlowStatesForEntities(createFileIds());
+                fail("Lookup should fail");
+            } catch (RuntimeException e) {
+                // Expected
+            }
+        }
+        assertEquals(1, limiter.getLimit());
+    }
+
+    private Properties getLimiterProperties() {
+        Properties properties = new Properties();
+        properties.put("workflow.state.monitor.limiter.max.limit", "8");
+        properties.put("workflow.state.monitor.limiter.min.limit", "1");
+        return properties;
+    }
+
+    /** @return the monitor with its bulk lookups limited by the limiter, as the web service facade limits its requests */
+    private static WorkFlowStateMonitorFacade limit(final AdaptiveConcurrencyLimiter limiter, final WorkFlowStateMonitorFacade monitor) {
+        return new WorkFlowStateMonitorFacadeStub() {
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                long start = limiter.acquire();
+                boolean failed = true;
+                try {
+                    Map<String, State> states = monitor.getLastWorkFlowStatesForEntities(sbFileIds);
+                    failed = false;
+                    return states;
+                } finally {
+                    limiter.release(start, sbFileIds.size(), failed);
+                }
+            }
+        };
+    }
+
+    /** Looks up the states of 50 files at a time, the given number of times on each of the given threads. */
+    private void runLookups(final WorkFlowStateMonitorFacade facade, int threads, final int lookupsPerThread) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>();
+            for (int i = 0; i < threads; i++) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int lookup = 0; lookup < lookupsPerThread; lookup++) {
+                            facade.getLastWorkFlowStatesForEntities(createFileIds());
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static List<String> createFileIds() {
+        List<String> sbFileIds = new ArrayList<String>();
+        for (int i = 0; i < 50; i++) {
+            sbFileIds.add("dr1_teracom." + (1326114000L + i * 3600) + "_teracom.ts");
+        }
+        return sbFileIds;
+    }
+}
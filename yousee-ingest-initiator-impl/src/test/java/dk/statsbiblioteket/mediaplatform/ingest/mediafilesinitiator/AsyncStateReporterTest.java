@@ -0,0 +1,186 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+
+public class AsyncStateReporterTest {
+
+    private Properties properties;
+    private File spoolFile;
+    private MonitorStub monitor;
+
+    @Before
+    public void setUp() throws IOException {
+        spoolFile = File.createTempFile("states", ".spool");
+        spoolFile.delete();
+        properties = new Properties();
+        properties.put("workflow.state.monitor.report.retry.initial.delay", "10");
+        properties.put("workflow.state.monitor.report.retry.max.delay", "40");
+        properties.put("workflow.state.monitor.report.flush.timeout", "200");
+        monitor = new MonitorStub();
+    }
+
+    @After
+    public void tearDown() {
+        monitor.unblock();
+        spoolFile.delete();
+    }
+
+    @Test
+    public void testAddStateDoesNotWaitForMonitor() throws InterruptedException {
+        monitor.block();
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("Started", "Scheduled 10 files");
+        reporter.addState("Failed", "An error occurred");
+        // Added while the monitor is blocked, so not yet sent
+        assertFalse(reporter.flush(50));
+        monitor.unblock();
+        assertTrue(reporter.flush(5000));
+        assertEquals(2, monitor.getAddedStates().size());
+    }
+
+    @Test
+    public void testStatesWithSameNameAreMerged() throws InterruptedException {
+        monitor.block();
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("Failed", "first");
+        monitor.awaitAddState();
+        reporter.addState("Failed", "second");
+        reporter.addState("Failed", "third");
+        reporter.addState("Started", "fourth");
+        monitor.unblock();
+        assertTrue(reporter.flush(5000));
+        assertEquals(3, monitor.getAddedStates().size());
+        assertEquals("Failed: first", monitor.getAddedStates().get(0));
+        assertEquals("Failed: second\nthird", monitor.getAddedStates().get(1));
+        assertEquals("Started: fourth", monitor.getAddedStates().get(2));
+    }
+
+    @Test
+    public void testFailedStatesAreRetried() throws InterruptedException {
+        monitor.failNext(3);
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("Started", "Scheduled 10 files");
+        assertTrue(reporter.flush(5000));
+        assertEquals(Collections.singletonList("Started: Scheduled 10 files"), monitor.getAddedStates());
+        assertEquals(4, monitor.getAttempts());
+    }
+
+    @Test
+    public void testOldestStateIsDroppedWhenQueueIsFull() throws InterruptedException {
+        properties.put("workflow.state.monitor.report.queue.size", "2");
+        monitor.block();
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("A", "1");
+        monitor.awaitAddState();
+        reporter.addState("B", "2");
+        reporter.addState("C", "3");
+        reporter.addState("D", "4");
+        monitor.unblock();
+        assertTrue(reporter.flush(5000));
+        // The state being sent counts, and is never dropped
+        assertEquals(Arrays.asList("A: 1", "D: 4"), monitor.getAddedStates());
+    }
+
+    @Test
+    public void testStatesNotAddedAreSpooled() throws InterruptedException {
+        properties.put("workflow.state.monitor.report.spool.file.path", spoolFile.getPath());
+        monitor.failNext(Integer.MAX_VALUE);
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("Failed", "An error occurred");
+        reporter.close();
+        assertTrue(spoolFile.exists());
+
+        MonitorStub nextMonitor = new MonitorStub();
+        AsyncStateReporter nextReporter = new AsyncStateReporter(properties, nextMonitor);
+        assertTrue(nextReporter.flush(5000));
+        nextReporter.close();
+        assertEquals(1, nextMonitor.getAddedStates().size());
+        assertTrue(nextMonitor.getAddedStates().get(0).startsWith("Failed: An error occurred\n(Reported "));
+        assertFalse(spoolFile.exists());
+    }
+
+    @Test
+    public void testShardsSpoolToTheirOwnFiles() throws InterruptedException {
+        properties.put("workflow.state.monitor.report.spool.file.path", spoolFile.getPath());
+        properties.put("ingest.shard.index", "1");
+        properties.put("ingest.shard.count", "2");
+        File shardSpoolFile = new File(spoolFile.getPath() + ".shard-1-of-2");
+        monitor.failNext(Integer.MAX_VALUE);
+        AsyncStateReporter reporter = new AsyncStateReporter(properties, monitor);
+        reporter.addState("Failed", "An error occurred");
+        reporter.close();
+        try {
+            assertTrue(shardSpoolFile.exists());
+            assertFalse(spoolFile.exists());
+        } finally {
+            shardSpoolFile.delete();
+        }
+    }
+
+    /** Monitor recording the added states, which can be made to block or fail. */
+    private static class MonitorStub extends WorkFlowStateMonitorFacadeStub {
+
+        private final List<String> addedStates = Collections.synchronizedList(new ArrayList<String>());
+        private final AtomicInteger attempts = new AtomicInteger();
+        private final AtomicInteger failures = new AtomicInteger();
+        private final CountDownLatch addStateCalled = new CountDownLatch(1);
+        private volatile CountDownLatch blocker = new CountDownLatch(0);
+
+        void block() {
+            blocker = new CountDownLatch(1);
+        }
+
+        void unblock() {
+            blocker.countDown();
+        }
+
+        void failNext(int count) {
+            failures.set(count);
+        }
+
+        void awaitAddState() throws InterruptedException {
+            addStateCalled.await();
+        }
+
+        List<String> getAddedStates() {
+            return addedStates;
+        }
+
+        int getAttempts() {
+            return attempts.get();
+        }
+
+        @Override
+        public void addState(String stateName, String message) {
+            attempts.incrementAndGet();
+            addStateCalled.countDown();
+            try {
+                blocker.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            if (failures.getAndDecrement() > 0) {
+                throw new RuntimeException("Monitor unavailable");
+            }
+            addedStates.add(stateName + ": " + message);
+        }
+    }
+}
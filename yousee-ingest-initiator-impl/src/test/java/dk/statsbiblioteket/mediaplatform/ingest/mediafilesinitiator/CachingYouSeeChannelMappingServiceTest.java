@@ -0,0 +1,109 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Arrays;
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+public class CachingYouSeeChannelMappingServiceTest {
+
+    private YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+    private CachingYouSeeChannelMappingService cachingService;
+
+    @Before
+    public void setUp() throws ServiceException {
+        youSeeChannelMappingService = mock(YouSeeChannelMappingServiceIF.class);
+        when(youSeeChannelMappingService.getAllMappings()).thenReturn(Arrays.asList(
+                createMapping("dr1", "DR1", new DateTime(2012, 1, 1, 0, 0, 0, 0), new DateTime(2012, 6, 30, 23, 59, 59, 999)),
+                createMapping("dr1", "DR1HD", new DateTime(2012, 7, 1, 0, 0, 0, 0), null),
+                createMapping("tv2", "TV2", new DateTime(2012, 1, 1, 0, 0, 0, 0), new DateTime(2012, 12, 31, 0, 0, 0, 0)),
+                createMapping("tv2", "TV2NEW", new DateTime(2012, 12, 1, 0, 0, 0, 0), new DateTime(2013, 12, 31, 0, 0, 0, 0))));
+        cachingService = new CachingYouSeeChannelMappingService(youSeeChannelMappingService);
+    }
+
+    @Test
+    public void testGetUniqueMappingFromSbChannelId_loadsMappingsOnce() throws ServiceException {
+        for (int hour = 0; hour < 24 * 365; hour++) {
+            Date date = new DateTime(2012, 1, 1, 0, 0, 0, 0).plusHours(hour).toDate();
+            String expected = date.before(new DateTime(2012, 7, 1, 0, 0, 0, 0).toDate()) ? "DR1" : "DR1HD";
+            assertEquals(expected, cachingService.getUniqueMappingFromSbChannelId("dr1", date).getYouSeeChannelId());
+        }
+        verify(youSeeChannelMappingService, times(1)).getAllMappings();
+        verify(youSeeChannelMappingService, never()).getUniqueMappingFromSbChannelId(anyString(), any(Date.class));
+    }
+
+    @Test
+    public void testGetUniqueMappingFromSbChannelId_boundariesIncluded() throws ServiceException {
+        assertEquals("DR1", cachingService.getUniqueMappingFromSbChannelId("dr1",
+                new DateTime(2012, 1, 1, 0, 0, 0, 0).toDate()).getYouSeeChannelId());
+        assertEquals("DR1", cachingService.getUniqueMappingFromSbChannelId("dr1",
+                new DateTime(2012, 6, 30, 23, 59, 59, 999).toDate()).getYouSeeChannelId());
+        assertEquals("DR1HD", cachingService.getUniqueMappingFromSbChannelId("dr1",
+                new DateTime(2012, 7, 1, 0, 0, 0, 0).toDate()).getYouSeeChannelId());
+    }
+
+    @Test
+    public void testGetUniqueMappingFromSbChannelId_overlappingMappings() throws ServiceException {
+        assertEquals("TV2", cachingService.getUniqueMappingFromSbChannelId("tv2",
+                new DateTime(2012, 11, 30, 0, 0, 0, 0).toDate()).getYouSeeChannelId());
+        assertMappingNotUnique("tv2", new DateTime(2012, 12, 15, 0, 0, 0, 0));
+        assertEquals("TV2NEW", cachingService.getUniqueMappingFromSbChannelId("tv2",
+                new DateTime(2013, 1, 1, 0, 0, 0, 0).toDate()).getYouSeeChannelId());
+    }
+
+    @Test
+    public void testGetUniqueMappingFromSbChannelId_missingMappings() throws ServiceException {
+        assertMappingNotUnique("dr1", new DateTime(2011, 12, 31, 23, 59, 59, 999));
+        assertMappingNotUnique("tv2", new DateTime(2014, 1, 1, 0, 0, 0, 0));
+        assertMappingNotUnique("unknown", new DateTime(2012, 1, 1, 0, 0, 0, 0));
+    }
+
+    @Test
+    public void testGetUniqueMappingFromYouSeeChannelId() throws ServiceException {
+        assertEquals("dr1", cachingService.getUniqueMappingFromYouSeeChannelId("DR1HD",
+                new DateTime(2020, 1, 1, 0, 0, 0, 0).toDate()).getSbChannelId());
+    }
+
+    @Test
+    public void testReload() throws ServiceException {
+        cachingService.getUniqueMappingFromSbChannelId("dr1", new DateTime(2012, 1, 1, 0, 0, 0, 0).toDate());
+        cachingService.reload();
+        cachingService.getUniqueMappingFromSbChannelId("dr1", new DateTime(2012, 1, 1, 0, 0, 0, 0).toDate());
+        verify(youSeeChannelMappingService, times(2)).getAllMappings();
+    }
+
+    private void assertMappingNotUnique(String sbChannelId, DateTime date) {
+        try {
+            cachingService.getUniqueMappingFromSbChannelId(sbChannelId, date.toDate());
+            fail("Expected ServiceException for " + sbChannelId + " at " + date);
+        } catch (ServiceException e) {
+            // Expected
+        }
+    }
+
+    private YouSeeChannelMapping createMapping(String sbChannelId, String youSeeChannelId, DateTime fromDate, DateTime toDate) {
+        YouSeeChannelMapping youSeeChannelMapping = new YouSeeChannelMapping();
+        youSeeChannelMapping.setDisplayName(youSeeChannelId);
+        youSeeChannelMapping.setYouSeeChannelId(youSeeChannelId);
+        youSeeChannelMapping.setSbChannelId(sbChannelId);
+        youSeeChannelMapping.setFromDate(fromDate.toDate());
+        youSeeChannelMapping.setToDate(toDate == null ? null : toDate.toDate());
+        return youSeeChannelMapping;
+    }
+}
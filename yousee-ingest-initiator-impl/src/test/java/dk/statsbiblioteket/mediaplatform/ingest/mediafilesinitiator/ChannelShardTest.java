@@ -0,0 +1,45 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChannelShardTest {
+
+    @Test
+    public void testChannelsAreSpreadOverShards() {
+        int[] channelCounts = new int[4];
+        for (int channel = 0; channel < 1000; channel++) {
+            channelCounts[ChannelShard.getShard("channel" + channel, 4)]++;
+        }
+        for (int channelCount : channelCounts) {
+            assertTrue("Channels per shard: " + channelCount, channelCount > 200 && channelCount < 300);
+        }
+    }
+
+    @Test
+    public void testAddingShardOnlyMovesChannelsToNewShard() {
+        int moved = 0;
+        for (int channel = 0; channel < 1000; channel++) {
+            int shard = ChannelShard.getShard("channel" + channel, 4);
+            int newShard = ChannelShard.getShard("channel" + channel, 5);
+            if (newShard != shard) {
+                assertEquals(4, newShard);
+                moved++;
+            }
+        }
+        assertTrue("Channels moved: " + moved, moved > 150 && moved < 250);
+    }
+
+    @Test
+    public void testFilePath() {
+        assertEquals("checkpoint", new ChannelShard(0, 1).getFilePath("checkpoint"));
+        assertEquals("checkpoint.shard-2-of-3", new ChannelShard(2, 3).getFilePath("checkpoint"));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testIndexOutsideShards() {
+        new ChannelShard(3, 3);
+    }
+}
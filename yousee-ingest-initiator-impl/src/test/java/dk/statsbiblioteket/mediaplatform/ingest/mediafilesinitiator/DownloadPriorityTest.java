@@ -0,0 +1,144 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.apache.log4j.Logger;
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+public class DownloadPriorityTest {
+
+    private static final Logger log = Logger.getLogger(DownloadPriorityTest.class);
+    private static final DateTime NOW = new DateTime(2012, 3, 29, 0, 0, 0, 0);
+
+    @Test
+    public void testCompare_leastSlackFirstAndExpiringLast() {
+        // Files expire 28 days after they start, and need 12 hours to download
+        MediaFileIngestOutputParameters expiring = createFile("dr1", NOW.minusDays(28).plusHours(6));
+        MediaFileIngestOutputParameters old = createFile("dr1", NOW.minusDays(27));
+        MediaFileIngestOutputParameters fresh = createFile("dr1", NOW.minusDays(1));
+        MediaFileIngestOutputParameters expiringSooner = createFile("dr1", NOW.minusDays(28).plusHours(3));
+        List<MediaFileIngestOutputParameters> files = new ArrayList<MediaFileIngestOutputParameters>(
+                Arrays.asList(fresh, expiringSooner, old, expiring));
+
+        Collections.sort(files, new DownloadPriority(getProperties(""), 28, NOW));
+
+        assertEquals(Arrays.asList(old, fresh, expiring, expiringSooner), files);
+    }
+
+    @Test
+    public void testCompare_channelPriorityAndRetries() {
+        MediaFileIngestOutputParameters dr1 = createFile("dr1", NOW.minusDays(20));
+        MediaFileIngestOutputParameters tv2 = createFile("tv2", NOW.minusDays(20).minusHours(12));
+        MediaFileIngestOutputParameters dr1Retried = createFile("dr1", NOW.minusDays(20).plusHours(1));
+        MediaFileIngestOutputParameters dr2 = createFile("dr2", NOW.minusDays(20).plusHours(1));
+        DownloadPriority priority = new DownloadPriority(getProperties("dr1:24, dr2:24"), 28, NOW);
+        priority.addRetried(dr1Retried.getFileNameSB());
+        List<MediaFileIngestOutputParameters> files = new ArrayList<MediaFileIngestOutputParameters>(
+                Arrays.asList(tv2, dr1Retried, dr2, dr1));
+
+        Collections.sort(files, priority);
+
+        assertEquals(Arrays.asList(dr1, dr2, dr1Retried, tv2), files);
+    }
+
+    /**
+     * Simulates 120 days of a backlog, with the downloads of each daily run started as download slots become free.
+     * Downloads take 12 hours, and 10 channels record a file each hour, but only 5 files can be downloaded an hour.
+     * Downloads still running when the file expires fail, having held a slot to no use.
+     */
+    @Test
+    public void testSimulatedBacklog_fewerFilesExpire() {
+        int expiredByStart = simulateExpiredFiles(false);
+        int expiredByDeadline = simulateExpiredFiles(true);
+        log.info("Simulated backlog, files expired when ordered by start: " + expiredByStart + ", by deadline: " + expiredByDeadline);
+        assertTrue(expiredByStart + " by start, " + expiredByDeadline + " by deadline", expiredByDeadline < expiredByStart);
+    }
+
+    private int simulateExpiredFiles(boolean deadlineOrder) {
+        int channels = 10;
+        int slots = 60;
+        int downloadHours = 12;
+        int retentionHours = 28 * 24;
+        int totalHours = 120 * 24;
+        DateTime epoch = new DateTime(2012, 1, 1, 0, 0, 0, 0);
+        MediaFileIngestOutputParameters[] files = new MediaFileIngestOutputParameters[totalHours * channels];
+        for (int file = 0; file < files.length; file++) {
+            files[file] = createFile("ch" + file % channels, epoch.plusHours(file / channels));
+        }
+        boolean[] saved = new boolean[files.length];
+        boolean[] inFlight = new boolean[files.length];
+        int[] slotFiles = new int[slots];
+        int[] slotEnds = new int[slots];
+        boolean[] slotSucceeds = new boolean[slots];
+        Arrays.fill(slotFiles, -1);
+        List<MediaFileIngestOutputParameters> queue = new ArrayList<MediaFileIngestOutputParameters>();
+        int queuePosition = 0;
+        for (int hour = 0; hour < totalHours; hour++) {
+            for (int slot = 0; slot < slots; slot++) {
+                if (slotFiles[slot] >= 0 && slotEnds[slot] <= hour) {
+                    saved[slotFiles[slot]] = slotSucceeds[slot];
+                    inFlight[slotFiles[slot]] = false;
+                    slotFiles[slot] = -1;
+                }
+            }
+            if (hour % 24 == 0) {
+                // The run replaces the downloads not yet started with the files recorded and neither saved nor expired
+                queue.clear();
+                queuePosition = 0;
+                for (int file = 0; file < files.length && file / channels < hour; file++) {
+                    if (!saved[file] && !inFlight[file] && file / channels + retentionHours > hour) {
+                        queue.add(files[file]);
+                    }
+                }
+                if (deadlineOrder) {
+                    Properties properties = getProperties("");
+                    properties.put("output.deadline.margin.hours", Integer.toString(downloadHours));
+                    Collections.sort(queue, new DownloadPriority(properties, 28, epoch.plusHours(hour)));
+                } else {
+                    Collections.sort(queue);
+                }
+            }
+            for (int slot = 0; slot < slots; slot++) {
+                while (slotFiles[slot] < 0 && queuePosition < queue.size()) {
+                    int file = (int) ((queue.get(queuePosition++).getStartDate().getMillis() - epoch.getMillis()) / 3600000L) * channels
+                            + Integer.parseInt(queue.get(queuePosition - 1).getChannelIDSB().substring(2));
+                    int expiryHour = file / channels + retentionHours;
+                    if (saved[file] || inFlight[file] || expiryHour <= hour) {
+                        continue;
+                    }
+                    slotFiles[slot] = file;
+                    slotEnds[slot] = Math.min(hour + downloadHours, expiryHour);
+                    slotSucceeds[slot] = hour + downloadHours <= expiryHour;
+                    inFlight[file] = true;
+                }
+            }
+        }
+        int expired = 0;
+        for (int file = 0; file < files.length; file++) {
+            if (!saved[file] && file / channels + retentionHours <= totalHours) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private static Properties getProperties(String channelHours) {
+        Properties properties = new Properties();
+        properties.put("expected.duration.of.file.ingest.process", "12");
+        properties.put("output.priority.channel.hours", channelHours);
+        return properties;
+    }
+
+    private static MediaFileIngestOutputParameters createFile(String channel, DateTime startDate) {
+        String fileName = channel + "_yousee." + startDate.getMillis() / 1000 + ".ts";
+        return new MediaFileIngestOutputParameters(fileName, fileName, channel, channel.toUpperCase(), startDate, startDate.plusHours(1));
+    }
+}
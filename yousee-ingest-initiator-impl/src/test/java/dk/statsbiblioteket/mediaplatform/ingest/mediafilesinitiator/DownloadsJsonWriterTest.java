@@ -0,0 +1,49 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+public class DownloadsJsonWriterTest {
+
+    @Test
+    public void testNoDownloads() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DownloadsJsonWriter downloadsWriter = new DownloadsJsonWriter(outputStream);
+        downloadsWriter.close();
+        String expected =
+                " {\n"
+                + "     \"downloads\":[\n"
+                + "     ]\n"
+                + " }\n";
+        assertEquals(expected, outputStream.toString("UTF-8"));
+    }
+
+    @Test
+    public void testEscaping() throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        DownloadsJsonWriter downloadsWriter = new DownloadsJsonWriter(outputStream);
+        downloadsWriter.write(new MediaFileIngestOutputParameters("dr1_teracom.ts", "DR \"1\"\\\t\u0001.mux", "dr1", "DR \u00d8",
+                new DateTime(2012, 9, 15, 10, 0, 0), new DateTime(2012, 9, 15, 11, 0, 0)));
+        downloadsWriter.close();
+        String expected =
+                " {\n"
+                + "     \"downloads\":[\n"
+                + "         {\n"
+                + "            \"fileID\" : \"dr1_teracom.ts\",\n"
+                + "            \"youSeeFilename\" : \"DR \\\"1\\\"\\\\\\t\\u0001.mux\",\n"
+                + "            \"startTime\" : \"20120915T100000+0200\",\n"
+                + "            \"endTime\" : \"20120915T110000+0200\",\n"
+                + "            \"youseeChannelID\" : \"DR \u00d8\",\n"
+                + "            \"sbChannelID\" : \"dr1\"\n"
+                + "         }\n"
+                + "     ]\n"
+                + " }\n";
+        assertEquals(expected, outputStream.toString("UTF-8"));
+        assertEquals(1, downloadsWriter.getDownloadCount());
+    }
+}
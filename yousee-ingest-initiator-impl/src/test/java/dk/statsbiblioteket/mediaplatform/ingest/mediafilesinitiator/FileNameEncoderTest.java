@@ -0,0 +1,76 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.chrono.GJChronology;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+import org.junit.Test;
+
+public class FileNameEncoderTest {
+
+    /** The formats as they were built before the encoder */
+    private static final DateTimeFormatter youseeFilenameDateFormatter = DateTimeFormat.forPattern("yyyyMMdd_HHmmss").withZoneUTC();
+    private static final DateTimeFormatter sbFilenameDateFormatter = DateTimeFormat.forPattern("yyyy-MM-dd-HH.mm.ss");
+
+    private final FileNameEncoder encoder = new FileNameEncoder();
+
+    /** Every hour of 2010 to 2015, which includes twelve DST transitions, in zones with and without DST. */
+    @Test
+    public void testSameAsFormattersEveryHour() {
+        String[] zoneIds = {"Europe/Copenhagen", "UTC", "America/New_York", "Asia/Kolkata", "Australia/Lord_Howe"};
+        for (String zoneId : zoneIds) {
+            DateTimeZone zone = DateTimeZone.forID(zoneId);
+            DateTime startDate = new DateTime(2010, 1, 1, 0, 0, 0, 0, zone);
+            DateTime lastStartDate = new DateTime(2016, 1, 1, 0, 0, 0, 0, zone);
+            while (startDate.isBefore(lastStartDate)) {
+                DateTime endDate = startDate.plusHours(1);
+                assertSameAsFormatters("dr1", "DR1", startDate, endDate);
+                startDate = endDate;
+            }
+        }
+    }
+
+    @Test
+    public void testSameAsFormattersRandomDates() {
+        Random random = new Random(42);
+        String[] zoneIds = DateTimeZone.getAvailableIDs().toArray(new String[0]);
+        for (int i = 0; i < 100000; i++) {
+            DateTimeZone zone = DateTimeZone.forID(zoneIds[random.nextInt(zoneIds.length)]);
+            // From about 1700 to 2300, including dates before 1970
+            long millis = (long) ((random.nextDouble() - 0.45) * 600 * 365.25 * 24 * 3600 * 1000);
+            DateTime startDate = new DateTime(millis, zone);
+            DateTime endDate = startDate.plusHours(1 + random.nextInt(3));
+            assertSameAsFormatters("channel" + random.nextInt(20), "CHANNEL" + random.nextInt(20), startDate, endDate);
+        }
+    }
+
+    @Test
+    public void testSameAsFormattersOutsideEncodedDates() {
+        assertSameAsFormatters("dr1", "DR1", new DateTime(9999, 12, 31, 23, 0, 0, 0), new DateTime(10000, 1, 1, 0, 0, 0, 0));
+        assertSameAsFormatters("dr1", "DR1", new DateTime(1, 1, 1, 0, 0, 0, 0), new DateTime(1, 1, 1, 1, 0, 0, 0));
+        DateTime gjStartDate = new DateTime(1582, 10, 4, 23, 0, 0, 0, GJChronology.getInstance());
+        assertSameAsFormatters("dr1", "DR1", gjStartDate, gjStartDate.plusHours(1));
+    }
+
+    private void assertSameAsFormatters(String sbChannelID, String youseeChannelID, DateTime startDate, DateTime endDate) {
+        String expectedYouSeeFilename = youseeChannelID + "_"
+                + youseeFilenameDateFormatter.print(startDate) + "_"
+                + youseeFilenameDateFormatter.print(endDate) + ".mux";
+        Long startDateInSecondsSince1970 = startDate.getMillis() / 1000;
+        Long endDateInSecondsSince1970 = endDate.getMillis() / 1000;
+        String expectedSBFileID = sbChannelID
+                + "_teracom."
+                + startDateInSecondsSince1970 + "-"
+                + sbFilenameDateFormatter.print(startDate) + "_"
+                + endDateInSecondsSince1970 + "-"
+                + sbFilenameDateFormatter.print(endDate)
+                + "_teracom.ts";
+        assertEquals(expectedYouSeeFilename, encoder.getYouSeeFilename(startDate, endDate, youseeChannelID));
+        assertEquals(expectedSBFileID, encoder.getSBFileID(sbChannelID, startDate, endDate));
+    }
+}
@@ -0,0 +1,97 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+public class FilePlanTest {
+
+    private final IngestMediaFilesInitiator initiator;
+
+    public FilePlanTest() throws IOException {
+        File propertyFile = new File(getClass().getClassLoader().getResource(
+                "ingest_initiator_media_files_unittest.properties").getPath());
+        FileInputStream in = new FileInputStream(propertyFile);
+        Properties properties = new Properties();
+        properties.load(in);
+        in.close();
+        initiator = new IngestMediaFilesInitiator(properties, null, null, null, null);
+    }
+
+    @Test
+    public void testFilesAreSortedAndUnique() {
+        DateTime startDate = new DateTime(2012, 3, 20, 14, 0, 0, 0);
+        FilePlan plan = new FilePlan(initiator);
+        plan.add("dr2", "DR2", startDate.plusHours(1));
+        plan.add("dr1", "DR1", startDate.plusHours(1));
+        plan.add("dr1", "DR1", startDate);
+        plan.add("dr1", "DR1", startDate.plusHours(1));
+        List<MediaFileIngestOutputParameters> files = plan.toList();
+        assertEquals(3, files.size());
+        assertEquals(createOutputParameters("dr1", "DR1", startDate), files.get(0));
+        assertEquals(startDate.plusHours(1), files.get(1).getStartDate());
+        assertEquals(startDate.plusHours(1), files.get(2).getStartDate());
+        assertEquals(new HashSet<MediaFileIngestOutputParameters>(Arrays.asList(
+                createOutputParameters("dr1", "DR1", startDate.plusHours(1)),
+                createOutputParameters("dr2", "DR2", startDate.plusHours(1)))),
+                new HashSet<MediaFileIngestOutputParameters>(files.subList(1, 3)));
+    }
+
+    @Test
+    public void testPlansSharingChannels() {
+        DateTime startDate = new DateTime(2012, 3, 20, 23, 0, 0, 0);
+        FilePlan firstDay = new FilePlan(initiator);
+        firstDay.add("dr1", "DR1", startDate);
+        FilePlan secondDay = new FilePlan(firstDay);
+        secondDay.add("dr2", "DR2", startDate);
+        secondDay.add("dr1", "DR1", startDate);
+        long[] secondDayFiles = secondDay.getSortedFiles();
+        int filesOnBothDays = 0;
+        for (long file : secondDayFiles) {
+            if (firstDay.contains(file)) {
+                filesOnBothDays++;
+                assertEquals(createOutputParameters("dr1", "DR1", startDate), secondDay.getOutputParameters(file));
+            }
+        }
+        assertEquals(1, filesOnBothDays);
+    }
+
+    @Test
+    public void testLongHashSet() {
+        Random random = new Random(42);
+        LongHashSet set = new LongHashSet();
+        Set<Long> expected = new HashSet<Long>();
+        for (int i = 0; i < 10000; i++) {
+            long value = random.nextInt(5000) - 100;
+            assertEquals(expected.add(value), set.add(value));
+        }
+        assertEquals(expected.size(), set.size());
+        assertTrue(set.contains(0));
+        assertFalse(set.contains(5000));
+        long[] values = set.toSortedArray();
+        for (int i = 1; i < values.length; i++) {
+            assertTrue(values[i - 1] < values[i]);
+            assertTrue(expected.contains(values[i]));
+        }
+    }
+
+    private MediaFileIngestOutputParameters createOutputParameters(String channelIDSB, String channelIDYouSee, DateTime startDate) {
+        DateTime endDate = startDate.plusHours(1);
+        return new MediaFileIngestOutputParameters(initiator.getSBFileID(channelIDSB, startDate, endDate),
+                initiator.getYouSeeFilename(startDate, endDate, channelIDYouSee),
+                channelIDSB, channelIDYouSee, startDate, endDate);
+    }
+}
@@ -0,0 +1,78 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileReplacerTest {
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("replaced", ".txt");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+        new File(file.getPath() + ".tmp").delete();
+    }
+
+    @Test
+    public void testReplace() throws IOException {
+        FileReplacer.replace(file, content("old"));
+        FileReplacer.replace(file, content("new"));
+        assertEquals("new", read(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void testFailedWriteLeavesOldFile() throws IOException {
+        FileReplacer.replace(file, content("old"));
+        try {
+            FileReplacer.replace(file, new FileReplacer.Content() {
+                @Override
+                public void writeTo(OutputStream out) throws IOException {
+                    out.write("partly".getBytes("UTF-8"));
+                    throw new IOException("Disk full");
+                }
+            });
+            fail("The write failed");
+        } catch (IOException e) {
+            // Expected
+        }
+        assertEquals("old", read(file));
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    private static FileReplacer.Content content(final String text) {
+        return new FileReplacer.Content() {
+            @Override
+            public void writeTo(OutputStream out) throws IOException {
+                out.write(text.getBytes("UTF-8"));
+            }
+        };
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int length = in.read(bytes);
+            return new String(bytes, 0, Math.max(length, 0), "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+}
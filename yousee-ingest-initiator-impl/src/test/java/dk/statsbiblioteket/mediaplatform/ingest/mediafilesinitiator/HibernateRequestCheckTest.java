@@ -0,0 +1,99 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+
+public class HibernateRequestCheckTest {
+
+    private static final Date FROM_DATE = new DateTime(2012, 2, 1, 0, 0, 0, 0).toDate();
+    private static final Date TO_DATE = new DateTime(2012, 3, 1, 0, 0, 0, 0).toDate();
+
+    @Test
+    public void testSameRequestsAreCheckedOnce() throws ServiceException {
+        ChannelArchiveRequestServiceIF hibernateService = mock(ChannelArchiveRequestServiceIF.class);
+        when(hibernateService.getValidRequests(FROM_DATE, TO_DATE)).thenReturn(Arrays.asList(createRequest(2L), createRequest(1L)));
+        HibernateRequestCheck check = new HibernateRequestCheck(hibernateService);
+        List<ChannelArchiveRequest> caRequests = Arrays.asList(createRequest(1L), createRequest(2L));
+
+        assertSame(caRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+        assertSame(caRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+
+        assertFalse(check.differs());
+        verify(hibernateService, times(1)).getValidRequests(FROM_DATE, TO_DATE);
+    }
+
+    @Test
+    public void testRequestsOfHibernateAreUsedOnceDifferent() throws ServiceException {
+        ChannelArchiveRequest disabled = createRequest(1L);
+        disabled.setEnabled(false);
+        disabled.setCause("Overlaps request 2");
+        List<ChannelArchiveRequest> hibernateRequests = Arrays.asList(disabled, createRequest(2L));
+        ChannelArchiveRequestServiceIF hibernateService = mock(ChannelArchiveRequestServiceIF.class);
+        when(hibernateService.getValidRequests(FROM_DATE, TO_DATE)).thenReturn(hibernateRequests);
+        HibernateRequestCheck check = new HibernateRequestCheck(hibernateService);
+        List<ChannelArchiveRequest> caRequests = Arrays.asList(createRequest(1L), createRequest(2L));
+
+        assertSame(hibernateRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+        assertSame(hibernateRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+
+        assertTrue(check.differs());
+    }
+
+    @Test
+    public void testRequestsAreCheckedAgainIfHibernateFails() throws ServiceException {
+        ChannelArchiveRequestServiceIF hibernateService = mock(ChannelArchiveRequestServiceIF.class);
+        when(hibernateService.getValidRequests(FROM_DATE, TO_DATE)).thenThrow(new ServiceException("Database down"))
+                .thenReturn(Arrays.asList(createRequest(1L)));
+        HibernateRequestCheck check = new HibernateRequestCheck(hibernateService);
+        List<ChannelArchiveRequest> caRequests = Arrays.asList(createRequest(1L));
+
+        assertSame(caRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+        assertSame(caRequests, check.check(caRequests, FROM_DATE, TO_DATE));
+
+        assertFalse(check.differs());
+        verify(hibernateService, times(2)).getValidRequests(FROM_DATE, TO_DATE);
+    }
+
+    @Test
+    public void testGetDifference() {
+        ChannelArchiveRequest hibernateRequest = createRequest(1L);
+        hibernateRequest.setFromDate(new Timestamp(hibernateRequest.getFromDate().getTime()));
+        assertNull(HibernateRequestCheck.getDifference(Arrays.asList(hibernateRequest), Arrays.asList(createRequest(1L))));
+
+        ChannelArchiveRequest otherCause = createRequest(1L);
+        otherCause.setCause("Other cause");
+        assertTrue(HibernateRequestCheck.getDifference(Arrays.asList(createRequest(1L)), Arrays.asList(otherCause)).contains("cause"));
+        ChannelArchiveRequest otherTime = createRequest(1L);
+        otherTime.setToTime(Time.valueOf("23:00:00"));
+        assertTrue(HibernateRequestCheck.getDifference(Arrays.asList(createRequest(1L)), Arrays.asList(otherTime)).contains("toTime"));
+        assertEquals("expected 1 requests, was 0", HibernateRequestCheck.getDifference(Arrays.asList(createRequest(1L)),
+                Arrays.<ChannelArchiveRequest>asList()));
+    }
+
+    private static ChannelArchiveRequest createRequest(long id) {
+        return ChannelArchiveRequestServiceTestStub.createRequest(id, "dr1", WeekdayCoverage.DAILY, Time.valueOf("20:00:00"),
+                Time.valueOf("22:00:00"), new DateTime(2012, 1, 1, 0, 0, 0, 0).toDate(), new DateTime(2012, 12, 31, 0, 0, 0, 0).toDate());
+    }
+}
@@ -0,0 +1,71 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Random;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.joda.time.LocalDateTime;
+import org.junit.Test;
+
+public class HourGridTest {
+
+    /**
+     * Compares the grid with finding the hours from local times, as done before the grid, for every day of
+     * 2010 to 2014 in zones with DST at night, DST at midnight and a DST shift of half an hour. On days near a
+     * transition every request time is tried, on other days a random sample.
+     */
+    @Test
+    public void testSameAsLocalTimes() {
+        String[] zoneIds = {"Europe/Copenhagen", "America/New_York", "America/Sao_Paulo", "Australia/Lord_Howe", "UTC"};
+        Random random = new Random(42);
+        LocalDate firstDay = new LocalDate(2010, 1, 1);
+        int dayCount = Days.daysBetween(firstDay, new LocalDate(2015, 1, 1)).getDays();
+        for (String zoneId : zoneIds) {
+            DateTimeZone zone = DateTimeZone.forID(zoneId);
+            HourGrid hourGrid = new HourGrid(zone, firstDay, dayCount + 1);
+            for (int dayIndex = 0; dayIndex < dayCount; dayIndex++) {
+                LocalDate date = firstDay.plusDays(dayIndex);
+                DateTime dayToCheck = new DateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), 12, 0, 0, 0, zone);
+                assertEquals(dayIndex, hourGrid.getDayIndex(dayToCheck));
+                DateTime startOfDay = date.toDateTimeAtStartOfDay(zone);
+                boolean transitionDay = zone.nextTransition(startOfDay.minusDays(2).getMillis()) < startOfDay.plusDays(3).getMillis();
+                for (int fromHour = 0; fromHour < 24; fromHour++) {
+                    for (int toHour = 0; toHour < 24; toHour++) {
+                        int toMinute = random.nextBoolean() ? 0 : 30;
+                        if (transitionDay || random.nextInt(50) == 0) {
+                            assertHours(zone, hourGrid, date, dayIndex, fromHour, toHour, toMinute);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testDayOutsideGrid() {
+        new HourGrid(DateTimeZone.UTC, new LocalDate(2012, 1, 1), 2).getDayIndex(new DateTime(2012, 1, 3, 0, 0, 0, 0, DateTimeZone.UTC));
+    }
+
+    private void assertHours(DateTimeZone zone, HourGrid hourGrid, LocalDate date, int dayIndex, int fromHour, int toHour, int toMinute) {
+        LocalDateTime startDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), fromHour, 0);
+        if (zone.isLocalDateTimeGap(startDateLocal)) {
+            startDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), fromHour + 1, 0);
+        }
+        LocalDateTime finalDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), toHour, toMinute);
+        if (zone.isLocalDateTimeGap(finalDateLocal)) {
+            finalDateLocal = new LocalDateTime(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth(), toHour + 1, toMinute);
+        }
+        DateTime startDate = startDateLocal.toDateTime(zone);
+        DateTime finalDate = finalDateLocal.toDateTime(zone);
+        if (!startDate.isBefore(finalDate)) {
+            finalDate = finalDate.plusDays(1);
+        }
+        String request = zone + " " + date + " " + fromHour + " to " + toHour + ":" + toMinute;
+        assertEquals(request, startDate.getMillis(), hourGrid.getStart(dayIndex, fromHour));
+        assertEquals(request, finalDate.getMillis(), hourGrid.getEnd(dayIndex, fromHour, toHour, toMinute));
+    }
+}
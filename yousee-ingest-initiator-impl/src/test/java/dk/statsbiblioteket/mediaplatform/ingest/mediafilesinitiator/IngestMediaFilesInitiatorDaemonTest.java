@@ -0,0 +1,140 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.sql.Time;
+import java.util.Date;
+import java.util.Properties;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.YouSeeChannelMappingServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+public class IngestMediaFilesInitiatorDaemonTest {
+
+    private Properties properties;
+    private ChannelArchiveRequestServiceTestStub channelArchiveRequestService;
+    private File outputFile;
+    private IngestMediaFilesInitiatorDaemon daemon;
+
+    @Before
+    public void setUp() throws IOException {
+        properties = new Properties();
+        InputStream in = getClass().getClassLoader().getResourceAsStream("ingest_initiator_media_files_unittest.properties");
+        properties.load(in);
+        in.close();
+        outputFile = File.createTempFile("downloads", ".json");
+        outputFile.delete();
+        properties.put("daemon.control.port", "0");
+        properties.put("daemon.output.file.path", outputFile.getPath());
+        properties.put("daemon.run.times", "16:00, 04:00");
+        channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        daemon = new IngestMediaFilesInitiatorDaemon(properties, createInitiator(null), null);
+    }
+
+    @After
+    public void tearDown() {
+        daemon.stop();
+        outputFile.delete();
+    }
+
+    @Test
+    public void testRunWritesDownloadsToConnection() throws Exception {
+        daemon.start();
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        createInitiator(expected).initiateIngest(dateOfIngest);
+        assertEquals(expected.toString("UTF-8"), sendCommand("run 2012-03-20"));
+        assertTrue(sendCommand("run 20-03-2012").startsWith("ERROR"));
+        assertTrue(sendCommand("status").contains("last.run.result=OK\n"));
+    }
+
+    @Test
+    public void testTriggerWritesDownloadsToOutputFile() throws Exception {
+        daemon.start();
+        assertEquals("OK " + outputFile.getAbsolutePath() + "\n", sendCommand("trigger"));
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        createInitiator(expected).initiateIngest(new DateTime().withTimeAtStartOfDay());
+        assertEquals(expected.toString("UTF-8"), read(new FileInputStream(outputFile)));
+        assertEquals("OK\n", sendCommand("stop"));
+        daemon.awaitStop();
+    }
+
+    @Test
+    public void testLastRunMetricsAreExposedByJmx() throws Exception {
+        properties.put("daemon.jmx.enabled", "true");
+        daemon = new IngestMediaFilesInitiatorDaemon(properties, createInitiator(null), null);
+        daemon.start();
+        sendCommand("trigger");
+        MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(IngestMediaFilesInitiatorDaemon.METRICS_MBEAN_NAME);
+        assertEquals("OK", mBeanServer.getAttribute(name, "result"));
+        assertEquals(1L, mBeanServer.getAttribute(name, "requests_loaded"));
+        assertEquals(outputFile.length(), mBeanServer.getAttribute(name, "bytes_written"));
+        try {
+            mBeanServer.invoke(name, "reset", new Object[0], new String[0]);
+            fail("The MBean has no operations");
+        } catch (ReflectionException e) {
+            assertTrue(e.getCause() instanceof NoSuchMethodException);
+        }
+        daemon.stop();
+        assertFalse(mBeanServer.isRegistered(name));
+    }
+
+    @Test
+    public void testGetNextRun() {
+        assertEquals(new DateTime(2012, 3, 20, 16, 0, 0, 0), daemon.getNextRun(new DateTime(2012, 3, 20, 10, 0, 0, 0)));
+        assertEquals(new DateTime(2012, 3, 21, 4, 0, 0, 0), daemon.getNextRun(new DateTime(2012, 3, 20, 16, 0, 0, 0)));
+        assertEquals(new DateTime(2013, 1, 1, 4, 0, 0, 0), daemon.getNextRun(new DateTime(2012, 12, 31, 23, 0, 0, 0)));
+    }
+
+    private IngestMediaFilesInitiator createInitiator(OutputStream outputStream) {
+        return new IngestMediaFilesInitiator(properties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                new WorkFlowStateMonitorFacadeStub(), outputStream);
+    }
+
+    private String sendCommand(String command) throws IOException {
+        Socket socket = new Socket("localhost", daemon.getControlPort());
+        try {
+            socket.getOutputStream().write((command + "\n").getBytes("UTF-8"));
+            socket.getOutputStream().flush();
+            return read(socket.getInputStream());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
@@ -0,0 +1,149 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+public class IngestMediaFilesInitiatorFactoryTest {
+
+    private static final Logger log = Logger.getLogger(IngestMediaFilesInitiatorFactoryTest.class);
+
+    /** The config of the CLI, mapping only the entities of the initiator with a small pool */
+    private static final String CLI_HIBERNATE_CONFIG_FILE_PATH = "src/main/config/ingest_initiator_media_files_CLI.hibernate.cfg.xml";
+
+    /**
+     * Measures the startup of the CLI up to the first use of the database. Creating the initiator must not set up
+     * Hibernate, which the missing Hibernate config file would fail, so the startup is bound by creating the services
+     * and the facade of the monitor, and must take well under the seconds of setting up Hibernate.
+     */
+    @Test
+    public void testCreateDoesNotSetUpHibernate() throws IOException {
+        Properties properties = getProperties();
+        properties.put("hibernate.config.file.path", "no-such-hibernate.cfg.xml");
+        // Warms up the class loading shared by all runs of a JVM
+        IngestMediaFilesInitiatorFactory.create(properties);
+        long start = System.currentTimeMillis();
+        IngestMediaFilesInitiator initiator = IngestMediaFilesInitiatorFactory.create(properties);
+        long startupMillis = System.currentTimeMillis() - start;
+        log.info("Created initiator in " + startupMillis + " ms");
+        assertTrue("Startup took " + startupMillis + " ms", startupMillis < 2000);
+        ChannelArchiveRequestServiceIF channelArchiveRequestService = initiator.getChannelArchiveRequestService();
+        assertTrue(channelArchiveRequestService instanceof LazyChannelArchiveRequestService);
+        assertFalse(((LazyChannelArchiveRequestService) channelArchiveRequestService).getHibernate().isInitialised());
+    }
+
+    @Test
+    public void testCreateUsesHibernateConfigOfCLI() throws IOException {
+        Properties properties = getProperties();
+        properties.put("hibernate.config.file.path", "shared.hibernate.cfg.xml");
+        properties.put("cli.hibernate.config.file.path", CLI_HIBERNATE_CONFIG_FILE_PATH);
+
+        IngestMediaFilesInitiator initiator = IngestMediaFilesInitiatorFactory.create(properties);
+
+        LazyHibernate hibernate = ((LazyChannelArchiveRequestService) initiator.getChannelArchiveRequestService()).getHibernate();
+        assertEquals(CLI_HIBERNATE_CONFIG_FILE_PATH, hibernate.getHibernateConfigFilePath());
+    }
+
+    @Test
+    public void testHibernateConfigOfCLIIsMinimal() throws Exception {
+        DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        // The DTD of Hibernate is not fetched
+        documentBuilder.setEntityResolver(new EntityResolver() {
+            @Override
+            public InputSource resolveEntity(String publicId, String systemId) {
+                return new InputSource(new StringReader(""));
+            }
+        });
+        Document config = documentBuilder.parse(new File(CLI_HIBERNATE_CONFIG_FILE_PATH));
+
+        List<String> mappedClasses = new ArrayList<String>();
+        NodeList mappings = config.getElementsByTagName("mapping");
+        for (int i = 0; i < mappings.getLength(); i++) {
+            mappedClasses.add(((Element) mappings.item(i)).getAttribute("class"));
+        }
+        assertEquals(Arrays.asList(YouSeeChannelMapping.class.getName(), ChannelArchiveRequest.class.getName()), mappedClasses);
+        int maxPoolSize = Integer.parseInt(getProperty(config, "hibernate.c3p0.max_size"));
+        assertTrue("Pool of " + maxPoolSize + " connections", maxPoolSize <= 4);
+        assertTrue(Integer.parseInt(getProperty(config, "hibernate.c3p0.min_size")) <= maxPoolSize);
+    }
+
+    @Test
+    public void testLazyServicesSetUpHibernateOnce() throws ServiceException {
+        final AtomicInteger initialisations = new AtomicInteger();
+        LazyHibernate hibernate = new LazyHibernate("hibernate.cfg.xml") {
+            @Override
+            protected void initialise() {
+                initialisations.incrementAndGet();
+            }
+        };
+        LazyChannelArchiveRequestService channelArchiveRequestService = new LazyChannelArchiveRequestService(hibernate) {
+            @Override
+            protected ChannelArchiveRequestServiceIF createService() {
+                return mock(ChannelArchiveRequestServiceIF.class);
+            }
+        };
+        LazyYouSeeChannelMappingService youSeeChannelMappingService = new LazyYouSeeChannelMappingService(hibernate) {
+            @Override
+            protected YouSeeChannelMappingServiceIF createService() {
+                return mock(YouSeeChannelMappingServiceIF.class);
+            }
+        };
+        assertFalse(hibernate.isInitialised());
+        channelArchiveRequestService.getValidRequests(new Date(), new Date());
+        youSeeChannelMappingService.getAllMappings();
+        channelArchiveRequestService.getAllRequests();
+        assertTrue(hibernate.isInitialised());
+        assertEquals(1, initialisations.get());
+    }
+
+    private Properties getProperties() throws IOException {
+        Properties properties = new Properties();
+        InputStream in = getClass().getClassLoader().getResourceAsStream("ingest_initiator_media_files_unittest.properties");
+        properties.load(in);
+        in.close();
+        properties.put("log4j.config.file.path", getClass().getClassLoader().getResource(
+                properties.getProperty("log4j.config.file.path")).getPath());
+        return properties;
+    }
+
+    private static String getProperty(Document config, String name) {
+        NodeList properties = config.getElementsByTagName("property");
+        for (int i = 0; i < properties.getLength(); i++) {
+            Element property = (Element) properties.item(i);
+            if (property.getAttribute("name").equals(name)) {
+                return property.getTextContent().trim();
+            }
+        }
+        throw new AssertionError("No property " + name);
+    }
+}
@@ -1,18 +1,33 @@
 package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.URL;
 import java.sql.Time;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import org.apache.log4j.Logger;
 import org.apache.log4j.xml.DOMConfigurator;
@@ -25,9 +40,13 @@ import org.junit.Test;
 
 import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
 import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorStubServer;
 import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.YouSeeChannelMappingServiceTestStub;
 import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
 import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
 
 public class IngestMediaFilesInitiatorTest {
 
@@ -266,6 +285,38 @@ public class IngestMediaFilesInitiatorTest {
         assertEquals(expectedNumberOfFiles, actual.size());
     }
 
+    @Test
+    public void inferFilesToIngestSameAsCheckingEveryDayTest() throws IOException {
+        Random random = new Random(42);
+        WeekdayCoverage[] weekdayCoverages = WeekdayCoverage.values();
+        DateTime toDate = new DateTime(2013, 4, 15, 0, 0, 0, 0);
+        DateTime fromDate = toDate.minusDays(60); // Includes a change to summer time
+        List<ChannelArchiveRequest> caRequests = new ArrayList<ChannelArchiveRequest>();
+        for (int i = 0; i < 50; i++) {
+            DateTime requestFromDate = fromDate.plusDays(random.nextInt(80) - 10);
+            caRequests.add(ChannelArchiveRequestServiceTestStub.createRequest(i, "dr" + i % 5,
+                    weekdayCoverages[random.nextInt(weekdayCoverages.length)],
+                    new Time(random.nextInt(24), random.nextInt(2) * 30, 0), new Time(random.nextInt(24), random.nextInt(2) * 30, 0),
+                    requestFromDate.toDate(), requestFromDate.plusDays(random.nextInt(60)).toDate()));
+        }
+        IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(
+                defaultProperties,
+                null,
+                new YouSeeChannelMappingServiceTestStub(),
+                new WorkFlowStateMonitorFacadeStub(),
+                System.out);
+        Set<MediaFileIngestOutputParameters> expected = new HashSet<MediaFileIngestOutputParameters>();
+        for (DateTime dayToCheck = fromDate; !dayToCheck.isAfter(toDate); dayToCheck = dayToCheck.plusDays(1)) {
+            for (ChannelArchiveRequest caRequest : caRequests) {
+                expected.addAll(initiator.inferFilesToIngest(caRequest, dayToCheck));
+            }
+        }
+        List<MediaFileIngestOutputParameters> actual = initiator.inferFilesToIngest(caRequests, fromDate, toDate);
+        assertTrue(expected.size() > 1000);
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, new HashSet<MediaFileIngestOutputParameters>(actual));
+    }
+
     /** 
      * Test that the new sb filenames of yousee downloaded files are similiar to old format
      * 
@@ -443,4 +494,458 @@ public class IngestMediaFilesInitiatorTest {
         boolean result = initiator.shouldInititateIngest(dateOfIngest, fileNameSB);
         assertEquals(true, result);
     }    
+
+    @Test
+    public void testFilterOutFilesAlreadyIngested_parallelKeepsOrder() {
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        List<MediaFileIngestOutputParameters> files = createHourlyFiles(new DateTime(2012, 1, 1, 0, 0, 0, 0), 1000);
+        for (int i = 0; i < files.size(); i += 3) {
+            workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), files.get(i).getFileNameSB(), "Done");
+        }
+        IngestMediaFilesInitiator sequentialInitiator = new IngestMediaFilesInitiator(
+                defaultProperties,
+                null,
+                null,
+                workFlowStateMonitorFacade,
+                System.out);
+        IngestMediaFilesInitiator parallelInitiator = new IngestMediaFilesInitiator(
+                getParallelProperties(),
+                null,
+                null,
+                workFlowStateMonitorFacade,
+                System.out);
+        DateTime dateOfIngest = new DateTime(2012, 1, 28, 3, 0, 0, 0);
+        List<MediaFileIngestOutputParameters> expected = sequentialInitiator.filterOutFilesAlreadyIngested(dateOfIngest, files);
+        List<MediaFileIngestOutputParameters> actual = parallelInitiator.filterOutFilesAlreadyIngested(dateOfIngest, files);
+        assertEquals(1000 - 334, actual.size());
+        assertEquals(expected, actual);
+    }
+
+    @Test
+    public void testFilterOutFilesAlreadyIngested_parallelReportsFailuresTogether() {
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        List<MediaFileIngestOutputParameters> files = createHourlyFiles(new DateTime(2012, 1, 1, 0, 0, 0, 0), 1000);
+        workFlowStateMonitorFacade.failLookupOf(files.get(150).getFileNameSB());
+        workFlowStateMonitorFacade.failLookupOf(files.get(720).getFileNameSB());
+        IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(
+                getParallelProperties(),
+                null,
+                null,
+                workFlowStateMonitorFacade,
+                System.out);
+        DateTime dateOfIngest = new DateTime(2012, 1, 28, 3, 0, 0, 0);
+        List<MediaFileIngestOutputParameters> actual = initiator.filterOutFilesAlreadyIngested(dateOfIngest, files);
+        // The chunks of 100 files holding the failing files are left out, the rest are kept in order
+        assertEquals(1000 - 2*100, actual.size());
+        assertTrue(actual.contains(files.get(99)));
+        assertFalse(actual.contains(files.get(100)));
+        assertFalse(actual.contains(files.get(799)));
+        assertEquals(files.get(800), actual.get(600));
+        assertEquals(Collections.singletonList("Failed"), workFlowStateMonitorFacade.getAddedStateNames());
+    }
+
+    @Test
+    public void testFilterOutFilesAlreadyIngested_terminalStateCache() throws IOException {
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        List<MediaFileIngestOutputParameters> files = createHourlyFiles(new DateTime(2012, 1, 1, 0, 0, 0, 0), 10);
+        workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), files.get(0).getFileNameSB(), "Done");
+        workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), files.get(1).getFileNameSB(), "Stopped");
+        workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), files.get(2).getFileNameSB(), "Restarted");
+        File cacheFile = File.createTempFile("terminal_states", ".txt");
+        cacheFile.delete();
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("workflow.state.cache.file.path", cacheFile.getPath());
+        IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(
+                properties,
+                null,
+                null,
+                workFlowStateMonitorFacade,
+                System.out);
+        DateTime dateOfIngest = new DateTime(2012, 1, 28, 3, 0, 0, 0);
+        assertEquals(8, initiator.filterOutFilesAlreadyIngested(dateOfIngest, files).size());
+        // Files in a final state are not looked up again
+        workFlowStateMonitorFacade.failLookupOf(files.get(0).getFileNameSB());
+        workFlowStateMonitorFacade.failLookupOf(files.get(1).getFileNameSB());
+        List<MediaFileIngestOutputParameters> actual = initiator.filterOutFilesAlreadyIngested(dateOfIngest, files);
+        assertEquals(files.subList(2, 10), actual);
+    }
+
+    @Test
+    public void testInitiateIngest_pipelinedWritesSameDownloads() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(2L, "dr1", WeekdayCoverage.DAILY, new Time(23, 0, 0), new Time(1, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        for (int hour = 0; hour < 24 * 10; hour += 5) {
+            DateTime startDate = dateOfIngest.minusDays(10).plusHours(hour);
+            String fileNameSB = new IngestMediaFilesInitiator(defaultProperties, null, null, null, null).getSBFileID("dr1", startDate, startDate.plusHours(1));
+            workFlowStateMonitorFacade.putState("Yousee complete workflow final step", new Date(), fileNameSB, "Done");
+        }
+        ByteArrayOutputStream sortedOutput = new ByteArrayOutputStream();
+        new IngestMediaFilesInitiator(defaultProperties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                workFlowStateMonitorFacade, sortedOutput).initiateIngest(dateOfIngest);
+        Properties pipelinedProperties = getParallelProperties();
+        pipelinedProperties.put("output.mode", "pipelined");
+        ByteArrayOutputStream pipelinedOutput = new ByteArrayOutputStream();
+        new IngestMediaFilesInitiator(pipelinedProperties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                workFlowStateMonitorFacade, pipelinedOutput).initiateIngest(dateOfIngest);
+        List<String> expected = getFileIDs(sortedOutput.toString("UTF-8"));
+        List<String> actual = getFileIDs(pipelinedOutput.toString("UTF-8"));
+        // 12 + 2 files a day for 28 days, of which 28 are Done. No file of one day starts before a file of the day
+        // before, so the chunks written in order give the same order as sorting all files.
+        assertEquals(28 * (12 + 2) - 28, expected.size());
+        assertEquals(expected, actual);
+        assertTrue(pipelinedOutput.toString("UTF-8").endsWith("\n     ]\n }\n"));
+    }
+
+    @Test
+    public void testInitiateIngest_pipelinedFailureLeavesDocumentIncomplete() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(0, 0, 0), new Time(0, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        final DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        final String failingFileNameSB = new IngestMediaFilesInitiator(defaultProperties, null, null, null, null)
+                .getSBFileID("dr1", dateOfIngest.minusDays(2), dateOfIngest.minusDays(2).plusHours(1));
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub() {
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                if (sbFileIds.contains(failingFileNameSB)) {
+                    throw new AssertionError("Stub error for " + failingFileNameSB);
+                }
+                return super.getLastWorkFlowStatesForEntities(sbFileIds);
+            }
+        };
+        Properties pipelinedProperties = getParallelProperties();
+        pipelinedProperties.put("output.mode", "pipelined");
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try {
+            new IngestMediaFilesInitiator(pipelinedProperties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                    workFlowStateMonitorFacade, output).initiateIngest(dateOfIngest);
+            fail("Expected the run to fail");
+        } catch (RuntimeException e) {
+            // Expected
+        }
+        String document = output.toString("UTF-8");
+        assertFalse(document.contains("]"));
+        // Only days before the failing chunk are written, in order
+        List<String> fileIDs = getFileIDs(document);
+        assertFalse(fileIDs.contains(failingFileNameSB));
+        List<String> sortedFileIDs = new ArrayList<String>(fileIDs);
+        Collections.sort(sortedFileIDs);
+        assertEquals(sortedFileIDs, fileIDs);
+    }
+
+    @Test
+    public void testInitiateIngest_pipelinedWritesBeforeLookupsAreDone() throws Exception {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(0, 0, 0), new Time(0, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        final DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        final String lastFileNameSB = new IngestMediaFilesInitiator(defaultProperties, null, null, null, null)
+                .getSBFileID("dr1", dateOfIngest.plusHours(23), dateOfIngest.plusHours(24));
+        final CountDownLatch firstDownloadWritten = new CountDownLatch(1);
+        final AtomicBoolean writtenBeforeLastLookup = new AtomicBoolean();
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub() {
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                if (sbFileIds.contains(lastFileNameSB)) {
+                    try {
+                        writtenBeforeLastLookup.set(firstDownloadWritten.await(10, TimeUnit.SECONDS));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return super.getLastWorkFlowStatesForEntities(sbFileIds);
+            }
+        };
+        OutputStream outputStream = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                super.write(b, off, len);
+                if (toString().contains("fileID")) {
+                    firstDownloadWritten.countDown();
+                }
+            }
+        };
+        Properties pipelinedProperties = new Properties();
+        pipelinedProperties.putAll(defaultProperties);
+        pipelinedProperties.put("output.mode", "pipelined");
+        new IngestMediaFilesInitiator(pipelinedProperties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                workFlowStateMonitorFacade, outputStream).initiateIngest(dateOfIngest);
+        assertTrue(writtenBeforeLastLookup.get());
+    }
+
+    @Test
+    public void testInitiateIngest_deltaSinceLastRun() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        ChannelArchiveRequest caRequest = ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate());
+        channelArchiveRequestService.addRequest(caRequest);
+        File checkpointFile = File.createTempFile("checkpoint", ".properties");
+        checkpointFile.delete();
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("ingest.checkpoint.file.path", checkpointFile.getPath());
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 3, 0, 0, 0);
+        try {
+            // No checkpoint, so the whole period is examined
+            assertEquals(28 * 12, initiateIngest(properties, channelArchiveRequestService, dateOfIngest).size());
+            // The day of the last run and the day after it
+            List<String> deltaFileIDs = initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(1));
+            assertEquals(2 * 12, deltaFileIDs.size());
+            assertTrue(deltaFileIDs.contains(new IngestMediaFilesInitiator(defaultProperties, null, null, null, null)
+                    .getSBFileID("dr1", dateOfIngest.withHourOfDay(8), dateOfIngest.withHourOfDay(9))));
+            // A changed request is examined in the whole period, others since the last run
+            channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(2L, "dr2", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(9, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+            assertEquals(28 + 2 * 12, initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(2)).size());
+            caRequest.setToTime(new Time(21, 0, 0));
+            assertEquals(28 * 13 + 2, initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(3)).size());
+            // Full sweep a week after the last one
+            assertEquals(28 * (13 + 1), initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(7)).size());
+        } finally {
+            checkpointFile.delete();
+        }
+    }
+
+    @Test
+    public void testInitiateIngest_failedLookupsNotRecordedInCheckpoint() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        File checkpointFile = File.createTempFile("checkpoint", ".properties");
+        checkpointFile.delete();
+        Properties properties = getParallelProperties();
+        properties.put("ingest.checkpoint.file.path", checkpointFile.getPath());
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 3, 0, 0, 0);
+        try {
+            assertEquals(28 * 12, initiateIngest(properties, channelArchiveRequestService, dateOfIngest).size());
+            WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+            workFlowStateMonitorFacade.failLookupOf(new IngestMediaFilesInitiator(defaultProperties, null, null, null, null)
+                    .getSBFileID("dr1", dateOfIngest.plusDays(1).withHourOfDay(8), dateOfIngest.plusDays(1).withHourOfDay(9)));
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            new IngestMediaFilesInitiator(properties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                    workFlowStateMonitorFacade, output).initiateIngest(dateOfIngest.plusDays(1));
+            // The chunk of the failing file is left out
+            assertEquals(0, getFileIDs(output.toString("UTF-8")).size());
+            // The run with the failing lookup is not recorded, so the days since the first run are examined again
+            assertEquals(3 * 12, initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(2)).size());
+            assertEquals(2 * 12, initiateIngest(properties, channelArchiveRequestService, dateOfIngest.plusDays(3)).size());
+        } finally {
+            checkpointFile.delete();
+        }
+    }
+
+    @Test
+    public void testInitiateIngest_failingMappingSchedulesNoneOfTheDay() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        final DateTime failingStartDate = dateOfIngest.minusDays(3).withHourOfDay(14);
+        YouSeeChannelMappingServiceTestStub youSeeChannelMappingService = new YouSeeChannelMappingServiceTestStub() {
+            @Override
+            public YouSeeChannelMapping getUniqueMappingFromSbChannelId(String sBChannelId, Date date) throws ServiceException {
+                if (date.equals(failingStartDate.toDate())) {
+                    throw new ServiceException("Stub mapping failure at " + date);
+                }
+                return super.getUniqueMappingFromSbChannelId(sBChannelId, date);
+            }
+        };
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new IngestMediaFilesInitiator(defaultProperties, channelArchiveRequestService, youSeeChannelMappingService,
+                workFlowStateMonitorFacade, output).initiateIngest(dateOfIngest);
+        List<String> fileIDs = getFileIDs(output.toString("UTF-8"));
+        // The request is disabled on the failing day, and none of the hours of that day before the failure are kept
+        assertEquals(24 * 12, fileIDs.size());
+        assertFalse(fileIDs.contains(new IngestMediaFilesInitiator(defaultProperties, null, null, null, null)
+                .getSBFileID("dr1", failingStartDate.withHourOfDay(8), failingStartDate.withHourOfDay(9))));
+        assertEquals(Collections.singletonList("Failed"), workFlowStateMonitorFacade.getAddedStateNames());
+    }
+
+    @Test
+    public void testInitiateIngest_dateRange() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(2L, "dr2", WeekdayCoverage.SATURDAY, new Time(22, 0, 0), new Time(2, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        DateTime firstDateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        Set<String> expectedFileIDs = new HashSet<String>();
+        for (int day = 0; day < 10; day++) {
+            expectedFileIDs.addAll(initiateIngest(defaultProperties, channelArchiveRequestService, firstDateOfIngest.plusDays(day)));
+        }
+        final AtomicInteger lookups = new AtomicInteger();
+        WorkFlowStateMonitorFacadeStub workFlowStateMonitorFacade = new WorkFlowStateMonitorFacadeStub() {
+            @Override
+            public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+                lookups.addAndGet(sbFileIds.size());
+                return super.getLastWorkFlowStatesForEntities(sbFileIds);
+            }
+
+            @Override
+            public State getLastWorkFlowStateForEntity(String sbFileId) {
+                lookups.incrementAndGet();
+                return super.getLastWorkFlowStateForEntity(sbFileId);
+            }
+        };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new IngestMediaFilesInitiator(defaultProperties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                workFlowStateMonitorFacade, output).initiateIngest(firstDateOfIngest, firstDateOfIngest.plusDays(9), output);
+        List<String> fileIDs = getFileIDs(output.toString("UTF-8"));
+        assertEquals(expectedFileIDs.size(), fileIDs.size());
+        assertEquals(expectedFileIDs, new HashSet<String>(fileIDs));
+        assertEquals(fileIDs.size(), lookups.get());
+    }
+
+    @Test
+    public void testInitiateIngest_deadlineOrder() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 0, 0, 0, 0);
+        List<String> fileIDsByStart = initiateIngest(defaultProperties, channelArchiveRequestService, dateOfIngest);
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("output.order", "deadline");
+        List<String> fileIDsByDeadline = initiateIngest(properties, channelArchiveRequestService, dateOfIngest);
+        // The files of 2012 have long expired, so the files with the most time left go first
+        Collections.reverse(fileIDsByStart);
+        assertEquals(fileIDsByStart, fileIDsByDeadline);
+    }
+
+    @Test
+    public void testInitiateIngest_runMetrics() throws IOException {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        // Overlaps the first request, so its files are generated twice
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(2L, "dr1", WeekdayCoverage.DAILY, new Time(10, 0, 0), new Time(12, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        File prometheusFile = File.createTempFile("metrics", ".prom");
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("metrics.prometheus.file.path", prometheusFile.getPath());
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(properties, channelArchiveRequestService,
+                new YouSeeChannelMappingServiceTestStub(), new WorkFlowStateMonitorFacadeStub(), output);
+        initiator.initiateIngest(new DateTime(2012, 3, 20, 0, 0, 0, 0));
+        int days = Integer.parseInt(defaultProperties.getProperty("yousee.recordings.days.to.keep"));
+        Map<String, Number> values = initiator.getRunMetrics().getValues();
+        assertTrue(initiator.getRunMetrics().isSucceeded());
+        assertEquals(2L, values.get("requests_loaded"));
+        assertEquals(14L * days, values.get("slots_generated"));
+        assertEquals(12L * days, values.get("files_scheduled"));
+        assertEquals(2L * days, values.get("duplicates_removed"));
+        assertEquals(12L * days, values.get("lookup_files"));
+        assertEquals((long) getFileIDs(output.toString("UTF-8")).size(), values.get("downloads_written"));
+        assertEquals((long) output.size(), values.get("bytes_written"));
+        String prometheusText = new String(read(prometheusFile), "UTF-8");
+        assertTrue(prometheusText.contains("yousee_ingest_run_success 1\n"));
+        assertTrue(prometheusText.contains("yousee_ingest_files_scheduled " + (12 * days) + "\n"));
+        assertTrue(prometheusText.contains("yousee_ingest_lookup_latency_seconds_count 1\n"));
+        prometheusFile.delete();
+    }
+
+    @Test
+    public void testInitiateIngest_httpCacheMetricsPerRun() throws Exception {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(10, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.putAll(defaultProperties);
+            properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+            properties.put("workflow.state.monitor.http.cache.size", "1000");
+            WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            AsyncStateReporter asyncStateReporter = new AsyncStateReporter(properties, webServiceFacade);
+            IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(properties, channelArchiveRequestService,
+                    new YouSeeChannelMappingServiceTestStub(), asyncStateReporter, new ByteArrayOutputStream());
+            int days = Integer.parseInt(defaultProperties.getProperty("yousee.recordings.days.to.keep"));
+            initiator.initiateIngest(new DateTime(2012, 3, 20, 0, 0, 0, 0));
+            assertEquals(0L, initiator.getRunMetrics().getValues().get("http_cache_hits"));
+            assertEquals(2L * days, initiator.getRunMetrics().getValues().get("http_cache_misses"));
+            initiator.initiateIngest(new DateTime(2012, 3, 20, 0, 0, 0, 0));
+            assertEquals(2L * days, initiator.getRunMetrics().getValues().get("http_cache_hits"));
+            assertEquals(0L, initiator.getRunMetrics().getValues().get("http_cache_misses"));
+            asyncStateReporter.close();
+            webServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testInitiateIngest_hedgeMetricsPerRun() throws Exception {
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY, new Time(8, 0, 0), new Time(12, 0, 0), new Date(0), new DateTime().plusMonths(3).toDate()));
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            Properties properties = new Properties();
+            properties.putAll(defaultProperties);
+            properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+            properties.put("workflow.state.monitor.lookup.threads", "1");
+            properties.put("workflow.state.monitor.hedge.percentile", "90");
+            properties.put("workflow.state.monitor.hedge.budget", "0.1");
+            WorkFlowStateMonitorWebServiceFacade webServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            IngestMediaFilesInitiator initiator = new IngestMediaFilesInitiator(properties, channelArchiveRequestService,
+                    new YouSeeChannelMappingServiceTestStub(), webServiceFacade, new ByteArrayOutputStream());
+            initiator.initiateIngest(new DateTime(2012, 3, 20, 0, 0, 0, 0));
+            long firstRunHedgesFired = webServiceFacade.getHedgesFired();
+            long firstRunHedgesWon = webServiceFacade.getHedgesWon();
+            assertEquals(firstRunHedgesFired, initiator.getRunMetrics().getValues().get("hedges_fired"));
+            server.setStalls(20, 2000);
+            initiator.initiateIngest(new DateTime(2012, 3, 20, 0, 0, 0, 0));
+            Map<String, Number> values = initiator.getRunMetrics().getValues();
+            assertTrue(values.get("hedges_won").longValue() > 0);
+            assertEquals(webServiceFacade.getHedgesFired() - firstRunHedgesFired, values.get("hedges_fired"));
+            assertEquals(webServiceFacade.getHedgesWon() - firstRunHedgesWon, values.get("hedges_won"));
+            webServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private List<String> initiateIngest(Properties properties, ChannelArchiveRequestServiceTestStub channelArchiveRequestService, DateTime dateOfIngest) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        new IngestMediaFilesInitiator(properties, channelArchiveRequestService, new YouSeeChannelMappingServiceTestStub(),
+                new WorkFlowStateMonitorFacadeStub(), output).initiateIngest(dateOfIngest);
+        return getFileIDs(output.toString("UTF-8"));
+    }
+
+    private List<String> getFileIDs(String output) {
+        List<String> fileIDs = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("\"fileID\" : \"([^\"]*)\"").matcher(output);
+        while (matcher.find()) {
+            fileIDs.add(matcher.group(1));
+        }
+        return fileIDs;
+    }
+
+    private Properties getParallelProperties() {
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("workflow.state.monitor.parallelism", "8");
+        return properties;
+    }
+
+    private List<MediaFileIngestOutputParameters> createHourlyFiles(DateTime firstStartDate, int count) {
+        List<MediaFileIngestOutputParameters> files = new ArrayList<MediaFileIngestOutputParameters>();
+        for (int i = 0; i < count; i++) {
+            DateTime startDate = firstStartDate.plusHours(i);
+            DateTime endDate = startDate.plusHours(1);
+            files.add(new MediaFileIngestOutputParameters("dr1_teracom." + startDate.getMillis() / 1000 + "_teracom.ts",
+                    "DR1_" + startDate.getMillis() / 1000 + ".mux", "dr1", "DR1", startDate, endDate));
+        }
+        return files;
+    }
+
+    private static byte[] read(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,243 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verifyZeroInteractions;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+import dk.statsbiblioteket.mediaplatform.ingest.model.persistence.ChannelArchivingRequesterHibernateUtil;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestService;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+/**
+ * Loads requests and mappings seeded in an in-memory H2 database, with the tables named as by the default Hibernate
+ * mappings.
+ */
+public class JdbcChannelDataLoaderTest {
+
+    private static final String URL = "jdbc:h2:mem:channels;DB_CLOSE_DELAY=-1";
+    /** Database whose tables are created by Hibernate from the mappings of the requester */
+    private static final String HIBERNATE_URL = "jdbc:h2:mem:hibernate_channels;DB_CLOSE_DELAY=-1";
+
+    private File hibernateConfigFile;
+    private Connection connection;
+
+    @Before
+    public void setUp() throws Exception {
+        hibernateConfigFile = File.createTempFile("jdbc_loader", ".hibernate.cfg.xml");
+        writeHibernateConfigFile(hibernateConfigFile, URL,
+                "    <property name=\"hibernate.connection.driver_class\">\n        org.h2.Driver\n    </property>\n");
+        Class.forName("org.h2.Driver");
+        connection = DriverManager.getConnection(URL, "sa", "");
+        Statement statement = connection.createStatement();
+        statement.execute("CREATE TABLE ChannelArchiveRequest (id BIGINT PRIMARY KEY, sBChannelId VARCHAR(255),"
+                + " weekdayCoverage VARCHAR(255), fromTime TIME, toTime TIME, fromDate TIMESTAMP, toDate TIMESTAMP)");
+        statement.execute("CREATE TABLE YouSeeChannelMapping (id BIGINT PRIMARY KEY, sbChannelId VARCHAR(255),"
+                + " youSeeChannelId VARCHAR(255), displayName VARCHAR(255), fromDate TIMESTAMP, toDate TIMESTAMP)");
+        statement.close();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        Statement statement = connection.createStatement();
+        statement.execute("DROP ALL OBJECTS");
+        statement.close();
+        connection.close();
+        hibernateConfigFile.delete();
+    }
+
+    @Test
+    public void testLoadRequests_onlyRequestsOverlappingPeriod() throws Exception {
+        insertRequest(ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                Time.valueOf("20:00:00"), Time.valueOf("22:00:00"), date(2012, 1, 1), date(2012, 12, 31)));
+        insertRequest(ChannelArchiveRequestServiceTestStub.createRequest(2L, "tv2", WeekdayCoverage.MONDAY_TO_FRIDAY,
+                Time.valueOf("06:00:00"), Time.valueOf("09:00:00"), date(2011, 1, 1), date(2011, 12, 31)));
+        insertRequest(ChannelArchiveRequestServiceTestStub.createRequest(3L, "dr2", WeekdayCoverage.SUNDAY,
+                Time.valueOf("00:00:00"), Time.valueOf("00:00:00"), date(2012, 3, 1), date(2012, 3, 31)));
+        JdbcChannelArchiveRequestService service = new JdbcChannelArchiveRequestService(
+                new JdbcChannelDataLoader(getProperties(), hibernateConfigFile.getPath()), mock(ChannelArchiveRequestServiceIF.class), null);
+
+        List<ChannelArchiveRequest> caRequests = service.getValidRequests(date(2012, 2, 1), date(2012, 3, 1));
+
+        assertEquals(2, caRequests.size());
+        ChannelArchiveRequest caRequest = getRequest(caRequests, 1L);
+        assertEquals("dr1", caRequest.getsBChannelId());
+        assertEquals(WeekdayCoverage.DAILY, caRequest.getWeekdayCoverage());
+        assertEquals(Time.valueOf("20:00:00"), caRequest.getFromTime());
+        assertEquals(Time.valueOf("22:00:00"), caRequest.getToTime());
+        assertEquals(date(2012, 1, 1), caRequest.getFromDate());
+        assertEquals(date(2012, 12, 31), caRequest.getToDate());
+        caRequest = getRequest(caRequests, 3L);
+        assertEquals(WeekdayCoverage.SUNDAY, caRequest.getWeekdayCoverage());
+    }
+
+    /**
+     * Seeds the requests through the Hibernate service, so the tables are as created from the Hibernate mappings of
+     * the requester, and compares the requests of both services, including whether the validator of the requester
+     * disabled them and why.
+     */
+    @Test
+    public void testGetValidRequests_sameAsHibernateService() throws Exception {
+        File hibernateTablesConfigFile = File.createTempFile("hibernate_tables", ".hibernate.cfg.xml");
+        try {
+            writeHibernateConfigFile(hibernateTablesConfigFile, HIBERNATE_URL,
+                    "    <property name=\"connection.driver_class\">org.h2.Driver</property>\n"
+                    + "    <property name=\"dialect\">org.hibernate.dialect.H2Dialect</property>\n"
+                    + "    <property name=\"hbm2ddl.auto\">create</property>\n"
+                    + "    <mapping class=\"dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping\"/>\n"
+                    + "    <mapping class=\"dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest\"/>\n");
+            ChannelArchivingRequesterHibernateUtil.initialiseFactory(hibernateTablesConfigFile);
+            ChannelArchiveRequestService hibernateService = new ChannelArchiveRequestService();
+            hibernateService.insert(createNewRequest("dr1", WeekdayCoverage.DAILY, "20:00:00", "22:00:00", date(2012, 1, 1), date(2012, 12, 31)));
+            // Overlaps the request above
+            hibernateService.insert(createNewRequest("dr1", WeekdayCoverage.MONDAY_TO_FRIDAY, "21:00:00", "23:00:00", date(2012, 2, 1), null));
+            hibernateService.insert(createNewRequest("tv2", WeekdayCoverage.SATURDAY_AND_SUNDAY, "06:00:00", "09:00:00", null, date(2012, 6, 30)));
+            hibernateService.insert(createNewRequest("dr2", WeekdayCoverage.SUNDAY, "00:00:00", "00:00:00", date(2011, 1, 1), date(2011, 12, 31)));
+            JdbcChannelArchiveRequestService jdbcService = new JdbcChannelArchiveRequestService(
+                    new JdbcChannelDataLoader(getProperties(), hibernateTablesConfigFile.getPath()), hibernateService, null);
+
+            List<ChannelArchiveRequest> expected = hibernateService.getValidRequests(date(2012, 2, 1), date(2012, 3, 1));
+            List<ChannelArchiveRequest> actual = jdbcService.getValidRequests(date(2012, 2, 1), date(2012, 3, 1));
+
+            assertEquals(3, expected.size());
+            // Field by field, the dates by their time, as Hibernate may give timestamps
+            assertNull(HibernateRequestCheck.getDifference(expected, actual));
+        } finally {
+            hibernateTablesConfigFile.delete();
+        }
+    }
+
+    @Test
+    public void testLoadRequests_weekdayCoverageByOrdinal() throws Exception {
+        Statement statement = connection.createStatement();
+        statement.execute("ALTER TABLE ChannelArchiveRequest ALTER COLUMN weekdayCoverage INT");
+        statement.execute("INSERT INTO ChannelArchiveRequest VALUES (1, 'dr1', " + WeekdayCoverage.SATURDAY_AND_SUNDAY.ordinal()
+                + ", '20:00:00', '22:00:00', '2012-01-01 00:00:00', '2012-12-31 00:00:00')");
+        statement.close();
+        JdbcChannelDataLoader loader = new JdbcChannelDataLoader(getProperties(), hibernateConfigFile.getPath());
+
+        List<ChannelArchiveRequest> caRequests = loader.loadRequests(date(2012, 2, 1), date(2012, 3, 1));
+
+        assertEquals(1, caRequests.size());
+        assertEquals(WeekdayCoverage.SATURDAY_AND_SUNDAY, caRequests.get(0).getWeekdayCoverage());
+    }
+
+    @Test
+    public void testGetAllMappings_answersCachedLookups() throws Exception {
+        insertMapping(1L, "dr1", "DR1", date(2012, 1, 1), new DateTime(2012, 6, 30, 23, 59, 59, 999).toDate());
+        insertMapping(2L, "dr1", "DR1HD", date(2012, 7, 1), null);
+        insertMapping(3L, "tv2", "TV2", date(2012, 1, 1), date(2012, 12, 31));
+        YouSeeChannelMappingServiceIF hibernateService = mock(YouSeeChannelMappingServiceIF.class);
+        CachingYouSeeChannelMappingService service = new CachingYouSeeChannelMappingService(new JdbcYouSeeChannelMappingService(
+                new JdbcChannelDataLoader(getProperties(), hibernateConfigFile.getPath()), hibernateService));
+
+        YouSeeChannelMapping mapping = service.getUniqueMappingFromSbChannelId("dr1", date(2012, 6, 30));
+        assertEquals(Long.valueOf(1L), mapping.getId());
+        assertEquals("DR1", mapping.getYouSeeChannelId());
+        assertEquals("DR1 display name", mapping.getDisplayName());
+        assertEquals(date(2012, 1, 1), mapping.getFromDate());
+        assertEquals(new DateTime(2012, 6, 30, 23, 59, 59, 999).toDate(), mapping.getToDate());
+        mapping = service.getUniqueMappingFromSbChannelId("dr1", date(2013, 1, 1));
+        assertEquals("DR1HD", mapping.getYouSeeChannelId());
+        assertEquals(null, mapping.getToDate());
+        assertEquals("tv2", service.getUniqueMappingFromYouSeeChannelId("TV2", date(2012, 2, 1)).getSbChannelId());
+        verifyZeroInteractions(hibernateService);
+    }
+
+    private Properties getProperties() {
+        Properties properties = new Properties();
+        properties.put("jdbc.loader.enabled", "true");
+        properties.put("jdbc.loader.fetch.size", "2");
+        return properties;
+    }
+
+    /** Writes a Hibernate config file connecting to the database as user sa, with the given properties and mappings */
+    private static void writeHibernateConfigFile(File file, String url, String properties) throws IOException {
+        Writer writer = new FileWriter(file);
+        try {
+            writer.write("<?xml version='1.0' encoding='UTF-8'?>\n"
+                    + "<!DOCTYPE hibernate-configuration PUBLIC \"-//Hibernate/Hibernate Configuration DTD 3.0//EN\"\n"
+                    + "        \"http://hibernate.sourceforge.net/hibernate-configuration-3.0.dtd\">\n"
+                    + "<hibernate-configuration><session-factory>\n"
+                    + "    <property name=\"connection.url\">" + url + "</property>\n"
+                    + "    <property name=\"connection.username\">sa</property>\n"
+                    + "    <property name=\"connection.password\"></property>\n"
+                    + properties
+                    + "</session-factory></hibernate-configuration>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** @return a request not yet given an id, as inserted through Hibernate */
+    private static ChannelArchiveRequest createNewRequest(String sbChannelId, WeekdayCoverage weekdayCoverage,
+            String fromTime, String toTime, Date fromDate, Date toDate) {
+        ChannelArchiveRequest caRequest = ChannelArchiveRequestServiceTestStub.createRequest(0L, sbChannelId,
+                weekdayCoverage, Time.valueOf(fromTime), Time.valueOf(toTime), fromDate, toDate);
+        caRequest.setId(null);
+        return caRequest;
+    }
+
+    private void insertRequest(ChannelArchiveRequest caRequest) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("INSERT INTO ChannelArchiveRequest VALUES (?, ?, ?, ?, ?, ?, ?)");
+        statement.setLong(1, caRequest.getId());
+        statement.setString(2, caRequest.getsBChannelId());
+        statement.setString(3, caRequest.getWeekdayCoverage().name());
+        statement.setTime(4, caRequest.getFromTime());
+        statement.setTime(5, caRequest.getToTime());
+        statement.setTimestamp(6, new Timestamp(caRequest.getFromDate().getTime()));
+        statement.setTimestamp(7, new Timestamp(caRequest.getToDate().getTime()));
+        statement.executeUpdate();
+        statement.close();
+    }
+
+    private void insertMapping(long id, String sbChannelId, String youSeeChannelId, Date fromDate, Date toDate) throws SQLException {
+        PreparedStatement statement = connection.prepareStatement("INSERT INTO YouSeeChannelMapping VALUES (?, ?, ?, ?, ?, ?)");
+        statement.setLong(1, id);
+        statement.setString(2, sbChannelId);
+        statement.setString(3, youSeeChannelId);
+        statement.setString(4, youSeeChannelId + " display name");
+        statement.setTimestamp(5, new Timestamp(fromDate.getTime()));
+        statement.setTimestamp(6, toDate == null ? null : new Timestamp(toDate.getTime()));
+        statement.executeUpdate();
+        statement.close();
+    }
+
+    private static ChannelArchiveRequest getRequest(List<ChannelArchiveRequest> caRequests, long id) {
+        for (ChannelArchiveRequest caRequest : caRequests) {
+            if (caRequest.getId() == id) {
+                return caRequest;
+            }
+        }
+        throw new AssertionError("No request with id " + id + " in " + caRequests);
+    }
+
+    private static Date date(int year, int month, int day) {
+        return new DateTime(year, month, day, 0, 0, 0, 0).toDate();
+    }
+}
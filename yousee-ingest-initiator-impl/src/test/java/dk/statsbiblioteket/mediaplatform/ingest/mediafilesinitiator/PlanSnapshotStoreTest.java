@@ -0,0 +1,121 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.PlanSnapshotTest.createMapping;
+import static dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.PlanSnapshotTest.date;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyZeroInteractions;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ChannelArchiveRequestServiceIF;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.ServiceException;
+import dk.statsbiblioteket.mediaplatform.ingest.model.service.YouSeeChannelMappingServiceIF;
+
+public class PlanSnapshotStoreTest {
+
+    private File snapshotFile;
+    private ChannelArchiveRequestServiceIF channelArchiveRequestService;
+    private YouSeeChannelMappingServiceIF youSeeChannelMappingService;
+    private String databaseVersion;
+
+    @Before
+    public void setUp() throws Exception {
+        snapshotFile = File.createTempFile("plan", ".snapshot");
+        snapshotFile.delete();
+        channelArchiveRequestService = mock(ChannelArchiveRequestServiceIF.class);
+        when(channelArchiveRequestService.getAllRequests()).thenReturn(Arrays.asList(
+                ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                        new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 1, 1), date(2012, 12, 31))));
+        youSeeChannelMappingService = mock(YouSeeChannelMappingServiceIF.class);
+        when(youSeeChannelMappingService.getAllMappings()).thenReturn(Arrays.asList(
+                createMapping(1L, "dr1", "DR1", date(2012, 1, 1), null)));
+        databaseVersion = "1";
+    }
+
+    @After
+    public void tearDown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testGetSnapshot_loadsOnlyWhenDatabaseChanged() throws ServiceException {
+        PlanSnapshot snapshot = createStore(false).getSnapshot(true);
+        assertEquals("1", snapshot.getDatabaseVersion());
+        assertEquals(1, snapshot.getAllRequests().size());
+        assertTrue(snapshotFile.exists());
+
+        // A later run reads the snapshot written by the first
+        PlanSnapshotStore store = createStore(false);
+        store.getSnapshot(true);
+        store.getSnapshot(true);
+        verify(channelArchiveRequestService, times(1)).getAllRequests();
+        verify(youSeeChannelMappingService, times(1)).getAllMappings();
+
+        databaseVersion = "2";
+        assertEquals("2", store.getSnapshot(true).getDatabaseVersion());
+        assertEquals("2", createStore(false).getSnapshot(false).getDatabaseVersion());
+        verify(channelArchiveRequestService, times(2)).getAllRequests();
+    }
+
+    @Test
+    public void testGetSnapshot_databaseUnavailable() throws ServiceException {
+        createStore(false).getSnapshot(true);
+        databaseVersion = null;
+
+        PlanSnapshot snapshot = createStore(false).getSnapshot(true);
+
+        assertEquals("1", snapshot.getDatabaseVersion());
+        verify(channelArchiveRequestService, times(1)).getAllRequests();
+    }
+
+    @Test
+    public void testGetSnapshot_offline() throws ServiceException, IOException {
+        try {
+            createStore(true).getSnapshot(true);
+            fail("Planning offline without a snapshot should fail");
+        } catch (ServiceException e) {
+            // Expected
+        }
+        new PlanSnapshot("1", 1000L, Arrays.<ChannelArchiveRequest>asList(),
+                Arrays.asList(createMapping(1L, "dr1", "DR1", date(2012, 1, 1), null))).write(snapshotFile);
+
+        PlanSnapshot snapshot = createStore(true).getSnapshot(true);
+
+        assertEquals(1, snapshot.getAllMappings().size());
+        verifyZeroInteractions(channelArchiveRequestService, youSeeChannelMappingService);
+    }
+
+    /** @return a store whose database has the version of the test, failing if it is null */
+    private PlanSnapshotStore createStore(boolean offline) {
+        Properties properties = new Properties();
+        properties.put("plan.snapshot.file.path", snapshotFile.getPath());
+        properties.put("plan.snapshot.offline", Boolean.toString(offline));
+        return new PlanSnapshotStore(properties, null, channelArchiveRequestService, youSeeChannelMappingService) {
+            @Override
+            protected String queryDatabaseVersion() throws SQLException {
+                if (databaseVersion == null) {
+                    throw new SQLException("Database unavailable");
+                }
+                return databaseVersion;
+            }
+        };
+    }
+}
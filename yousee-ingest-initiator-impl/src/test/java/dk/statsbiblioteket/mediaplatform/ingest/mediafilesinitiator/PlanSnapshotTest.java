@@ -0,0 +1,187 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+import dk.statsbiblioteket.mediaplatform.ingest.model.YouSeeChannelMapping;
+
+public class PlanSnapshotTest {
+
+    private File snapshotFile;
+
+    @Before
+    public void setUp() throws IOException {
+        snapshotFile = File.createTempFile("plan", ".snapshot");
+        snapshotFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        snapshotFile.delete();
+    }
+
+    @Test
+    public void testWriteAndRead() throws IOException {
+        ChannelArchiveRequest caRequest = ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 1, 1), date(2012, 12, 31));
+        ChannelArchiveRequest openRequest = ChannelArchiveRequestServiceTestStub.createRequest(2L, "tv2æøå", null,
+                new Time(0, 0, 0), new Time(0, 0, 0), null, null);
+        YouSeeChannelMapping mapping = createMapping(3L, "dr1", "DR1", date(2012, 1, 1), null);
+        new PlanSnapshot("42", 1000L, Arrays.asList(caRequest, openRequest), Arrays.asList(mapping)).write(snapshotFile);
+
+        PlanSnapshot snapshot = PlanSnapshot.read(snapshotFile);
+
+        assertEquals("42", snapshot.getDatabaseVersion());
+        assertEquals(1000L, snapshot.getCreatedMillis());
+        assertEquals(2, snapshot.getAllRequests().size());
+        ChannelArchiveRequest readRequest = snapshot.getAllRequests().get(0);
+        assertEquals(Long.valueOf(1L), readRequest.getId());
+        assertEquals("dr1", readRequest.getsBChannelId());
+        assertEquals(WeekdayCoverage.DAILY, readRequest.getWeekdayCoverage());
+        assertEquals(new Time(20, 0, 0), readRequest.getFromTime());
+        assertEquals(new Time(22, 0, 0), readRequest.getToTime());
+        assertEquals(date(2012, 1, 1), readRequest.getFromDate());
+        assertEquals(date(2012, 12, 31), readRequest.getToDate());
+        readRequest = snapshot.getAllRequests().get(1);
+        assertEquals("tv2æøå", readRequest.getsBChannelId());
+        assertNull(readRequest.getWeekdayCoverage());
+        assertNull(readRequest.getFromDate());
+        YouSeeChannelMapping readMapping = snapshot.getAllMappings().get(0);
+        assertEquals(Long.valueOf(3L), readMapping.getId());
+        assertEquals("dr1", readMapping.getSbChannelId());
+        assertEquals("DR1", readMapping.getYouSeeChannelId());
+        assertEquals("DR1 display name", readMapping.getDisplayName());
+        assertEquals(date(2012, 1, 1), readMapping.getFromDate());
+        assertNull(readMapping.getToDate());
+    }
+
+    @Test
+    public void testGetValidRequests() {
+        ChannelArchiveRequest january = ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 1, 1), date(2012, 1, 31));
+        ChannelArchiveRequest march = ChannelArchiveRequestServiceTestStub.createRequest(2L, "dr1", WeekdayCoverage.DAILY,
+                new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 3, 1), date(2012, 3, 31));
+        ChannelArchiveRequest open = ChannelArchiveRequestServiceTestStub.createRequest(3L, "tv2", WeekdayCoverage.DAILY,
+                new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 2, 1), null);
+        PlanSnapshot snapshot = new PlanSnapshot(null, 0L, Arrays.asList(january, march, open),
+                Collections.<YouSeeChannelMapping>emptyList());
+
+        List<ChannelArchiveRequest> validRequests = snapshot.getValidRequests(date(2012, 1, 31), date(2012, 2, 29));
+
+        assertEquals(2, validRequests.size());
+        assertEquals(january.getId(), validRequests.get(0).getId());
+        assertEquals(open.getId(), validRequests.get(1).getId());
+    }
+
+    @Test
+    public void testRequestsDisabledWhilePlanningStayEnabledInSnapshot() {
+        ChannelArchiveRequest caRequest = ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                new Time(20, 0, 0), new Time(22, 0, 0), date(2012, 1, 1), date(2012, 12, 31));
+        PlanSnapshot snapshot = new PlanSnapshot(null, 0L, Arrays.asList(caRequest),
+                Collections.<YouSeeChannelMapping>emptyList());
+
+        ChannelArchiveRequest planned = snapshot.getValidRequests(date(2012, 2, 1), date(2012, 2, 29)).get(0);
+        planned.setEnabled(false);
+        planned.setCause("Failure in Ingest Initiator during scheduling");
+        snapshot.getAllRequests().get(0).setEnabled(false);
+
+        ChannelArchiveRequest plannedAgain = snapshot.getValidRequests(date(2012, 2, 1), date(2012, 2, 29)).get(0);
+        assertNotSame(planned, plannedAgain);
+        assertEquals(true, plannedAgain.isEnabled());
+        assertNull(plannedAgain.getCause());
+        assertEquals(true, snapshot.getAllRequests().get(0).isEnabled());
+        assertEquals(true, caRequest.isEnabled());
+    }
+
+    @Test
+    public void testMappingsChangedByCallerStayInSnapshot() {
+        YouSeeChannelMapping mapping = createMapping(3L, "dr1", "DR1", date(2012, 1, 1), null);
+        PlanSnapshot snapshot = new PlanSnapshot(null, 0L, Collections.<ChannelArchiveRequest>emptyList(),
+                Arrays.asList(mapping));
+
+        YouSeeChannelMapping returned = snapshot.getAllMappings().get(0);
+        returned.setYouSeeChannelId("DR2");
+        returned.setToDate(date(2012, 6, 30));
+        snapshot.getAllMappings().clear();
+
+        YouSeeChannelMapping returnedAgain = snapshot.getAllMappings().get(0);
+        assertNotSame(returned, returnedAgain);
+        assertNotSame(mapping, returnedAgain);
+        assertEquals("DR1", returnedAgain.getYouSeeChannelId());
+        assertNull(returnedAgain.getToDate());
+    }
+
+    @Test
+    public void testRead_damagedFileRejected() throws IOException {
+        new PlanSnapshot("42", 1000L, Collections.<ChannelArchiveRequest>emptyList(),
+                Arrays.asList(createMapping(3L, "dr1", "DR1", date(2012, 1, 1), null))).write(snapshotFile);
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(30);
+            int b = file.read();
+            file.seek(30);
+            file.write(b ^ 1);
+        } finally {
+            file.close();
+        }
+        try {
+            PlanSnapshot.read(snapshotFile);
+            fail("Damaged snapshot should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testRead_otherFormatVersionRejected() throws IOException {
+        new PlanSnapshot("42", 1000L, Collections.<ChannelArchiveRequest>emptyList(),
+                Collections.<YouSeeChannelMapping>emptyList()).write(snapshotFile);
+        RandomAccessFile file = new RandomAccessFile(snapshotFile, "rw");
+        try {
+            file.seek(4);
+            file.writeInt(PlanSnapshot.FORMAT_VERSION + 1);
+        } finally {
+            file.close();
+        }
+        try {
+            PlanSnapshot.read(snapshotFile);
+            fail("Snapshot of other format version should be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    static YouSeeChannelMapping createMapping(long id, String sbChannelId, String youSeeChannelId, Date fromDate, Date toDate) {
+        YouSeeChannelMapping mapping = new YouSeeChannelMapping();
+        mapping.setId(id);
+        mapping.setSbChannelId(sbChannelId);
+        mapping.setYouSeeChannelId(youSeeChannelId);
+        mapping.setDisplayName(youSeeChannelId + " display name");
+        mapping.setFromDate(fromDate);
+        mapping.setToDate(toDate);
+        return mapping;
+    }
+
+    static Date date(int year, int month, int day) {
+        return new DateTime(year, month, day, 0, 0, 0, 0).toDate();
+    }
+}
@@ -0,0 +1,82 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class RequestHedgerTest {
+
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    /** Released when the test is done, ending the stalled calls not yet cancelled */
+    private final CountDownLatch testDone = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        testDone.countDown();
+        executor.shutdownNow();
+    }
+
+    /**
+     * Every 10th call stalls after the first 100, until cancelled once its duplicate has returned, so the duplicates
+     * of those calls win. Calls not stalled may also be duplicated, if they are slow on a loaded machine, so only bounds are asserted.
+     */
+    @Test
+    public void testStalledCallsAreDuplicated() {
+        RequestHedger hedger = new RequestHedger(executor, 90, 0.5, 10);
+        for (int i = 0; i < 200; i++) {
+            hedger.call(createCall(i >= 100 && i % 10 == 0, 60000));
+        }
+        assertTrue(hedger.getHedgeDelayNanos() > 0);
+        assertTrue("Won " + hedger.getHedgesWon(), hedger.getHedgesWon() >= 10);
+        assertTrue(hedger.getHedgesFired() >= hedger.getHedgesWon());
+        assertTrue("Fired " + hedger.getHedgesFired(), hedger.getHedgesFired() <= 100);
+    }
+
+    @Test
+    public void testDuplicatesAreLimitedByBudget() {
+        RequestHedger hedger = new RequestHedger(executor, 90, 0.01, 10);
+        for (int i = 0; i < 200; i++) {
+            hedger.call(createCall(i >= 100 && i % 10 == 0, 50));
+        }
+        assertTrue("Fired " + hedger.getHedgesFired(), hedger.getHedgesFired() >= 1);
+        assertTrue("Fired " + hedger.getHedgesFired(), hedger.getHedgesFired() <= 2);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testErrorOfCallIsThrown() {
+        RequestHedger hedger = new RequestHedger(executor, 90, 0.05, 10);
+        hedger.call(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                throw new IllegalStateException("Monitor unavailable");
+            }
+        });
+    }
+
+    /**
+     * @param stall true if the first call should stall until cancelled, or for at most the given time. Duplicates
+     * return at once.
+     * @return the call, returning the number of the call
+     */
+    private Callable<Integer> createCall(final boolean stall, final long maxStallMillis) {
+        final AtomicInteger calls = new AtomicInteger();
+        return new Callable<Integer>() {
+            @Override
+            public Integer call() throws InterruptedException {
+                int callNumber = calls.incrementAndGet();
+                if (stall && callNumber == 1) {
+                    testDone.await(maxStallMillis, TimeUnit.MILLISECONDS);
+                }
+                return callNumber;
+            }
+        };
+    }
+}
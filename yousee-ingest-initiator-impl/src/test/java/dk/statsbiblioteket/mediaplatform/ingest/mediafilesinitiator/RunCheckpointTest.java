@@ -0,0 +1,73 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Time;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.ChannelArchiveRequest;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+public class RunCheckpointTest {
+
+    private File checkpointFile;
+
+    @Before
+    public void setUp() throws IOException {
+        checkpointFile = File.createTempFile("checkpoint", ".properties");
+        checkpointFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        checkpointFile.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        DateTime dateOfIngest = new DateTime(2012, 3, 20, 3, 0, 0, 0);
+        ChannelArchiveRequest caRequest = createRequest();
+        RunCheckpoint checkpoint = new RunCheckpoint(checkpointFile);
+        assertNull(checkpoint.getLastRun());
+        assertTrue(checkpoint.hasChanged(caRequest));
+        checkpoint.update(dateOfIngest, 28, true, Arrays.asList(caRequest));
+        checkpoint.save();
+        RunCheckpoint loadedCheckpoint = new RunCheckpoint(checkpointFile);
+        assertEquals(dateOfIngest, loadedCheckpoint.getLastRun());
+        assertFalse(loadedCheckpoint.hasChanged(caRequest));
+        caRequest.setToTime(new Time(21, 0, 0));
+        assertTrue(loadedCheckpoint.hasChanged(caRequest));
+    }
+
+    @Test
+    public void testIsFullSweepDue() {
+        DateTime fullSweep = new DateTime(2012, 3, 20, 3, 0, 0, 0);
+        RunCheckpoint checkpoint = new RunCheckpoint(checkpointFile);
+        assertTrue(checkpoint.isFullSweepDue(fullSweep, 28, 7));
+        checkpoint.update(fullSweep, 28, true, Arrays.asList(createRequest()));
+        checkpoint.update(fullSweep.plusDays(1), 28, false, Arrays.asList(createRequest()));
+        assertFalse(checkpoint.isFullSweepDue(fullSweep.plusDays(2), 28, 7));
+        assertTrue(checkpoint.isFullSweepDue(fullSweep.plusDays(7), 28, 7));
+        // The period has changed
+        assertTrue(checkpoint.isFullSweepDue(fullSweep.plusDays(2), 14, 7));
+        // Ingest for a date before the last run
+        assertTrue(checkpoint.isFullSweepDue(fullSweep, 28, 7));
+    }
+
+    private ChannelArchiveRequest createRequest() {
+        return ChannelArchiveRequestServiceTestStub.createRequest(1L, "dr1", WeekdayCoverage.DAILY,
+                new Time(8, 0, 0), new Time(20, 0, 0), new Date(0), new DateTime(2013, 1, 1, 0, 0, 0, 0).toDate());
+    }
+}
@@ -0,0 +1,45 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class RunMetricsTest {
+
+    @Test
+    public void testLookupLatencyHistogram() {
+        RunMetrics metrics = new RunMetrics();
+        long now = System.nanoTime();
+        metrics.addLookup(100, now - TimeUnit.MILLISECONDS.toNanos(5));
+        metrics.addLookup(100, now - TimeUnit.MILLISECONDS.toNanos(200));
+        metrics.addLookup(50, now - TimeUnit.SECONDS.toNanos(20));
+        metrics.finish(true);
+        assertEquals(3L, metrics.getValues().get("lookups"));
+        assertEquals(250L, metrics.getValues().get("lookup_files"));
+        assertTrue(metrics.getValues().get("lookup_max_seconds").doubleValue() >= 20);
+        String prometheusText = metrics.toPrometheusText();
+        assertTrue(prometheusText.contains("yousee_ingest_lookup_latency_seconds_bucket{le=\"0.01\"} 1\n"));
+        assertTrue(prometheusText.contains("yousee_ingest_lookup_latency_seconds_bucket{le=\"0.25\"} 2\n"));
+        assertTrue(prometheusText.contains("yousee_ingest_lookup_latency_seconds_bucket{le=\"10.0\"} 2\n"));
+        assertTrue(prometheusText.contains("yousee_ingest_lookup_latency_seconds_bucket{le=\"+Inf\"} 3\n"));
+        assertTrue(metrics.toJson().endsWith(
+                "\"lookup_latency_ms\":{\"10\":1,\"25\":0,\"50\":0,\"100\":0,\"250\":1,\"500\":0,\"1000\":0,\"2500\":0,\"5000\":0,\"10000\":0,\"+Inf\":1}}"));
+    }
+
+    @Test
+    public void testSummary() {
+        RunMetrics metrics = new RunMetrics();
+        metrics.addSlotsGenerated(14);
+        metrics.addFilesScheduled(12);
+        metrics.addTerminalCacheResult(3, 1);
+        metrics.finish(false);
+        String json = metrics.toJson();
+        assertTrue(json, json.startsWith("{\"result\":\"FAILED\",\"run_seconds\":"));
+        assertTrue(json, json.contains(",\"duplicates_removed\":2,"));
+        assertTrue(json, json.contains(",\"terminal_cache_hit_rate\":0.750000,"));
+        assertTrue(metrics.toPrometheusText().contains("yousee_ingest_run_success 0\n"));
+    }
+}
@@ -0,0 +1,121 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Time;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.DateTime;
+import org.joda.time.format.DateTimeFormat;
+import org.junit.Test;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.ChannelArchiveRequestServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorFacadeStub;
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.YouSeeChannelMappingServiceTestStub;
+import dk.statsbiblioteket.mediaplatform.ingest.model.WeekdayCoverage;
+
+/**
+ * Runs the initiator as several shards, each in a process of its own, and compares the downloads of the shards with
+ * the downloads of a single initiator.
+ */
+public class ShardedIngestTest {
+
+    private static final int SHARD_COUNT = 3;
+    private static final String DATE_OF_INGEST = "2012-03-20";
+
+    @Test
+    public void testUnionOfShardsEqualsSingleInitiator() throws Exception {
+        List<Process> processes = new ArrayList<Process>();
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            ProcessBuilder processBuilder = new ProcessBuilder(
+                    System.getProperty("java.home") + File.separator + "bin" + File.separator + "java",
+                    "-cp", System.getProperty("java.class.path"),
+                    "-Duser.timezone=" + System.getProperty("user.timezone"),
+                    ShardedIngestTest.class.getName(), Integer.toString(shard), Integer.toString(SHARD_COUNT));
+            processBuilder.redirectErrorStream(true);
+            processes.add(processBuilder.start());
+        }
+        List<String> shardFileIDs = new ArrayList<String>();
+        for (int shard = 0; shard < SHARD_COUNT; shard++) {
+            String output = read(processes.get(shard).getInputStream());
+            assertEquals(output, 0, processes.get(shard).waitFor());
+            List<String> fileIDs = getFileIDs(output);
+            assertTrue("Shard " + shard + " has no files", fileIDs.size() > 0);
+            shardFileIDs.addAll(fileIDs);
+        }
+        ByteArrayOutputStream singleOutput = new ByteArrayOutputStream();
+        initiateIngest(0, 1, singleOutput);
+        List<String> singleFileIDs = getFileIDs(singleOutput.toString("UTF-8"));
+        assertEquals(singleFileIDs.size(), shardFileIDs.size());
+        assertEquals(new HashSet<String>(singleFileIDs), new HashSet<String>(shardFileIDs));
+    }
+
+    /** Writes the downloads of the shard given by the index and count arguments to stdout. */
+    public static void main(String[] args) throws IOException {
+        initiateIngest(Integer.parseInt(args[0]), Integer.parseInt(args[1]), System.out);
+    }
+
+    private static void initiateIngest(int shardIndex, int shardCount, OutputStream outputStream) throws IOException {
+        Properties properties = new Properties();
+        InputStream in = ShardedIngestTest.class.getClassLoader().getResourceAsStream("ingest_initiator_media_files_unittest.properties");
+        properties.load(in);
+        in.close();
+        properties.put("ingest.shard.index", Integer.toString(shardIndex));
+        properties.put("ingest.shard.count", Integer.toString(shardCount));
+        new IngestMediaFilesInitiator(properties, createSchedule(), new YouSeeChannelMappingServiceTestStub(),
+                new WorkFlowStateMonitorFacadeStub(), outputStream)
+                .initiateIngest(DateTimeFormat.forPattern("yyyy-MM-dd").parseDateTime(DATE_OF_INGEST));
+    }
+
+    /** The same requests of 20 channels in every process. */
+    private static ChannelArchiveRequestServiceTestStub createSchedule() {
+        Random random = new Random(42);
+        WeekdayCoverage[] coverages = WeekdayCoverage.values();
+        ChannelArchiveRequestServiceTestStub channelArchiveRequestService = new ChannelArchiveRequestServiceTestStub();
+        long id = 0;
+        for (int channel = 0; channel < 20; channel++) {
+            for (int request = 0; request < 2; request++) {
+                channelArchiveRequestService.addRequest(ChannelArchiveRequestServiceTestStub.createRequest(id++, "channel" + channel,
+                        coverages[random.nextInt(coverages.length)], new Time(random.nextInt(24), 0, 0),
+                        new Time(random.nextInt(24), 0, 0), new Date(0), new DateTime(2013, 1, 1, 0, 0, 0, 0).toDate()));
+            }
+        }
+        return channelArchiveRequestService;
+    }
+
+    private static List<String> getFileIDs(String output) {
+        Set<String> fileIDs = new HashSet<String>();
+        List<String> fileIDList = new ArrayList<String>();
+        Matcher matcher = Pattern.compile("\"fileID\" : \"([^\"]*)\"").matcher(output);
+        while (matcher.find()) {
+            assertTrue("Duplicate file " + matcher.group(1), fileIDs.add(matcher.group(1)));
+            fileIDList.add(matcher.group(1));
+        }
+        return fileIDList;
+    }
+
+    private static String read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) != -1) {
+            out.write(buffer, 0, count);
+        }
+        in.close();
+        return out.toString("UTF-8");
+    }
+}
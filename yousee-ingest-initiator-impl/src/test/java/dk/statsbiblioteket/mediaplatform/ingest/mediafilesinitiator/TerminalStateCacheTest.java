@@ -0,0 +1,78 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.joda.time.DateTime;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TerminalStateCacheTest {
+
+    private File cacheFile;
+
+    @Before
+    public void setUp() throws IOException {
+        cacheFile = File.createTempFile("terminal_states", ".txt");
+        cacheFile.delete();
+    }
+
+    @After
+    public void tearDown() {
+        cacheFile.delete();
+    }
+
+    @Test
+    public void testSaveAndLoad() {
+        TerminalStateCache cache = new TerminalStateCache(cacheFile);
+        assertEquals(0, cache.size());
+        cache.put("dr1_teracom.1_teracom.ts", new DateTime(2012, 1, 1, 0, 0, 0, 0));
+        cache.put("dr2_teracom.2_teracom.ts", new DateTime(2012, 1, 2, 0, 0, 0, 0));
+        cache.save();
+        TerminalStateCache loadedCache = new TerminalStateCache(cacheFile);
+        assertEquals(2, loadedCache.size());
+        assertTrue(loadedCache.contains("dr1_teracom.1_teracom.ts"));
+        assertTrue(loadedCache.contains("dr2_teracom.2_teracom.ts"));
+    }
+
+    @Test
+    public void testEvictStartedBefore() {
+        TerminalStateCache cache = new TerminalStateCache(cacheFile);
+        cache.put("old", new DateTime(2012, 1, 1, 23, 0, 0, 0));
+        cache.put("new", new DateTime(2012, 1, 2, 0, 0, 0, 0));
+        cache.evictStartedBefore(new DateTime(2012, 1, 2, 0, 0, 0, 0));
+        assertFalse(cache.contains("old"));
+        assertTrue(cache.contains("new"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        TerminalStateCache cache = new TerminalStateCache(cacheFile);
+        cache.put("restarted", new DateTime(2012, 1, 1, 0, 0, 0, 0));
+        cache.put("done", new DateTime(2012, 1, 1, 1, 0, 0, 0));
+        cache.save();
+        TerminalStateCache operatorCache = new TerminalStateCache(cacheFile);
+        assertEquals(1, operatorCache.invalidate(Arrays.asList("restarted", "unknown")));
+        operatorCache.save();
+        TerminalStateCache loadedCache = new TerminalStateCache(cacheFile);
+        assertFalse(loadedCache.contains("restarted"));
+        assertTrue(loadedCache.contains("done"));
+    }
+
+    @Test
+    public void testCLIEditsCacheOfShard() {
+        Properties properties = new Properties();
+        assertEquals(null, TerminalStateCacheCLI.getCacheFilePath(properties));
+        properties.setProperty("workflow.state.cache.file.path", cacheFile.getPath());
+        assertEquals(cacheFile.getPath(), TerminalStateCacheCLI.getCacheFilePath(properties));
+        IngestMediaFilesInitiatorCLI.setShard(properties, "2/4");
+        assertEquals(cacheFile.getPath() + ".shard-2-of-4", TerminalStateCacheCLI.getCacheFilePath(properties));
+    }
+}
@@ -2,6 +2,10 @@ package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 
 import org.apache.log4j.Logger;
@@ -10,6 +14,11 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.sun.jersey.api.client.Client;
+import com.sun.jersey.api.client.GenericType;
+import com.sun.jersey.api.client.config.DefaultClientConfig;
+
+import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock.WorkFlowStateMonitorStubServer;
 import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
 
 public class WorkFlowStateMonitorWebServiceFacadeTest {
@@ -67,4 +76,175 @@ public class WorkFlowStateMonitorWebServiceFacadeTest {
         WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(defaultProperties);
         workFlowStateMonitorWebServiceFacade.addState("FAIL", "FAILFAILFAIL");
     }
+
+    @Test
+    public void testGetLastWorkFlowStatesForEntities_bulkEndpoint() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer("lastStates");
+        server.start();
+        try {
+            List<String> sbFileIds = createFileIds(120);
+            server.putState(sbFileIds.get(7), "Done", new Date());
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(getStubServerProperties(server, "lastStates"));
+            Map<String, State> states = workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(120, states.size());
+            assertEquals("Done", states.get(sbFileIds.get(7)).getStateName());
+            assertNull(states.get(sbFileIds.get(8)));
+            // 120 entities in chunks of 50
+            assertEquals(3, server.getRoundTrips());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testGetLastWorkFlowStatesForEntities_noBulkEndpoint() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            List<String> sbFileIds = createFileIds(120);
+            server.putState(sbFileIds.get(7), "Done", new Date());
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(getStubServerProperties(server, "lastStates"));
+            Map<String, State> states = workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(120, states.size());
+            assertEquals("Done", states.get(sbFileIds.get(7)).getStateName());
+            assertNull(states.get(sbFileIds.get(8)));
+            // One failed bulk request, then one request per entity
+            assertEquals(1 + 120, server.getRoundTrips());
+            server.resetRoundTrips();
+            workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(120, server.getRoundTrips());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testGetLastWorkFlowStatesForEntities_conditionalLookups() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            List<String> sbFileIds = createFileIds(20);
+            server.putState(sbFileIds.get(7), "Started", new Date(1326114000000L));
+            Properties properties = getStubServerProperties(server, null);
+            properties.put("workflow.state.monitor.http.cache.size", "100");
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(0, server.getNotModifiedResponses());
+            assertEquals(20, workFlowStateMonitorWebServiceFacade.getHttpCacheMisses());
+
+            server.resetRoundTrips();
+            server.putState(sbFileIds.get(8), "Done", new Date(1326117600000L));
+            Map<String, State> states = workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(20, server.getRoundTrips());
+            assertEquals(19, server.getNotModifiedResponses());
+            assertEquals(19, workFlowStateMonitorWebServiceFacade.getHttpCacheHits());
+            assertEquals(21, workFlowStateMonitorWebServiceFacade.getHttpCacheMisses());
+            assertEquals("Started", states.get(sbFileIds.get(7)).getStateName());
+            assertEquals("Done", states.get(sbFileIds.get(8)).getStateName());
+            assertNull(states.get(sbFileIds.get(9)));
+            workFlowStateMonitorWebServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testGetLastWorkFlowStateForEntity_evictsLeastRecentlyUsed() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            List<String> sbFileIds = createFileIds(3);
+            Properties properties = getStubServerProperties(server, null);
+            properties.put("workflow.state.monitor.http.cache.size", "2");
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            for (String sbFileId : sbFileIds) {
+                workFlowStateMonitorWebServiceFacade.getLastWorkFlowStateForEntity(sbFileId);
+            }
+            // The first entity was evicted by the third
+            workFlowStateMonitorWebServiceFacade.getLastWorkFlowStateForEntity(sbFileIds.get(2));
+            workFlowStateMonitorWebServiceFacade.getLastWorkFlowStateForEntity(sbFileIds.get(0));
+            assertEquals(1, server.getNotModifiedResponses());
+            workFlowStateMonitorWebServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testGetLastWorkFlowStatesForEntities_hedgedLookups() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            Properties properties = getStubServerProperties(server, null);
+            properties.put("workflow.state.monitor.lookup.threads", "1");
+            properties.put("workflow.state.monitor.hedge.percentile", "90");
+            properties.put("workflow.state.monitor.hedge.budget", "0.1");
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(properties);
+            List<String> sbFileIds = createFileIds(100);
+            server.putState(sbFileIds.get(7), "Done", new Date());
+            workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals(0, workFlowStateMonitorWebServiceFacade.getHedgesFired());
+            server.setStalls(20, 2000);
+            Map<String, State> states = workFlowStateMonitorWebServiceFacade.getLastWorkFlowStatesForEntities(sbFileIds);
+            assertEquals("Done", states.get(sbFileIds.get(7)).getStateName());
+            // Some lookups stalled for 2 s were answered by their duplicates, within the budget of a tenth of 200 lookups
+            assertTrue(workFlowStateMonitorWebServiceFacade.getHedgesWon() > 0);
+            assertTrue(workFlowStateMonitorWebServiceFacade.getHedgesFired() <= 20);
+            workFlowStateMonitorWebServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    /**
+     * Not a unittest. Microbenchmark of the per lookup latency against a local stub monitor, creating a new
+     * client for each lookup (as the facade used to) compared to the shared, pooled client of the facade.
+     */
+    //@Test
+    public void benchmarkGetLastWorkFlowStateForEntity() throws Exception {
+        WorkFlowStateMonitorStubServer server = new WorkFlowStateMonitorStubServer(null);
+        server.start();
+        try {
+            List<String> sbFileIds = createFileIds(500);
+            WorkFlowStateMonitorWebServiceFacade workFlowStateMonitorWebServiceFacade = new WorkFlowStateMonitorWebServiceFacade(getStubServerProperties(server, null));
+            GenericType<List<State>> genericTypeStateList = new GenericType<List<State>>() {};
+            for (int round = 0; round < 2; round++) { // First round is warm up
+                long start = System.nanoTime();
+                for (String sbFileId : sbFileIds) {
+                    Client client = Client.create(new DefaultClientConfig());
+                    client.resource(server.getBaseUrl()).path("states").path(sbFileId).queryParam("onlyLast", "true").get(genericTypeStateList);
+                }
+                long clientPerLookup = (System.nanoTime() - start) / sbFileIds.size();
+                start = System.nanoTime();
+                for (String sbFileId : sbFileIds) {
+                    workFlowStateMonitorWebServiceFacade.getLastWorkFlowStateForEntity(sbFileId);
+                }
+                long sharedClient = (System.nanoTime() - start) / sbFileIds.size();
+                log.info("Latency per lookup: new client per lookup " + clientPerLookup / 1000 + " us, shared client "
+                        + sharedClient / 1000 + " us");
+            }
+            workFlowStateMonitorWebServiceFacade.close();
+        } finally {
+            server.stop();
+        }
+    }
+
+    private Properties getStubServerProperties(WorkFlowStateMonitorStubServer server, String bulkPath) {
+        Properties properties = new Properties();
+        properties.putAll(defaultProperties);
+        properties.put("workflow.state.monitor.base.url", server.getBaseUrl());
+        if (bulkPath != null) {
+            properties.put("workflow.state.monitor.bulk.path", bulkPath);
+        }
+        return properties;
+    }
+
+    private List<String> createFileIds(int count) {
+        List<String> sbFileIds = new ArrayList<String>();
+        long start = 1326114000L;
+        for (int i = 0; i < count; i++) {
+            sbFileIds.add("dr1_teracom." + (start + i * 3600) + "_" + (start + (i + 1) * 3600) + "_teracom.ts");
+        }
+        return sbFileIds;
+    }
 }
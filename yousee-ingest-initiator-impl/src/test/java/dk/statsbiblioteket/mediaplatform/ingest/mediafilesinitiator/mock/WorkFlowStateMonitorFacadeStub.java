@@ -1,6 +1,14 @@
 package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.WorkFlowStateMonitorFacade;
 import dk.statsbiblioteket.medieplatform.workflowstatemonitor.Entity;
@@ -10,6 +18,10 @@ public class WorkFlowStateMonitorFacadeStub implements
         WorkFlowStateMonitorFacade {
 
     private State state;
+    private final Map<String, State> entityStates = new ConcurrentHashMap<String, State>();
+    private final Set<String> failingEntities = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final List<String> addedStateNames = Collections.synchronizedList(new ArrayList<String>());
+    private volatile long lookupLatencyMillis = 0;
     
     public WorkFlowStateMonitorFacadeStub() {
         this.state = null;
@@ -19,14 +31,65 @@ public class WorkFlowStateMonitorFacadeStub implements
         this.state = generateState(component, date, sbFilenameId, stateName);
     }
 
+    /** Gives the entity its own state instead of the state given to the constructor. */
+    public void putState(String component, Date date, String sbFilenameId, String stateName) {
+        entityStates.put(sbFilenameId, generateState(component, date, sbFilenameId, stateName));
+    }
+
+    /** Makes lookups of the entity fail. */
+    public void failLookupOf(String sbFilenameId) {
+        failingEntities.add(sbFilenameId);
+    }
+
+    /** Makes every lookup, of one or of many entities, take the given time, as a call to the monitor would. */
+    public void setLookupLatency(long millis) {
+        this.lookupLatencyMillis = millis;
+    }
+
+    public List<String> getAddedStateNames() {
+        return addedStateNames;
+    }
+
     @Override
     public State getLastWorkFlowStateForEntity(String sbFileId) {
+        waitForLookup();
+        return lookUp(sbFileId);
+    }
+
+    @Override
+    public Map<String, State> getLastWorkFlowStatesForEntities(Collection<String> sbFileIds) {
+        waitForLookup();
+        Map<String, State> states = new HashMap<String, State>();
+        for (String sbFileId : sbFileIds) {
+            states.put(sbFileId, lookUp(sbFileId));
+        }
+        return states;
+    }
+
+    private State lookUp(String sbFileId) {
+        if (failingEntities.contains(sbFileId)) {
+            throw new RuntimeException("Stub lookup failure for " + sbFileId);
+        }
+        if (entityStates.containsKey(sbFileId)) {
+            return entityStates.get(sbFileId);
+        }
         return state;
     }
 
+    private void waitForLookup() {
+        if (lookupLatencyMillis > 0) {
+            try {
+                Thread.sleep(lookupLatencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted during stub lookup", e);
+            }
+        }
+    }
+
     @Override
     public void addState(String stateName, String message) {
-        //Does nothing in stub.
+        addedStateNames.add(stateName);
     }
 
     protected State generateState(String component, Date date, String sbFilenameId, String stateName) {
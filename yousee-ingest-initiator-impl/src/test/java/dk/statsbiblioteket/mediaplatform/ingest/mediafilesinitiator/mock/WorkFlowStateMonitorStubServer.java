@@ -0,0 +1,261 @@
+package dk.statsbiblioteket.mediaplatform.ingest.mediafilesinitiator.mock;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.Entity;
+import dk.statsbiblioteket.medieplatform.workflowstatemonitor.State;
+
+/**
+ * Local stand-in for the work flow state monitor web service. Serves last states from an in-memory
+ * map, optionally through a bulk endpoint, and counts the round trips made against it.
+ *
+ * The states of single entities are returned with ETag and Last-Modified validators, and conditional
+ * requests are answered with 304 Not Modified while the state of the entity is unchanged.
+ */
+public class WorkFlowStateMonitorStubServer {
+
+    public static final String CONTEXT = "/workflowstatemonitor";
+
+    private final HttpServer server;
+    private final String bulkPath;
+    private final Map<String, State> states = new ConcurrentHashMap<String, State>();
+    private final AtomicInteger roundTrips = new AtomicInteger();
+    private final AtomicInteger addedStates = new AtomicInteger();
+    private final AtomicInteger notModifiedResponses = new AtomicInteger();
+    private final JAXBContext jaxbContext;
+    private final AtomicInteger concurrentRequests = new AtomicInteger();
+    private final AtomicInteger maxConcurrentRequests = new AtomicInteger();
+    private volatile long latencyMillis = 0;
+    private volatile long loadLatencyMillis = 0;
+    private volatile int stallEvery = 0;
+    private volatile long stallMillis = 0;
+
+    /**
+     * @param bulkPath path of the bulk endpoint relative to the base url, or null if the server
+     * should not have a bulk endpoint.
+     */
+    public WorkFlowStateMonitorStubServer(String bulkPath) throws IOException, JAXBException {
+        this.bulkPath = bulkPath;
+        this.jaxbContext = JAXBContext.newInstance(State.class);
+        // Without this, Nagle's algorithm adds ~40 ms to every round trip on a persistent connection
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        this.server.createContext(CONTEXT, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    handleRequest(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        this.server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public String getBaseUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + CONTEXT;
+    }
+
+    public void setLatencyMillis(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /** Adds latency to each request for each other request being handled, as by an overloaded monitor. */
+    public void setLoadLatencyMillis(long loadLatencyMillis) {
+        this.loadLatencyMillis = loadLatencyMillis;
+    }
+
+    /** Stalls every given number of requests for the given time, as a monitor pausing for garbage collection. */
+    public void setStalls(int stallEvery, long stallMillis) {
+        this.stallEvery = stallEvery;
+        this.stallMillis = stallMillis;
+    }
+
+    public void putState(String sbFileId, String stateName, Date date) {
+        State state = new State();
+        state.setComponent("Stub component");
+        state.setDate(date);
+        Entity entity = new Entity();
+        entity.setName(sbFileId);
+        state.setEntity(entity);
+        state.setMessage("Message");
+        state.setStateName(stateName);
+        states.put(sbFileId, state);
+    }
+
+    public int getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    public int getAddedStates() {
+        return addedStates.get();
+    }
+
+    public int getNotModifiedResponses() {
+        return notModifiedResponses.get();
+    }
+
+    /** @return the highest number of requests handled at a time */
+    public int getMaxConcurrentRequests() {
+        return maxConcurrentRequests.get();
+    }
+
+    public void resetRoundTrips() {
+        roundTrips.set(0);
+        notModifiedResponses.set(0);
+    }
+
+    private void handleRequest(HttpExchange exchange) throws IOException {
+        int roundTrip = roundTrips.incrementAndGet();
+        int otherRequests = concurrentRequests.getAndIncrement();
+        int requests = otherRequests + 1;
+        for (int max = maxConcurrentRequests.get(); requests > max; max = maxConcurrentRequests.get()) {
+            if (maxConcurrentRequests.compareAndSet(max, requests)) {
+                break;
+            }
+        }
+        try {
+            boolean stalled = stallEvery > 0 && roundTrip % stallEvery == 0;
+            simulateLatency(latencyMillis + otherRequests * loadLatencyMillis + (stalled ? stallMillis : 0));
+            handleRequestAfterLatency(exchange);
+        } finally {
+            concurrentRequests.decrementAndGet();
+        }
+    }
+
+    private void handleRequestAfterLatency(HttpExchange exchange) throws IOException {
+        String path = exchange.getRequestURI().getPath().substring(CONTEXT.length() + 1);
+        if (exchange.getRequestMethod().equals("POST") && path.startsWith("states/")) {
+            addedStates.incrementAndGet();
+            exchange.sendResponseHeaders(204, -1);
+        } else if (bulkPath != null && path.equals(bulkPath)) {
+            List<State> found = new ArrayList<State>();
+            for (String sbFileId : getQueryParameters(exchange, "entity")) {
+                State state = states.get(sbFileId);
+                if (state != null) {
+                    found.add(state);
+                }
+            }
+            sendStates(exchange, found);
+        } else if (path.startsWith("states/")) {
+            List<State> found = new ArrayList<State>();
+            State state = states.get(path.substring("states/".length()));
+            if (state != null) {
+                found.add(state);
+            }
+            String eTag = state == null ? "\"none\"" : "\"" + Integer.toHexString((state.getStateName() + state.getDate().getTime()).hashCode()) + "\"";
+            exchange.getResponseHeaders().set("ETag", eTag);
+            if (state != null) {
+                exchange.getResponseHeaders().set("Last-Modified", createHttpDateFormat().format(state.getDate()));
+            }
+            if (isNotModified(exchange, eTag, state)) {
+                notModifiedResponses.incrementAndGet();
+                exchange.sendResponseHeaders(304, -1);
+            } else {
+                sendStates(exchange, found);
+            }
+        } else {
+            exchange.sendResponseHeaders(404, -1);
+        }
+    }
+
+    /** If-None-Match takes precedence over If-Modified-Since, as in RFC 7232. */
+    private boolean isNotModified(HttpExchange exchange, String eTag, State state) {
+        String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+        if (ifNoneMatch != null) {
+            return ifNoneMatch.equals(eTag);
+        }
+        String ifModifiedSince = exchange.getRequestHeaders().getFirst("If-Modified-Since");
+        if (ifModifiedSince != null && state != null) {
+            try {
+                return state.getDate().getTime() / 1000 <= createHttpDateFormat().parse(ifModifiedSince).getTime() / 1000;
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    private static SimpleDateFormat createHttpDateFormat() {
+        SimpleDateFormat httpDateFormat = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        httpDateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return httpDateFormat;
+    }
+
+    private void simulateLatency(long latencyMillis) {
+        if (latencyMillis > 0) {
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private List<String> getQueryParameters(HttpExchange exchange, String name) throws IOException {
+        List<String> values = new ArrayList<String>();
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query != null) {
+            for (String parameter : query.split("&")) {
+                String[] nameAndValue = parameter.split("=", 2);
+                if (nameAndValue.length == 2 && URLDecoder.decode(nameAndValue[0], "UTF-8").equals(name)) {
+                    values.add(URLDecoder.decode(nameAndValue[1], "UTF-8"));
+                }
+            }
+        }
+        return values;
+    }
+
+    private void sendStates(HttpExchange exchange, List<State> found) throws IOException {
+        StringWriter xml = new StringWriter();
+        xml.write("<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?><states>");
+        try {
+            Marshaller marshaller = jaxbContext.createMarshaller();
+            marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+            for (State state : found) {
+                marshaller.marshal(state, xml);
+            }
+        } catch (JAXBException e) {
+            throw new IOException("Unable to marshal states: " + e);
+        }
+        xml.write("</states>");
+        byte[] body = xml.toString().getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/xml");
+        exchange.sendResponseHeaders(200, body.length);
+        OutputStream responseBody = exchange.getResponseBody();
+        responseBody.write(body);
+        responseBody.close();
+    }
+}